@@ -0,0 +1,230 @@
+import java.util.*;
+
+/**
+ * BlockCache.java
+ * A write-back cache of disk blocks used for file system metadata.
+ * <p>
+ * Blocks are kept in least-recently-used order.  Blocks numbered below the
+ * resident limit (the superblock, inode map, and checksum table) and blocks
+ * pinned with pin() are never evicted, and
+ * dirty blocks stay in the cache until the next flush(), so a view wrapped
+ * around a cached buffer stays valid for the length of one file system
+ * operation.
+ * <p>
+ * Given a {@link BlockChecksums} table, the cache checks each block it
+ * reads from the disk against it, and records the checksums of dirty
+ * blocks on request.  A hit is not checked again.
+ *
+ * @see FileSystem
+ */
+public class BlockCache
+{
+    private final Disk disk;
+
+    /** The number of evictable blocks the cache tries to hold. */
+    private final int capacity;
+
+    /** Blocks below this number are pinned in the cache. */
+    private final int residentLimit;
+
+    /** Cached buffers, in access order. */
+    private final LinkedHashMap<Integer, byte[]> blocks =
+            new LinkedHashMap<Integer, byte[]>(16, 0.75f, true);
+
+    /** Blocks at or above the resident limit that are never evicted. */
+    private final BitSet pinned = new BitSet();
+
+    /** Block numbers modified since the last flush, in ascending order. */
+    private final TreeSet<Integer> dirty = new TreeSet<Integer>();
+
+    /** Counts of lookups satisfied with and without a disk read. */
+    private int hits, misses;
+
+    /** The checksums of the blocks, or null if they are not checked. */
+    private final BlockChecksums checksums;
+
+    /**
+     * Creates a new cache.
+     * @param disk          the disk to read and write
+     * @param capacity      the number of evictable blocks to hold
+     * @param residentLimit blocks below this number are never evicted
+     */
+    public BlockCache(Disk disk, int capacity, int residentLimit)
+    {
+        this(disk, capacity, residentLimit, null);
+    }
+
+    /**
+     * Creates a new cache that checks the blocks it reads.
+     * @param disk          the disk to read and write
+     * @param capacity      the number of evictable blocks to hold
+     * @param residentLimit blocks below this number are never evicted
+     * @param checksums     the checksums to check blocks against, or null
+     */
+    public BlockCache(Disk disk, int capacity, int residentLimit, BlockChecksums checksums)
+    {
+        this.disk = disk;
+        this.capacity = capacity;
+        this.residentLimit = residentLimit;
+        this.checksums = checksums;
+    }
+
+    /**
+     * Returns the cached buffer for a block, reading it on a miss.
+     * @param block     the block number
+     * @return          the cached buffer
+     * @throws IllegalStateException if the block read fails its checksum
+     */
+    public byte[] get(int block)
+    {
+        byte[] buf = blocks.get(block);
+        if (buf != null) {
+            hits++;
+            return buf;
+        }
+        misses++;
+        buf = new byte[Disk.BLOCK_SIZE];
+        disk.read(block, buf);
+        if (checksums != null) {
+            checksums.verify(block, buf);
+        }
+        insert(block, buf);
+        return buf;
+    }
+
+    /**
+     * Returns a zero-filled buffer for a block without reading it, and
+     * marks it dirty.  Used for freshly allocated metadata blocks.
+     * @param block     the block number
+     * @return          the cached buffer
+     */
+    public byte[] getZeroed(int block)
+    {
+        byte[] buf = blocks.get(block);
+        dirty.add(block);
+        if (buf == null) {
+            buf = new byte[Disk.BLOCK_SIZE];
+            insert(block, buf);
+        } else {
+            Arrays.fill(buf, (byte) 0);
+        }
+        return buf;
+    }
+
+    /**
+     * Discards a block on the disk and caches it as zeros, so the block can
+     * be filled in without ever being read or written in its cleared form.
+     * @param block     the block number
+     * @return          the cached, zero-filled buffer
+     */
+    public byte[] discard(int block)
+    {
+        disk.discard(block);
+        dirty.remove(block);
+        byte[] buf = blocks.get(block);
+        if (buf == null) {
+            buf = new byte[Disk.BLOCK_SIZE];
+            insert(block, buf);
+        } else {
+            Arrays.fill(buf, (byte) 0);
+        }
+        return buf;
+    }
+
+    /**
+     * Records that a cached block has been modified.
+     * @param block     the block number
+     */
+    public void markDirty(int block)
+    {
+        if (!blocks.containsKey(block)) {
+            throw new IllegalStateException("Block " + block + " is not cached");
+        }
+        dirty.add(block);
+    }
+
+    /**
+     * Drops a block from the cache without writing it back, and unpins it.
+     * Used when the block is freed.
+     * @param block     the block number
+     */
+    public void invalidate(int block)
+    {
+        blocks.remove(block);
+        dirty.remove(block);
+        pinned.clear(block);
+    }
+
+    /**
+     * Keeps a block in the cache, once read, until it is unpinned or
+     * invalidated.  Pinned blocks do not count against the capacity.
+     * @param block     the block number
+     */
+    public void pin(int block)
+    {
+        pinned.set(block);
+    }
+
+    /**
+     * Lets a pinned block be evicted again.
+     * @param block     the block number
+     */
+    public void unpin(int block)
+    {
+        pinned.clear(block);
+    }
+
+    /** Records the checksum of every dirty block, ready for a flush. */
+    public void recordChecksums()
+    {
+        for (Integer block : dirty) {
+            checksums.record(block, blocks.get(block));
+        }
+    }
+
+    /** Writes every dirty block back to the disk in ascending block order. */
+    public void flush()
+    {
+        for (Integer block : dirty) {
+            disk.write(block, blocks.get(block));
+        }
+        dirty.clear();
+        evict(-1);
+    }
+
+    /** Returns the number of lookups satisfied from the cache. */
+    public int hitCount()
+    {
+        return hits;
+    }
+
+    /** Returns the number of lookups that had to read the disk. */
+    public int missCount()
+    {
+        return misses;
+    }
+
+    private void insert(int block, byte[] buf)
+    {
+        blocks.put(block, buf);
+        evict(block);
+    }
+
+    /**
+     * Drops clean, unpinned blocks until the cache is within capacity.
+     * @param keep      a block that must stay cached, or -1
+     */
+    private void evict(int keep)
+    {
+        int excess = blocks.size() - residentLimit - pinned.cardinality() - capacity;
+        for (Iterator<Integer> it = blocks.keySet().iterator();
+             excess > 0 && it.hasNext(); ) {
+            Integer block = it.next();
+            if (block >= residentLimit && block != keep
+                    && !dirty.contains(block) && !pinned.get(block)) {
+                it.remove();
+                excess--;
+            }
+        }
+    }
+}
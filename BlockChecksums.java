@@ -0,0 +1,206 @@
+import java.util.*;
+import java.util.zip.CRC32C;
+
+/**
+ * BlockChecksums.java
+ * A table of CRC32C checksums, one per disk block, kept in a run of
+ * blocks of the file system it protects.
+ * <p>
+ * The table is held in memory and written back into its own blocks
+ * through the {@link BlockCache}, whose table blocks are pinned.  A block
+ * is recorded when it is written and checked when it is read from the
+ * disk; a block found in the cache is not checked again.  An entry of 0
+ * means the block has no checksum and is not checked, so a computed
+ * checksum of 0 is stored as 1.  The table does not cover block 0 nor its
+ * own blocks, which the file system protects in its superblock.
+ *
+ * @see FileSystem
+ * @see BlockCache
+ */
+public class BlockChecksums
+{
+    /** The number of checksums in a table block. */
+    public static final int PER_BLOCK = Disk.BLOCK_SIZE / 4;
+
+    /** The checksum of each block, or 0 if it has none. */
+    private final int[] sums;
+
+    /** The first block of the table, and its length in blocks. */
+    private final int tableStart;
+    private final int tableBlocks;
+
+    /** Table blocks changed since they were last stored. */
+    private final BitSet changed = new BitSet();
+
+    /**
+     * Creates an empty table.
+     * @param diskSize      the number of blocks to cover
+     * @param tableStart    the first block the table is stored in
+     */
+    public BlockChecksums(int diskSize, int tableStart)
+    {
+        this.sums = new int[diskSize];
+        this.tableStart = tableStart;
+        this.tableBlocks = tableBlocksFor(diskSize);
+    }
+
+    /** Returns the number of blocks a table for a disk takes up. */
+    public static int tableBlocksFor(int diskSize)
+    {
+        return (diskSize + PER_BLOCK - 1) / PER_BLOCK;
+    }
+
+    /**
+     * Computes the checksum of a block's contents.
+     * @param buf       a buffer of at least BLOCK_SIZE bytes
+     * @return          the checksum, never 0
+     */
+    public static int compute(byte[] buf)
+    {
+        return compute(buf, 0);
+    }
+
+    /**
+     * Computes the checksum of a block held in part of a larger buffer.
+     * @param buf       the buffer
+     * @param offset    where in it the block starts
+     * @return          the checksum, never 0
+     */
+    public static int compute(byte[] buf, int offset)
+    {
+        CRC32C crc = new CRC32C();
+        crc.update(buf, offset, Disk.BLOCK_SIZE);
+        int sum = (int) crc.getValue();
+        return sum == 0 ? 1 : sum;
+    }
+
+    /** Returns whether a block is covered by the table. */
+    public boolean covers(int block)
+    {
+        return block > 0 && (block < tableStart || block >= tableStart + tableBlocks);
+    }
+
+    /** Returns whether a block has a checksum recorded. */
+    public boolean has(int block)
+    {
+        return sums[block] != 0;
+    }
+
+    /**
+     * Records the checksum of a block about to be written.
+     * @param block     the block number
+     * @param buf       the block's new contents
+     */
+    public void record(int block, byte[] buf)
+    {
+        if (covers(block)) {
+            set(block, compute(buf));
+        }
+    }
+
+    /**
+     * Drops the checksum of a block that is freed or discarded.
+     * @param block     the block number
+     */
+    public void forget(int block)
+    {
+        if (sums[block] != 0) {
+            set(block, 0);
+        }
+    }
+
+    /** Drops every checksum, as for a newly formatted disk. */
+    public void clear()
+    {
+        Arrays.fill(sums, 0);
+        changed.set(0, tableBlocks);
+    }
+
+    /**
+     * Checks a block read from the disk against its checksum.
+     * @param block     the block number
+     * @param buf       the contents read
+     * @return          true if they match or the block has no checksum
+     */
+    public boolean matches(int block, byte[] buf)
+    {
+        return matches(block, buf, 0);
+    }
+
+    /**
+     * Checks a block read into part of a larger buffer against its
+     * checksum.
+     * @param block     the block number
+     * @param buf       the buffer
+     * @param offset    where in it the block starts
+     * @return          true if they match or the block has no checksum
+     */
+    public boolean matches(int block, byte[] buf, int offset)
+    {
+        return sums[block] == 0 || sums[block] == compute(buf, offset);
+    }
+
+    /**
+     * Checks a block read from the disk against its checksum.
+     * @param block     the block number
+     * @param buf       the contents read
+     * @throws IllegalStateException if they do not match
+     */
+    public void verify(int block, byte[] buf)
+    {
+        verify(block, buf, 0);
+    }
+
+    /**
+     * Checks a block read into part of a larger buffer against its
+     * checksum.
+     * @param block     the block number
+     * @param buf       the buffer
+     * @param offset    where in it the block starts
+     * @throws IllegalStateException if they do not match
+     */
+    public void verify(int block, byte[] buf, int offset)
+    {
+        if (!matches(block, buf, offset)) {
+            throw new IllegalStateException("Block " + block + " fails its checksum");
+        }
+    }
+
+    /**
+     * Loads the checksums held in one block of the table.
+     * @param index     the index of the table block
+     * @param buf       its contents
+     */
+    public void load(int index, byte[] buf)
+    {
+        int first = index * PER_BLOCK;
+        for (int i = 0; i < PER_BLOCK && first + i < sums.length; i++) {
+            sums[first + i] = Utilities.unpackInt(buf, 4 * i);
+        }
+        changed.clear(index);
+    }
+
+    /**
+     * Copies the changed parts of the table into its cached blocks and
+     * marks them dirty, ready for the cache to be flushed.
+     * @param cache     the cache holding the table blocks
+     */
+    public void store(BlockCache cache)
+    {
+        for (int index = changed.nextSetBit(0); index >= 0; index = changed.nextSetBit(index + 1)) {
+            byte[] buf = cache.get(tableStart + index);
+            int first = index * PER_BLOCK;
+            for (int i = 0; i < PER_BLOCK; i++) {
+                Utilities.pack(first + i < sums.length ? sums[first + i] : 0, buf, 4 * i);
+            }
+            cache.markDirty(tableStart + index);
+        }
+        changed.clear();
+    }
+
+    private void set(int block, int sum)
+    {
+        sums[block] = sum;
+        changed.set(block / PER_BLOCK);
+    }
+}
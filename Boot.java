@@ -13,15 +13,29 @@ import java.util.*;
  * <ul>
  * <li> a numeric parameter to pass to the Kernel's POWER_ON interrupt.
  *      The kernel stores this number in its bufferSize field.
- * <li> the name of a class that implements the disk,
+ * <li> the name of a class that implements the disk, or an array of
+ *      disks: a striped array written as a comma-separated list of member
+ *      class names with an optional stripe size in blocks, such as
+ *      Disk,Disk,Disk@16, or a mirrored array written as a plus-separated
+ *      list, such as Disk+Disk.  Each member of an array must be a Disk,
  * <li> the size of the disk, in blocks,
  * <li> the name of shell program, and
  *      any arguments to the shell program.
  * </ul>
  * <p>
- * An example invocation is
+ * The Shell keeps its file system on the disk, so the disk must be a
+ * FastDisk or an array, whose requests are done when they return, of
+ * FileSystem.DISK_SIZE blocks.  An example invocation is
  * <pre>
- *    java Boot 10 Disk 100 Shell
+ *    java Boot 10 FastDisk 1024 Shell
+ * </pre>
+ * and one with a disk of the same size striped across four members is
+ * <pre>
+ *    java Boot 10 Disk,Disk,Disk,Disk 1024 Shell
+ * </pre>
+ * and one with two mirrored copies of it is
+ * <pre>
+ *    java Boot 10 Disk+Disk 1024 Shell
  * </pre>
  *
  * @see Kernel
@@ -43,6 +57,48 @@ public class Boot {
         System.exit(-1);
     } // usage
 
+    /** Makes an array of disks.
+     * @param spec the member class names, separated by commas for a
+     * striped array, optionally followed by '@' and the stripe size in
+     * blocks, or by plus signs for a mirrored array.
+     * @param diskSize the size of the whole array, in blocks.
+     * @return the array.
+     * @throws IllegalArgumentException if the spec is malformed; the
+     * message says why.
+     */
+    static Disk makeArray(String spec, int diskSize) {
+        int stripe = StripedDisk.DEFAULT_STRIPE;
+        int at = spec.indexOf('@');
+        if (at >= 0) {
+            try {
+                stripe = Integer.parseInt(spec.substring(at + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(spec + ": bad stripe size");
+            }
+            spec = spec.substring(0, at);
+        }
+        if (stripe < 1) {
+            throw new IllegalArgumentException(
+                    stripe + ": the stripe size must be at least one block");
+        }
+        boolean mirrored = spec.indexOf('+') >= 0;
+        if (mirrored && (at >= 0 || spec.indexOf(',') >= 0)) {
+            throw new IllegalArgumentException(
+                    spec + ": an array is either striped or mirrored");
+        }
+        String names[] = spec.split(mirrored ? "\\+" : ",");
+        for (String name : names) {
+            if (!name.equals("Disk")) {
+                throw new IllegalArgumentException(
+                        name + ": each member of an array must be a Disk");
+            }
+        }
+        if (mirrored) {
+            return new MirroredDisk(diskSize, names.length);
+        }
+        return new StripedDisk(diskSize, names.length, stripe);
+    } // makeArray
+
     /** The main program.
      * @param args the command-line arguments
      */
@@ -61,30 +117,42 @@ public class Boot {
 
         // Create a Disk drive and start it spinning
         Object disk = null;
-        try {
-            Class diskClass = Class.forName(diskName);
-            Constructor ctor
-                    = diskClass.getConstructor(new Class[] { Integer.TYPE });
-            disk = ctor.newInstance(new Object[] { Integer.valueOf(diskSize) });
-            if (! (disk instanceof Disk)) {
-                pl(diskName + " is not a subclass of Disk");
+        if (diskName.indexOf(',') >= 0 || diskName.indexOf('@') >= 0
+                || diskName.indexOf('+') >= 0)
+        {
+            // An array, whose members run threads of their own
+            try {
+                disk = makeArray(diskName, diskSize);
+            } catch (IllegalArgumentException e) {
+                pl(e.getMessage());
                 usage();
             }
-            if (!diskName.equals("FastDisk")) {
-                new Thread((Disk) disk, "DISK").start();
+        } else {
+            try {
+                Class diskClass = Class.forName(diskName);
+                Constructor ctor
+                        = diskClass.getConstructor(new Class[] { Integer.TYPE });
+                disk = ctor.newInstance(new Object[] { Integer.valueOf(diskSize) });
+                if (! (disk instanceof Disk)) {
+                    pl(diskName + " is not a subclass of Disk");
+                    usage();
+                }
+                if (!(disk instanceof FastDisk)) {
+                    new Thread((Disk) disk, "DISK").start();
+                }
+            } catch (ClassNotFoundException e) {
+                pl(diskName + ": class not found");
+                usage();
+            } catch (NoSuchMethodException e) {
+                pl(diskName + "(int): no such constructor");
+                usage();
+            } catch (InvocationTargetException e) {
+                pl(diskName + ": " + e.getTargetException());
+                usage();
+            } catch (Exception e) {
+                pl(diskName + ": " + e);
+                usage();
             }
-        } catch (ClassNotFoundException e) {
-            pl(diskName + ": class not found");
-            usage();
-        } catch (NoSuchMethodException e) {
-            pl(diskName + "(int): no such constructor");
-            usage();
-        } catch (InvocationTargetException e) {
-            pl(diskName + ": " + e.getTargetException());
-            usage();
-        } catch (Exception e) {
-            pl(diskName + ": " + e);
-            usage();
         }
         pl("Boot: Starting kernel.");
 
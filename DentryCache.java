@@ -0,0 +1,124 @@
+import java.util.*;
+
+/**
+ * DentryCache.java
+ * A bounded cache of name lookups, mapping a name within a directory to
+ * the inode it names.
+ * <p>
+ * The cache holds negative entries as well as positive ones, so that a
+ * lookup of a name known to be absent is answered without scanning the
+ * directory again.  Entries are kept in least-recently-used order and the
+ * oldest is dropped once the cache is full.  The file system must record
+ * every name it adds or removes here, or clear the cache, so that no entry
+ * goes stale.
+ *
+ * @see FileSystem
+ */
+public class DentryCache
+{
+    /** The inode number recorded for a name that is known to be absent. */
+    public static final int ABSENT = -1;
+
+    /** The number of entries the cache holds. */
+    private final int capacity;
+
+    /** Cached lookups, in access order. */
+    private final LinkedHashMap<Key, Integer> entries;
+
+    /** Counts of lookups answered with and without a cached entry. */
+    private int hits, misses;
+
+    /**
+     * Creates a new cache.
+     * @param capacity      the number of names to remember
+     */
+    public DentryCache(int capacity)
+    {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<Key, Integer>(16, 0.75f, true)
+        {
+            protected boolean removeEldestEntry(Map.Entry<Key, Integer> eldest)
+            {
+                return size() > DentryCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Looks up a name.
+     * @param dir       the inode number of the directory
+     * @param name      the encoded name
+     * @return          the inode number, ABSENT if the name is known not to
+     *                  exist, or null if the cache does not know
+     */
+    public Integer get(int dir, byte[] name)
+    {
+        Integer ino = entries.get(new Key(dir, name));
+        if (ino != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return ino;
+    }
+
+    /**
+     * Records the result of a lookup, or a name added or removed.
+     * @param dir       the inode number of the directory
+     * @param name      the encoded name
+     * @param ino       the inode number, or ABSENT
+     */
+    public void put(int dir, byte[] name, int ino)
+    {
+        if (capacity > 0) {
+            entries.put(new Key(dir, name), ino);
+        }
+    }
+
+    /** Forgets every entry.  Used when the file system is formatted. */
+    public void clear()
+    {
+        entries.clear();
+    }
+
+    /** Returns the number of lookups answered from the cache. */
+    public int hitCount()
+    {
+        return hits;
+    }
+
+    /** Returns the number of lookups the cache could not answer. */
+    public int missCount()
+    {
+        return misses;
+    }
+
+    /** A directory and a name within it. */
+    private static final class Key
+    {
+        private final int dir;
+        private final byte[] name;
+        private final int hash;
+
+        Key(int dir, byte[] name)
+        {
+            this.dir = dir;
+            this.name = name;
+            this.hash = 31 * dir + Arrays.hashCode(name);
+        }
+
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return dir == k.dir && Arrays.equals(name, k.name);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * DirEntryView.java
+ * A flyweight accessor for one directory entry inside a cached block buffer.
+ * <p>
+ * Names are stored as NUL-padded bytes and compared in place, so searching
+ * a directory never decodes a String.  The same layout serves for the key
+ * records of a directory's B+tree nodes; see {@link DirNodeView}.
+ * <p>
+ * Record layout:
+ * <pre>
+ *     0   byte[30]  name, NUL padded
+ *    30   short     inode number, 0 meaning the slot is free
+ * </pre>
+ *
+ * @see InodeView
+ * @see FileSystem
+ */
+public class DirEntryView
+{
+    /** The size of one directory entry in bytes. */
+    public static final int SIZE = 32;
+
+    /** The longest name, in bytes, that fits in an entry. */
+    public static final int MAX_NAME = 30;
+
+    private static final int INODE_OFFSET = 30;
+
+    /** The buffer holding the entry. */
+    private byte[] buf;
+
+    /** The index of the first byte of the entry in buf. */
+    private int offset;
+
+    /**
+     * Points this view at an entry.
+     * @param buf       the block buffer containing the entry
+     * @param offset    the index of the first byte of the entry
+     * @return          this view
+     */
+    public DirEntryView wrap(byte[] buf, int offset)
+    {
+        this.buf = buf;
+        this.offset = offset;
+        return this;
+    }
+
+    /** Resets the entry to a free slot. */
+    public void clear()
+    {
+        java.util.Arrays.fill(buf, offset, offset + SIZE, (byte) 0);
+    }
+
+    public boolean isFree()
+    {
+        return inode() == 0;
+    }
+
+    public int inode()
+    {
+        return Utilities.unpackShort(buf, offset + INODE_OFFSET) & 0xffff;
+    }
+
+    public void setInode(int inode)
+    {
+        Utilities.pack((short) inode, buf, offset + INODE_OFFSET);
+    }
+
+    /** Returns the length of the stored name in bytes. */
+    public int nameLength()
+    {
+        int n = 0;
+        while (n < MAX_NAME && buf[offset + n] != 0) {
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Compares the stored name with an encoded name without decoding it.
+     * @param name      the encoded name, at most MAX_NAME bytes
+     * @return          true if the names are identical
+     */
+    public boolean nameEquals(byte[] name)
+    {
+        if (name.length < MAX_NAME && buf[offset + name.length] != 0) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (buf[offset + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Orders the stored name against an encoded name, comparing bytes as
+     * unsigned values, so that names sort in UTF-8 code point order.
+     * @param name      the encoded name, at most MAX_NAME bytes
+     * @return          negative, zero, or positive as the stored name is
+     *                  less than, equal to, or greater than name
+     */
+    public int compareName(byte[] name)
+    {
+        for (int i = 0; i < MAX_NAME; i++) {
+            int a = buf[offset + i] & 0xff;
+            int b = i < name.length ? name[i] & 0xff : 0;
+            if (a != b || a == 0) {
+                return a - b;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Tests whether the stored name begins with an encoded prefix.
+     * @param prefix    the encoded prefix, at most MAX_NAME bytes
+     * @return          true if the stored name starts with prefix
+     */
+    public boolean startsWith(byte[] prefix)
+    {
+        if (prefix.length > MAX_NAME) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buf[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stores an encoded name, padding the rest of the field with NULs.
+     * @param name      the encoded name, at most MAX_NAME bytes
+     */
+    public void setName(byte[] name)
+    {
+        System.arraycopy(name, 0, buf, offset, name.length);
+        java.util.Arrays.fill(buf, offset + name.length, offset + MAX_NAME, (byte) 0);
+    }
+
+    /** Copies out the stored name, without its NUL padding. */
+    public byte[] nameBytes()
+    {
+        return java.util.Arrays.copyOfRange(buf, offset, offset + nameLength());
+    }
+
+    /**
+     * Tests whether the stored name is one a directory may hold: not empty,
+     * without '/', and padded to the end of the field with NULs only.
+     */
+    public boolean hasValidName()
+    {
+        int n = nameLength();
+        if (n == 0) {
+            return false;
+        }
+        for (int i = 0; i < MAX_NAME; i++) {
+            byte b = buf[offset + i];
+            if (i < n ? b == '/' : b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Decodes the stored name.  This allocates; use it only for display. */
+    public String name()
+    {
+        return new String(buf, offset, nameLength(),
+                java.nio.charset.StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * DirNodeView.java
+ * A flyweight accessor for one node of a directory's B+tree, held in a
+ * cached block buffer.
+ * <p>
+ * A node is an array of 32-byte records.  The first record is a header
+ * and the rest are key records laid out as {@link DirEntryView}s, sorted
+ * by name.  In a leaf, each record is a directory entry.  In an internal
+ * node, each record holds a separator name and, in place of the inode
+ * number, the block of the child holding the names at or after the
+ * separator; the header holds the child for the names before the first
+ * separator.  A zero-filled block is an empty leaf.
+ * <p>
+ * Header layout (all fields little-endian):
+ * <pre>
+ *     0   short   0 for a leaf, 1 for an internal node
+ *     2   short   number of key records
+ *     4   short   leaf: the next leaf in name order, or 0
+ *     6   short   internal: the first child
+ * </pre>
+ *
+ * @see DirEntryView
+ * @see FileSystem
+ */
+public class DirNodeView
+{
+    /** The number of key records that fit in a node. */
+    public static final int MAX_KEYS = Disk.BLOCK_SIZE / DirEntryView.SIZE - 1;
+
+    private static final int KIND_OFFSET = 0;
+    private static final int COUNT_OFFSET = 2;
+    private static final int NEXT_OFFSET = 4;
+    private static final int FIRST_CHILD_OFFSET = 6;
+
+    private static final int KIND_INTERNAL = 1;
+
+    /** The buffer holding the node. */
+    private byte[] buf;
+
+    /** Scratch view for comparing keys. */
+    private final DirEntryView key = new DirEntryView();
+
+    /**
+     * Points this view at a node.
+     * @param buf       the block buffer holding the node
+     * @return          this view
+     */
+    public DirNodeView wrap(byte[] buf)
+    {
+        this.buf = buf;
+        return this;
+    }
+
+    /** Resets the node to an empty leaf. */
+    public void clear()
+    {
+        java.util.Arrays.fill(buf, (byte) 0);
+    }
+
+    public boolean isLeaf()
+    {
+        return Utilities.unpackShort(buf, KIND_OFFSET) != KIND_INTERNAL;
+    }
+
+    public void setLeaf(boolean leaf)
+    {
+        Utilities.pack((short) (leaf ? 0 : KIND_INTERNAL), buf, KIND_OFFSET);
+    }
+
+    /** Returns the number of key records in the node. */
+    public int count()
+    {
+        return Utilities.unpackShort(buf, COUNT_OFFSET) & 0xffff;
+    }
+
+    public void setCount(int count)
+    {
+        Utilities.pack((short) count, buf, COUNT_OFFSET);
+    }
+
+    public int next()
+    {
+        return Utilities.unpackShort(buf, NEXT_OFFSET) & 0xffff;
+    }
+
+    public void setNext(int block)
+    {
+        Utilities.pack((short) block, buf, NEXT_OFFSET);
+    }
+
+    public void setFirstChild(int block)
+    {
+        Utilities.pack((short) block, buf, FIRST_CHILD_OFFSET);
+    }
+
+    /**
+     * Returns a child of an internal node.
+     * @param index     0 for the first child, or i + 1 for the child
+     *                  following key record i
+     * @return          the child's block number
+     */
+    public int child(int index)
+    {
+        if (index == 0) {
+            return Utilities.unpackShort(buf, FIRST_CHILD_OFFSET) & 0xffff;
+        }
+        return key.wrap(buf, offset(index - 1)).inode();
+    }
+
+    /** Returns the index in the buffer of the first byte of a key record. */
+    public static int offset(int index)
+    {
+        return (index + 1) * DirEntryView.SIZE;
+    }
+
+    /**
+     * Points an entry view at a key record.
+     * @param view      the view to position
+     * @param index     the record index, less than count()
+     * @return          the view
+     */
+    public DirEntryView entry(DirEntryView view, int index)
+    {
+        return view.wrap(buf, offset(index));
+    }
+
+    /**
+     * Finds the first key record whose name is not less than a name.
+     * @param name      the encoded name
+     * @return          the record index, or count() if every name is less
+     */
+    public int lowerBound(byte[] name)
+    {
+        int lo = 0, hi = count();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (key.wrap(buf, offset(mid)).compareName(name) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Finds the first key record whose name is greater than a name.  In an
+     * internal node this is also the index of the child to descend into.
+     * @param name      the encoded name
+     * @return          the record index, or count() if no name is greater
+     */
+    public int upperBound(byte[] name)
+    {
+        int lo = 0, hi = count();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (key.wrap(buf, offset(mid)).compareName(name) <= 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Opens a cleared record at an index, shifting the records after it
+     * up by one.  The node must not be full.
+     * @param index     the index of the new record
+     */
+    public void insertAt(int index)
+    {
+        int count = count();
+        System.arraycopy(buf, offset(index), buf, offset(index + 1),
+                (count - index) * DirEntryView.SIZE);
+        key.wrap(buf, offset(index)).clear();
+        setCount(count + 1);
+    }
+
+    /**
+     * Removes a record, shifting the records after it down by one.
+     * @param index     the index of the record to remove
+     */
+    public void removeAt(int index)
+    {
+        int count = count();
+        System.arraycopy(buf, offset(index + 1), buf, offset(index),
+                (count - index - 1) * DirEntryView.SIZE);
+        key.wrap(buf, offset(count - 1)).clear();
+        setCount(count - 1);
+    }
+
+    /**
+     * Moves the records from an index onwards to the start of another,
+     * empty node, leaving the records before the index in this one.
+     * @param index     the index of the first record to move
+     * @param to        the node receiving the records
+     */
+    public void moveTail(int index, DirNodeView to)
+    {
+        int count = count();
+        int n = count - index;
+        System.arraycopy(buf, offset(index), to.buf, offset(0), n * DirEntryView.SIZE);
+        java.util.Arrays.fill(buf, offset(index), offset(count), (byte) 0);
+        setCount(index);
+        to.setCount(n);
+    }
+}
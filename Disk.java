@@ -1,32 +1,54 @@
 /* $Id: Disk.java,v 1.13 2004/03/31 17:36:35 solomon Exp solomon $ */
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.BitSet;
 
 /** A software simulation of a Disk.
  * <p>
- * <b>You may not change this class.</b>
- * <p>
- * This disk is slow and ornery.
+ * This disk is slow and ornery.  It is also the base of the other disks:
+ * {@link FastDisk} and the arrays built on it, and {@link MemberDisk}.
+ * Changes here reach all of them, so they must keep the timing and the
+ * file format those disks rely on.
  * It contains a number of blocks, all BLOCK_SIZE bytes long.
  * All operations occur on individual blocks.
  * You can't modify any more or any less data at a time.
  * <p>
- * To read or write from the disk, call beginRead() or beginWrite().
+ * To read or write from the disk, call read() or write().
  * Each of these functions will start the action and return immediately.
  * When the action has been completed, the Disk calls Kernel.interrupt()
  * to let you know the Disk is ready for more.
  * <p>
  * It may take a while for the disk to seek from one block to another.
  * Seek time is proportional to the difference in block numbers of the
- * blocks.
+ * blocks.  Normally the disk sleeps through each request; once the
+ * {@link VirtualClock} is enabled it advances the clock instead and does
+ * not wait at all.
+ * <p>
+ * A block that is no longer needed may be discarded (trimmed).  Discarding
+ * takes no time and moves no data; the block simply reads as zeros until
+ * it is written again.
  * <p>
- * <b>Warning:</b> Don't call beginRead() or beginWrite() while the
+ * <b>Warning:</b> Don't call read() or write() while the
  * disk is busy! If you don't treat
  * the Disk gently, the system will crash! (Just like a real machine!)
  * <p>
  * This disk saves its contents in the Unix file DISK between runs.
  * Since the file can be large, you should get in the habit of removing it
  * before logging off.
+ * Blocks are brought into memory only when they are first touched, so a
+ * large disk starts instantly and untouched blocks take no memory.
+ * <p>
+ * A disk can be frozen at any moment with snapshot().  Taking a snapshot
+ * copies nothing; blocks are copied only as they are later overwritten,
+ * so the snapshot can be read, saved, or restored while the disk carries
+ * on.
+ * <p>
+ * The requests made of a disk can be logged to a {@link DiskTrace} with
+ * setTrace(), to be played back later by {@link TraceReplay}.
  *
  * @see Kernel
  */
@@ -39,13 +61,43 @@ public class Disk implements Runnable {
     /** Total size of this disk, in blocks. */
     public final int DISK_SIZE;
 
+    /** The name of the file this disk is saved in, or null if it is not
+     * saved.
+     */
+    private final String fileName;
+
+    /** The number of bytes a {@link MemberDisk} may keep after the blocks
+     * in its file, to stamp the file with a generation.
+     */
+    protected static final int STAMP_SIZE = 8;
+
     /////////////////////////////////////////// Transient internal state
 
     /** Current location of the read/write head */
     protected int currentBlock = 0;
 
-    /** The data stored on the disk */
-    protected byte data[];
+    /** The data stored on the disk, one array per block.
+     * An entry is null until the block is first touched.
+     */
+    protected byte blocks[][];
+
+    /** The blocks that currently have an entry in blocks. */
+    protected BitSet resident = new BitSet();
+
+    /** An indication that blocks and discarded are shared with a snapshot
+     * and must be copied before they are modified.
+     */
+    private boolean shared;
+
+    /** The blocks whose arrays belong to this disk alone, rather than being
+     * shared with a snapshot.  Only meaningful once a snapshot was taken.
+     */
+    private BitSet owned;
+
+    /** The DISK file this disk was restored from, or null for a new disk.
+     * Blocks that are not resident are paged in from it on demand.
+     */
+    private FileChannel image;
 
     /** An indication of whether an I/O operation is currently in progress. */
     protected boolean busy;
@@ -76,6 +128,28 @@ public class Disk implements Runnable {
     /** A count of write operations performed, for statistics. */
     protected int writeCount;
 
+    /** A count of discard operations performed, for statistics. */
+    protected int discardCount;
+
+    /** Blocks that have been discarded and not written since.
+     * These blocks are never resident.
+     */
+    protected BitSet discarded = new BitSet();
+
+    /** The trace this disk's requests are logged to, or null. */
+    private volatile DiskTrace trace;
+
+    /** The simulated time the current request arrived, in nanoseconds.
+     * Only meaningful if busy == true and the VirtualClock is enabled.
+     */
+    protected long arrivalTime;
+
+    /** The simulated time the disk finishes its last request. */
+    private long freeTime;
+
+    /** The simulated time the disk has spent serving requests. */
+    private long busyTime;
+
     /////////////////////////////////////////// Inner classes
 
     /** The exception thrown when an illegal operation is attempted on the
@@ -87,90 +161,345 @@ public class Disk implements Runnable {
         }
     }
 
+    /** A frozen, read-only image of a Disk.
+     * A Snapshot shares unmodified blocks with the disk it was taken from.
+     * The disk copies any table it shares with a snapshot before changing
+     * it, so a snapshot may be read from any thread without locking.
+     * @see Disk#snapshot()
+     */
+    public static class Snapshot {
+        /** Total size of the snapshot, in blocks. */
+        public final int DISK_SIZE;
+
+        private final byte blocks[][];
+        private final BitSet discarded;
+        private final FileChannel image;
+
+        private Snapshot(int size, byte blocks[][], BitSet discarded,
+                         FileChannel image) {
+            this.DISK_SIZE = size;
+            this.blocks = blocks;
+            this.discarded = discarded;
+            this.image = image;
+        }
+
+        /** Reads a block as it was when the snapshot was taken.
+         * The read completes immediately.
+         * @param blockNumber The block number to read from.
+         * @param buffer A data area of at least BLOCK_SIZE bytes.
+         */
+        public void read(int blockNumber, byte buffer[]) {
+            if (blockNumber < 0 || blockNumber >= DISK_SIZE
+                    || buffer == null || buffer.length < BLOCK_SIZE) {
+                throw new DiskException("Illegal snapshot read request: "
+                        + " block number " + blockNumber
+                        + " buffer " + buffer);
+            }
+            if (discarded.get(blockNumber)) {
+                Arrays.fill(buffer, 0, BLOCK_SIZE, (byte) 0);
+            } else if (blocks[blockNumber] != null) {
+                System.arraycopy(blocks[blockNumber], 0, buffer, 0, BLOCK_SIZE);
+            } else {
+                load(image, blockNumber, buffer);
+            }
+        } // read
+
+        /** Saves the snapshot to a file in the same format as DISK.
+         * @param fileName the name of the file to write.
+         */
+        public void save(String fileName) throws IOException {
+            writeImage(Paths.get(fileName), DISK_SIZE, blocks, discarded, image);
+        } // save
+    } // Snapshot
+
     /////////////////////////////////////////// Constructors
 
-    /** Creates a new Disk.
-     * If a Unix file named DISK exists in the local Unix directory, the
+    /** Creates a new Disk saved in the Unix file DISK.
+     * @param size the total size of this disk, in blocks.
+     * @see #Disk(int, String)
+     */
+    public Disk(int size) {
+        this(size, "DISK");
+    } // constructor
+
+    /** Creates a new Disk saved in a given Unix file.
+     * If the file exists in the local Unix directory, the
      * simulated disk contents are initialized from the Unix file.
-     * It is an error if the DISK file exists but its size does not match
-     * "size".
-     * If there is no DISK file, the first block of the simulated disk is
+     * It is an error if the file exists but its size does not match
+     * "size", allowing for a stamp of STAMP_SIZE bytes after the blocks.
+     * If there is no such file, the first block of the simulated disk is
      * cleared to nulls and the rest is filled with random junk.
+     * In either case no block is actually loaded or filled until it is
+     * first used.
      *
      * @param size the total size of this disk, in blocks.
+     * @param fileName the name of the file, or null for a disk that starts
+     * out new and is never saved.
      */
-    public Disk(int size) {
-        File diskName = new File("DISK");
-        if (diskName.exists()) {
-            if (diskName.length() != size * BLOCK_SIZE) {
+    public Disk(int size, String fileName) {
+        File diskName = fileName == null ? null : new File(fileName);
+        if (diskName != null && diskName.exists()) {
+            long length = diskName.length();
+            if (length != (long) size * BLOCK_SIZE
+                    && length != (long) size * BLOCK_SIZE + STAMP_SIZE) {
                 throw new DiskException(
-                        "File DISK exists but is the wrong size");
+                        "File " + fileName + " exists but is the wrong size");
             }
         }
         this.DISK_SIZE = size;
+        this.fileName = fileName;
         if (size < 1) {
             throw new DiskException("A disk must have at least one block!");
         }
         // NOTE:  the "new" operator always clears the result object to nulls
-        data = new byte[DISK_SIZE * BLOCK_SIZE];
-        int count = BLOCK_SIZE;
-        try {
-            FileInputStream is = new FileInputStream("DISK");
-            is.read(data);
-            System.out.println("Restored " + count + " bytes from file DISK");
-            is.close();
-            return;
-        } catch (FileNotFoundException e) {
+        blocks = new byte[DISK_SIZE][];
+        if (diskName == null || !diskName.exists()) {
             System.out.println("Creating new disk");
+            return;
+        }
+        try {
+            image = FileChannel.open(diskName.toPath(), StandardOpenOption.READ);
+            System.out.println("Restored " + (long) DISK_SIZE * BLOCK_SIZE
+                    + " bytes from file " + fileName);
         } catch (Exception e) {
             e.printStackTrace();
             System.exit(1);
         }
-        byte[] junk = new byte[BLOCK_SIZE];
+    } // constructor
+
+    /** The contents of a block of a new disk that has never been written. */
+    private static final byte[] JUNK = new byte[BLOCK_SIZE];
+    static {
         for (int i = 0; i < BLOCK_SIZE; ) {
-            junk[i++] = 74;
-            junk[i++] = 85;
-            junk[i++] = 78;
-            junk[i++] = 75;
-        }
-        for (int i = 1; i < DISK_SIZE; i++) {
-            System.arraycopy(
-                    junk, 0,
-                    data, i * BLOCK_SIZE,
-                    BLOCK_SIZE);
+            JUNK[i++] = 74;
+            JUNK[i++] = 85;
+            JUNK[i++] = 78;
+            JUNK[i++] = 75;
         }
-    } // constructor
+    }
 
     /////////////////////////////////////////// Methods
 
     /** Saves the contents of this Disk.
-     * The contents of this disk will be forced out to a file named
-     * DISK so that they can be restored on the next run of this program.
-     * This file could be quite big, so delete it before you log out.
+     * The contents of this disk will be forced out to its file (normally
+     * DISK) so that they can be restored on the next run of this program.
+     * The file is written sparsely: blocks that are discarded or all zeros
+     * are skipped, so on most host file systems they take no space.
      * Also prints some statistics on disk operations.
      */
     public void flush() {
         try {
-            System.out.println("Saving contents to DISK file...");
-            FileOutputStream os = new FileOutputStream("DISK");
-            os.write(data);
-            os.close();
-            System.out.println(readCount + " read operations and "
-                    + writeCount + " write operations performed");
+            if (fileName != null) {
+                System.out.println("Saving contents to " + fileName + " file...");
+                writeImage(Paths.get(fileName), DISK_SIZE, blocks, discarded, image);
+            }
+            System.out.println(readCount + " read operations, "
+                    + writeCount + " write operations and "
+                    + discardCount + " discard operations performed");
+            if (VirtualClock.isEnabled()) {
+                System.out.printf("%.3f s of simulated time spent busy%n",
+                        busyTime / 1e9);
+            }
         } catch(Exception e) {
             e.printStackTrace();
             System.exit(1);
         }
     } // flush
 
-    /** Sleeps for a while to simulate the delay in seeking and transferring
-     * data.
+    /** Writes a disk image to a file.
+     * A fresh file is written and renamed over the old one, so that blocks
+     * that were never paged in can still be copied from the old file.
+     * Blocks that are discarded or all zeros are left as holes.
+     * @param target the file to write.
+     * @param size the number of blocks in the image.
+     * @param blocks the in-memory blocks; null entries are not resident.
+     * @param discarded the blocks to leave as holes.
+     * @param image the file holding non-resident blocks, or null.
+     */
+    private static void writeImage(Path target, int size, byte blocks[][],
+                                   BitSet discarded, FileChannel image)
+            throws IOException
+    {
+        Path temp = Paths.get(target + ".tmp");
+        RandomAccessFile os = new RandomAccessFile(temp.toFile(), "rw");
+        os.setLength(0);
+        os.setLength((long) size * BLOCK_SIZE);
+        byte[] buffer = new byte[BLOCK_SIZE];
+        for (int i = 0; i < size; i++) {
+            if (discarded.get(i)) {
+                continue;
+            }
+            byte[] block = blocks[i];
+            if (block == null) {
+                block = buffer;
+                load(image, i, block);
+            }
+            if (!isZero(block)) {
+                os.seek((long) i * BLOCK_SIZE);
+                os.write(block);
+            }
+        }
+        os.close();
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+    } // writeImage
+
+    /** Checks whether a block holds only zeros.
+     * @param block The contents of the block.
+     */
+    private static boolean isZero(byte block[]) {
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            if (block[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    } // isZero
+
+    /** Fills a buffer with the initial contents of a block that has never
+     * been paged in: its contents in the DISK file, or for a new disk,
+     * nulls for block 0 and junk for the rest.
+     * @param image The DISK file, or null for a new disk.
+     * @param blockNumber The block number to load.
+     * @param buffer A data area of at least BLOCK_SIZE bytes.
+     */
+    private static void load(FileChannel image, int blockNumber, byte buffer[]) {
+        if (image == null) {
+            if (blockNumber == 0) {
+                Arrays.fill(buffer, 0, BLOCK_SIZE, (byte) 0);
+            } else {
+                System.arraycopy(JUNK, 0, buffer, 0, BLOCK_SIZE);
+            }
+            return;
+        }
+        try {
+            ByteBuffer bb = ByteBuffer.wrap(buffer, 0, BLOCK_SIZE);
+            long position = (long) blockNumber * BLOCK_SIZE;
+            while (bb.hasRemaining()) {
+                int n = image.read(bb, position + bb.position());
+                if (n < 0) {
+                    throw new EOFException();
+                }
+            }
+        } catch (IOException e) {
+            throw new DiskException("Cannot read block " + blockNumber
+                    + " from the disk file: " + e);
+        }
+    } // load
+
+    /** Returns the in-memory copy of a block, paging it in if needed.
+     * A block paged in goes into this disk's own table, never one shared
+     * with a snapshot, since a snapshot reads its table without holding
+     * the disk's lock.
+     * @param blockNumber The block number.
+     */
+    protected byte[] page(int blockNumber) {
+        byte[] block = blocks[blockNumber];
+        if (block == null) {
+            block = new byte[BLOCK_SIZE];
+            load(image, blockNumber, block);
+            unshare();
+            blocks[blockNumber] = block;
+            resident.set(blockNumber);
+            if (!shared && owned != null) {
+                owned.set(blockNumber);
+            }
+        }
+        return block;
+    } // page
+
+    /** Freezes the current contents of this disk.
+     * Nothing is copied now; the block table is copied on the next
+     * modification or page-in, and each block when it is next written or
+     * discarded.
+     * @return a read-only snapshot of the disk.
+     */
+    public synchronized Snapshot snapshot() {
+        if (busy) {
+            throw new DiskException("Disk snapshot attempted "
+                    + " while the disk was still busy.");
+        }
+        shared = true;
+        return new Snapshot(DISK_SIZE, blocks, discarded, image);
+    } // snapshot
+
+    /** Rolls this disk back to a snapshot taken from it.
+     * The snapshot remains valid and may be restored again.
+     * @param snapshot a snapshot previously returned by snapshot().
+     */
+    public synchronized void restore(Snapshot snapshot) {
+        if (snapshot.DISK_SIZE != DISK_SIZE || snapshot.image != image) {
+            throw new DiskException("Snapshot was taken from another disk");
+        }
+        if (busy) {
+            throw new DiskException("Disk restore attempted "
+                    + " while the disk was still busy.");
+        }
+        blocks = snapshot.blocks;
+        discarded = snapshot.discarded;
+        shared = true;
+        resident = new BitSet();
+        for (int i = 0; i < DISK_SIZE; i++) {
+            if (blocks[i] != null) {
+                resident.set(i);
+            }
+        }
+    } // restore
+
+    /** Starts or stops logging the requests made of this disk.
+     * The caller remains responsible for closing the trace.
+     * @param trace the trace to log to, or null to stop logging.
+     */
+    public void setTrace(DiskTrace trace) {
+        this.trace = trace;
+    } // setTrace
+
+    /** Logs a request to the trace, if there is one.
+     * @param op DiskTrace.READ, WRITE, or DISCARD.
+     * @param blockNumber the block requested.
+     */
+    protected final void trace(int op, int blockNumber) {
+        DiskTrace t = trace;
+        if (t != null) {
+            t.record(op, blockNumber);
+        }
+    } // trace
+
+    /** Gives this disk private copies of its block table and discard map
+     * if they are shared with a snapshot.
+     */
+    private void unshare() {
+        if (shared) {
+            blocks = blocks.clone();
+            discarded = (BitSet) discarded.clone();
+            owned = new BitSet();
+            shared = false;
+        }
+    } // unshare
+
+    /** Returns the time taken to seek to a block and transfer it: 10 ms,
+     * plus 1 ms for every 5 blocks the head moves.
+     * @param targetBlock the block number to which we have to seek.
+     * @return the time, in nanoseconds.
+     */
+    protected long serviceTime(int targetBlock) {
+        return 10_000_000L + Math.abs(targetBlock - currentBlock) * 200_000L;
+    } // serviceTime
+
+    /** Simulates the delay in seeking and transferring data: sleeps for
+     * it, or, if the VirtualClock is enabled, advances the clock to the
+     * moment the request finishes.
      * @param targetBlock the block number to which we have to seek.
      */
     protected void delay(int targetBlock) {
-        int sleepTime = 10 + Math.abs(targetBlock - currentBlock) / 5;
+        long service = serviceTime(targetBlock);
+        if (VirtualClock.isEnabled()) {
+            freeTime = Math.max(freeTime, arrivalTime) + service;
+            busyTime += service;
+            VirtualClock.advanceTo(freeTime);
+            return;
+        }
         try {
-            Thread.sleep(sleepTime);
+            Thread.sleep(service / 1_000_000, (int) (service % 1_000_000));
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -200,6 +529,8 @@ public class Disk implements Runnable {
                     + " while the disk was still busy.");
         }
 
+        trace(DiskTrace.READ, blockNumber);
+        arrivalTime = VirtualClock.nanoTime();
         isWriting = false;
         this.buffer = buffer;
         targetBlock = blockNumber;
@@ -232,6 +563,8 @@ public class Disk implements Runnable {
                     + " while the disk was still busy.");
         }
 
+        trace(DiskTrace.WRITE, blockNumber);
+        arrivalTime = VirtualClock.nanoTime();
         isWriting = true;
         this.buffer = buffer;
         targetBlock = blockNumber;
@@ -240,6 +573,132 @@ public class Disk implements Runnable {
         notify();
     } // beginWrite
 
+    /** Reads a block into part of a larger buffer.
+     * This version reads into a block of its own and copies that across
+     * when read returns, so it suits only a disk whose reads are complete
+     * by then, as those of the disks the FileSystem runs on are.  A disk
+     * that can copy straight into place overrides it.
+     * @param blockNumber The block number to read from.
+     * @param buffer A data area of at least offset + BLOCK_SIZE bytes.
+     * @param offset Where in the buffer the block goes.
+     */
+    public void read(int blockNumber, byte buffer[], int offset) {
+        if (offset == 0) {
+            read(blockNumber, buffer);
+            return;
+        }
+        byte block[] = new byte[BLOCK_SIZE];
+        read(blockNumber, block);
+        System.arraycopy(block, 0, buffer, offset, BLOCK_SIZE);
+    } // read(int, byte[], int)
+
+    /** Reads consecutive blocks into a buffer, block i of the run landing
+     * at offset + i * BLOCK_SIZE.
+     * This version reads them one at a time, so like read(int, byte[], int)
+     * it suits only a disk whose reads are complete on return.  A disk that
+     * can serve a run in one go overrides it.
+     * @param blockNumber The first block number to read from.
+     * @param count The number of blocks to read.
+     * @param buffer A data area of at least offset + count * BLOCK_SIZE bytes.
+     * @param offset Where in the buffer the first block goes.
+     */
+    public void readBlocks(int blockNumber, int count, byte buffer[], int offset) {
+        for (int i = 0; i < count; i++) {
+            read(blockNumber + i, buffer, offset + i * BLOCK_SIZE);
+        }
+    } // readBlocks
+
+    /** Writes consecutive blocks from a buffer, block i of the run coming
+     * from offset + i * BLOCK_SIZE.
+     * This version writes them one at a time through a block of its own,
+     * so it too suits only a disk whose writes are complete on return.
+     * @param blockNumber The first block number to write to.
+     * @param count The number of blocks to write.
+     * @param buffer A data area of at least offset + count * BLOCK_SIZE bytes.
+     * @param offset Where in the buffer the first block starts.
+     */
+    public void writeBlocks(int blockNumber, int count, byte buffer[], int offset) {
+        byte block[] = new byte[BLOCK_SIZE];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(buffer, offset + i * BLOCK_SIZE, block, 0, BLOCK_SIZE);
+            write(blockNumber + i, block);
+        }
+    } // writeBlocks
+
+    /** Discards a block.
+     * The block reads as zeros until it is next written.  Unlike read and
+     * write, a discard completes immediately: it neither moves the head nor
+     * causes an interrupt.
+     * @param blockNumber The block number to discard.
+     */
+    public synchronized void discard(int blockNumber) {
+        if (blockNumber < 0 || blockNumber >= DISK_SIZE) {
+            throw new DiskException("Illegal disk discard request: "
+                    + " block number " + blockNumber);
+        }
+
+        if (busy) {
+            throw new DiskException("Disk discard attempted "
+                    + " while the disk was still busy.");
+        }
+
+        trace(DiskTrace.DISCARD, blockNumber);
+        unshare();
+        discarded.set(blockNumber);
+        blocks[blockNumber] = null;
+        resident.clear(blockNumber);
+        discardCount++;
+    } // discard
+
+    /** Copies a block from the simulated medium into a buffer.
+     * Discarded blocks are returned as zeros.
+     * @param blockNumber The block number to read from.
+     * @param buffer A data area to hold the data read.
+     */
+    protected void copyOut(int blockNumber, byte buffer[]) {
+        copyOut(blockNumber, buffer, 0);
+    } // copyOut
+
+    /** Copies a block from the simulated medium into part of a buffer.
+     * @param blockNumber The block number to read from.
+     * @param buffer A data area to hold the data read.
+     * @param offset Where in the buffer the block goes.
+     */
+    protected void copyOut(int blockNumber, byte buffer[], int offset) {
+        if (discarded.get(blockNumber)) {
+            Arrays.fill(buffer, offset, offset + BLOCK_SIZE, (byte) 0);
+        } else {
+            System.arraycopy(
+                    page(blockNumber), 0,
+                    buffer, offset,
+                    BLOCK_SIZE);
+        }
+    } // copyOut
+
+    /** Copies a buffer onto a block of the simulated medium.
+     * @param blockNumber The block number to write to.
+     * @param buffer A data area containing the data to be written.
+     */
+    protected void copyIn(int blockNumber, byte buffer[]) {
+        // The whole block is overwritten, so there is no need to page it
+        // in, nor to copy it if a snapshot still uses the old array.
+        unshare();
+        byte[] block = blocks[blockNumber];
+        if (block == null || (owned != null && !owned.get(blockNumber))) {
+            block = new byte[BLOCK_SIZE];
+            blocks[blockNumber] = block;
+            resident.set(blockNumber);
+            if (owned != null) {
+                owned.set(blockNumber);
+            }
+        }
+        System.arraycopy(
+                buffer, 0,
+                block, 0,
+                BLOCK_SIZE);
+        discarded.clear(blockNumber);
+    } // copyIn
+
     /** Waits for a call to beginRead or beginWrite. */
     protected synchronized void waitForRequest() {
         while(!requestQueued) {
@@ -277,21 +736,18 @@ public class Disk implements Runnable {
         for (;;) {
             waitForRequest();
 
-            // Pause to do the operation
-            delay(targetBlock);
+            // Pause to do the operation.  A read of a discarded block is
+            // answered by the controller without touching the medium.
+            if (isWriting || !discarded.get(targetBlock)) {
+                delay(targetBlock);
+            }
 
             // Move the data.
             if (isWriting) {
-                System.arraycopy(
-                        buffer, 0,
-                        data, targetBlock * BLOCK_SIZE,
-                        BLOCK_SIZE);
+                copyIn(targetBlock, buffer);
                 writeCount++;
             } else {
-                System.arraycopy(
-                        data, targetBlock * BLOCK_SIZE,
-                        buffer, 0,
-                        BLOCK_SIZE);
+                copyOut(targetBlock, buffer);
                 readCount++;
             }
 
@@ -0,0 +1,205 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/** A recording of the requests made of a Disk, kept in a compact binary
+ * file.
+ * <p>
+ * Once a trace is attached to a disk with {@link Disk#setTrace}, each
+ * read, write, and discard the disk is asked to do is logged as it is
+ * issued.  The file starts with a 16-byte header (the magic number, the
+ * format version, and the disk size in blocks, as ints, then four unused
+ * bytes) followed by one 16-byte record per request:
+ * <pre>
+ *     0   long   nanoseconds since the trace started
+ *     8   int    block number
+ *    12   short  thread number, counting from 0 in order of first request
+ *    14   byte   READ, WRITE, or DISCARD
+ *    15   byte   unused
+ * </pre>
+ * Records are gathered in memory and written a few thousand at a time, so
+ * logging a request costs little more than a few stores.  A trace is
+ * played back by {@link TraceReplay}.
+ *
+ * @see TraceReplay
+ */
+public class DiskTrace {
+    /** Operation codes. */
+    public static final int READ = 0;
+    public static final int WRITE = 1;
+    public static final int DISCARD = 2;
+
+    /** The sizes of the header and of a record, in bytes. */
+    public static final int HEADER_SIZE = 16;
+    public static final int RECORD_SIZE = 16;
+
+    private static final int MAGIC = 0x44545243; // "DTRC"
+    private static final int VERSION = 1;
+
+    /** The number of records gathered before they are written out. */
+    private static final int BUFFER_RECORDS = 4096;
+
+    /** The contents of a trace file. */
+    public static final class Records {
+        /** The size of the traced disk, in blocks. */
+        public final int diskSize;
+
+        /** The number of records, and the fields of each. */
+        public final int count;
+        public final long time[];
+        public final int block[];
+        public final short thread[];
+        public final byte op[];
+
+        private Records(int diskSize, int count) {
+            this.diskSize = diskSize;
+            this.count = count;
+            time = new long[count];
+            block = new int[count];
+            thread = new short[count];
+            op = new byte[count];
+        }
+
+        /** Returns the number of threads that made requests. */
+        public int threadCount() {
+            int n = 0;
+            for (int i = 0; i < count; i++) {
+                n = Math.max(n, thread[i] + 1);
+            }
+            return n;
+        } // threadCount
+    } // Records
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer
+            = ByteBuffer.allocate(BUFFER_RECORDS * RECORD_SIZE);
+
+    /** The time the trace started, from System.nanoTime. */
+    private final long start = System.nanoTime();
+
+    /** The number given to each thread that has made a request. */
+    private final ThreadLocal<Short> threadNumber = new ThreadLocal<Short>();
+    private short threads;
+
+    private long count;
+    private boolean closed;
+
+    /** Creates a trace file, replacing any file of the same name.
+     * @param fileName the name of the file.
+     * @param diskSize the size of the disk to be traced, in blocks.
+     * @throws IOException if the file cannot be written.
+     */
+    public DiskTrace(String fileName, int diskSize) throws IOException {
+        channel = FileChannel.open(Paths.get(fileName),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(diskSize).putInt(0).flip();
+        write(header);
+    } // DiskTrace
+
+    /** Logs a request.  Called by the disk; does nothing once the trace
+     * is closed.
+     * @param op READ, WRITE, or DISCARD.
+     * @param blockNumber the block requested.
+     */
+    public void record(int op, int blockNumber) {
+        long time = System.nanoTime() - start;
+        Short thread = threadNumber.get();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (thread == null) {
+                thread = threads++;
+                threadNumber.set(thread);
+            }
+            buffer.putLong(time).putInt(blockNumber)
+                    .putShort(thread).put((byte) op).put((byte) 0);
+            count++;
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+        }
+    } // record
+
+    /** Returns the number of requests logged so far. */
+    public synchronized long recordCount() {
+        return count;
+    } // recordCount
+
+    /** Writes out the records still in memory and closes the file.
+     * Requests made after this are not logged.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        drain();
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("DiskTrace: " + e);
+        }
+    } // close
+
+    /** Writes the gathered records to the file.  A failure ends the
+     * trace rather than the request being traced.
+     */
+    private void drain() {
+        buffer.flip();
+        try {
+            write(buffer);
+        } catch (IOException e) {
+            System.err.println("DiskTrace: " + e + "; tracing stopped");
+            closed = true;
+        }
+        buffer.clear();
+    } // drain
+
+    private void write(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    } // write
+
+    /** Reads a whole trace file.
+     * @param fileName the name of the file.
+     * @return its records, in the order they were logged.
+     * @throws IOException if the file cannot be read or is not a trace,
+     * or if a record names no operation, a block off the disk, or a
+     * negative thread.
+     */
+    public static Records load(String fileName) throws IOException {
+        byte bytes[] = Files.readAllBytes(Paths.get(fileName));
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        if (bytes.length < HEADER_SIZE || in.getInt() != MAGIC) {
+            throw new IOException("not a disk trace");
+        }
+        if (in.getInt() != VERSION) {
+            throw new IOException("unknown trace version");
+        }
+        int diskSize = in.getInt();
+        if (diskSize <= 0) {
+            throw new IOException("corrupt trace");
+        }
+        in.getInt();
+        Records records = new Records(diskSize,
+                (bytes.length - HEADER_SIZE) / RECORD_SIZE);
+        for (int i = 0; i < records.count; i++) {
+            records.time[i] = in.getLong();
+            records.block[i] = in.getInt();
+            records.thread[i] = in.getShort();
+            records.op[i] = in.get();
+            in.get();
+            if (records.op[i] < READ || records.op[i] > DISCARD
+                    || records.block[i] < 0 || records.block[i] >= diskSize
+                    || records.thread[i] < 0) {
+                throw new IOException("corrupt trace");
+            }
+        }
+        return records;
+    } // load
+} // DiskTrace
@@ -1,142 +1,3486 @@
 
+    import java.nio.ByteBuffer;
+    import java.nio.charset.StandardCharsets;
+    import java.security.MessageDigest;
+    import java.security.NoSuchAlgorithmException;
+    import java.util.ArrayDeque;
+    import java.util.ArrayList;
     import java.util.Arrays;
+    import java.util.BitSet;
+    import java.util.HashMap;
+    import java.util.HashSet;
+    import java.util.concurrent.ForkJoinPool;
+    import java.util.concurrent.RecursiveAction;
+    import java.util.concurrent.atomic.AtomicIntegerArray;
+    import java.util.zip.DataFormatException;
+    import java.util.zip.Deflater;
+    import java.util.zip.Inflater;
 
+    /**
+     * A simple file system stored on a Disk.
+     * <p>
+     * Block 0 is the superblock, which holds a magic number and the free
+     * block bitmap.  Block 1 is the inode map, and blocks 2 through 9 hold
+     * a table of block checksums.  Every other block holds file data,
+     * directory nodes, indirect pointers, or part of the inode table.
+     * Inode 0 is the root directory, and directories may be nested; a path
+     * names a file by the directories leading to it, separated by '/'.
+     * <p>
+     * The inode table is not laid down at format time.  It is split into
+     * blocks of eight inodes, and the inode map records which disk block,
+     * if any, holds each of them; a block of the table is taken from the
+     * free space when one of its inodes is first needed, and given back
+     * when its last inode is freed.  So an empty disk spends no space on
+     * inodes, and a full one can hold up to 2048 files and directories.
+     * The blocks of the table that exist are kept in the cache for as
+     * long as the file system is mounted.
+     * <p>
+     * The data blocks are divided into eight block groups, and the inode
+     * table into as many equal runs of inodes, one per group.  A file's
+     * inode is taken from its directory's group and its blocks from the
+     * same group, each placed just after the block before it, so that a
+     * directory, its files, and their data sit close together and the disk
+     * head moves little between them.  Top-level directories are spread
+     * over the groups with the most free space.
+     * <p>
+     * Each directory is a B+tree of names, stored in the blocks of the
+     * directory's inode with the root in its first block (see
+     * {@link DirNodeView}).  A lookup reads one node per level, and leaves
+     * are linked in name order, so listings come out sorted and a listing
+     * of the names with a given prefix reads only the leaves that hold
+     * them.  All metadata is read and written in
+     * place through {@link InodeView} and {@link DirEntryView} flyweights over
+     * a {@link BlockCache}, and dirty metadata is written back at the end of
+     * each operation.  Name lookups, including lookups of names that do
+     * not exist, are remembered in a {@link DentryCache}.
+     * <p>
+     * A file may be marked for compression, in which case its contents are
+     * stored as a deflate stream whenever that saves at least one block.
+     * <p>
+     * A file of at most {@link InodeView#INLINE_CAPACITY} bytes keeps its
+     * data in its inode record, in place of the block pointers.  The inode
+     * table is always cached, so such a file is read and written without
+     * touching a data block, and eight of them share one block of the
+     * table, so the disk holds more small files than it has blocks.
+     * <p>
+     * With deduplication turned on, every data block written is looked up
+     * by its SHA-256 fingerprint, and a block identical to one already on
+     * disk is shared instead of stored again.  Shared blocks are reference
+     * counted and copied on write.
+     * <p>
+     * In log-structured mode, data blocks are never overwritten in place:
+     * each one written is appended at the head of a log that fills
+     * 32-block segments in order, and the file's block map (which, with
+     * the inode table always cached, serves as the inode map) is pointed
+     * at the new copy.  Metadata is written back only at a checkpoint
+     * every few operations, and the blocks left behind are freed then, so
+     * a run of updates to scattered files goes to the disk in one sweep.
+     * A cleaner thread moves the live blocks out of part-used segments to
+     * keep a few segments free for the log.  The public methods are
+     * synchronized with the cleaner, so a FileSystem may be used from
+     * several threads, but only one FileSystem should be mounted on a disk
+     * at a time.
+     * <p>
+     * {@link #check(boolean)} verifies the metadata on disk, scanning the
+     * inodes and their directory trees in parallel, and can repair most
+     * of what it finds.
+     * <p>
+     * Every block but the superblock and the checksum table has a CRC32C
+     * checksum in the table (see {@link BlockChecksums}), recorded when the
+     * block is written.  A block is checked each time it is read from the
+     * disk: data blocks on every read, metadata blocks only when they miss
+     * in the cache.  An operation that reads a block that fails its
+     * checksum fails with Kernel.ERROR_IO.  The table's own blocks are
+     * checked against checksums in the superblock when the file system is
+     * mounted, and the superblock against one of its own.
+     * <p>
+     * The number of free blocks, of files and directories, and the total
+     * size of the files are kept as running totals, updated as blocks are
+     * claimed and freed and files are created, resized, and deleted, and
+     * stored in the superblock at each checkpoint.  {@link #stat(int[])},
+     * and through it Kernel.SYSCALL_STATFS, reports them without scanning
+     * anything, and a check compares the stored totals with a recount.
+     */
     public class FileSystem {
         private static final int BLOCK_SIZE = Disk.BLOCK_SIZE;
-        private static final int FREE_MAP_BLOCKS = 14; // Reserved for free map
-        private static final int DISK_SIZE = 1024; // Number of blocks
+        public static final int DISK_SIZE = 1024; // Number of blocks
+
+        private static final int SUPER_BLOCK = 0;
+        private static final int INODE_MAP = 1;
+        private static final int CHECKSUM_START = INODE_MAP + 1; // 2
+        private static final int CHECKSUM_BLOCKS = BlockChecksums.tableBlocksFor(DISK_SIZE);
+        private static final int RESERVED_BLOCKS = CHECKSUM_START + CHECKSUM_BLOCKS; // 10
+
+        /** The inode table: up to INODE_BLOCKS blocks, one per short in the
+         * inode map, each holding INODES_PER_BLOCK inodes. */
+        private static final int INODE_BLOCKS = BLOCK_SIZE / 2;
+        private static final int INODES_PER_BLOCK = BLOCK_SIZE / InodeView.SIZE;
+        private static final int INODE_COUNT = INODE_BLOCKS * INODES_PER_BLOCK; // 2048
+        private static final int ENTRIES_PER_BLOCK = BLOCK_SIZE / DirEntryView.SIZE;
+        private static final int POINTERS_PER_BLOCK = BLOCK_SIZE / 2;
+        private static final int MAX_FILE_BLOCKS = InodeView.DIRECT_COUNT + POINTERS_PER_BLOCK;
+        private static final int MAX_FILE_SIZE = MAX_FILE_BLOCKS * BLOCK_SIZE;
+        private static final int ROOT_INODE = 0;
+
+        /** Block groups: the data blocks are split into GROUP_COUNT runs of
+         * GROUP_BLOCKS (the last one shorter), and the inodes into runs of
+         * INODES_PER_GROUP. */
+        private static final int GROUP_COUNT = 8;
+        private static final int GROUP_BLOCKS = (DISK_SIZE - RESERVED_BLOCKS + GROUP_COUNT - 1) / GROUP_COUNT;
+        private static final int INODES_PER_GROUP = INODE_COUNT / GROUP_COUNT;
+
+        /** Log segments: in log-structured mode the data blocks are split
+         * into runs of SEGMENT_BLOCKS (the last one shorter), filled in
+         * order.  The cleaner starts when fewer than CLEAN_LOW segments are
+         * entirely free and stops once there are CLEAN_HIGH. */
+        private static final int SEGMENT_BLOCKS = 32;
+        private static final int SEGMENT_COUNT = (DISK_SIZE - RESERVED_BLOCKS + SEGMENT_BLOCKS - 1) / SEGMENT_BLOCKS;
+        private static final int CLEAN_LOW = 3;
+        private static final int CLEAN_HIGH = 5;
+
+        /** In log-structured mode, metadata is written back at every
+         * CHECKPOINT_INTERVAL-th operation instead of after each one. */
+        private static final int CHECKPOINT_INTERVAL = 16;
+
+        /** What addNode returns when no inode is free, when no block is
+         * free for the inode table or the directory, and when the
+         * directory has as many blocks as a file can. */
+        private static final int NO_INODE = -1;
+        private static final int NO_SPACE = -2;
+        private static final int NO_ROOM = -3;
+
+        /** The most consecutive data blocks sent to the disk as one
+         * request. */
+        private static final int MAX_RUN = 32;
+
+        /** The most passes a defragmentation makes over the files. */
+        private static final int DEFRAG_PASSES = 4;
+
+        /** A bound on the height of a directory's B+tree, well above what
+         * INODE_COUNT names can need, for detecting a corrupt tree. */
+        private static final int MAX_TREE_DEPTH = 8;
+
+        /** Superblock layout. */
+        private static final int MAGIC = 0x46533034; // "FS04"
+        private static final int MAGIC_OFFSET = 0;
+        private static final int FEATURES_OFFSET = 4;
+        private static final int CHECKSUM_OFFSET = 8;        // of the superblock itself
+        private static final int COUNTS_OFFSET = 12;         // STAT_FREE, _FILES, _DIRS, _BYTES
+        private static final int TABLE_CHECKSUMS_OFFSET = 32; // of each checksum table block
+        private static final int BITMAP_OFFSET = 64;
+
+        /** Feature bits in the superblock. */
+        private static final int FEATURE_DEDUP = 0x0001;  // deduplicate new writes
+        private static final int FEATURE_SHARED = 0x0002; // blocks may be shared
+        private static final int FEATURE_LOG = 0x0004;    // append data to a log
+
+        /** Indexes of the counts filled in by stat(), and their number. */
+        public static final int STAT_BLOCKS = 0; // data blocks in all
+        public static final int STAT_USED = 1;   // data blocks in use
+        public static final int STAT_FREE = 2;   // data blocks free
+        public static final int STAT_FILES = 3;  // files, not counting directories
+        public static final int STAT_DIRS = 4;   // directories, counting the root
+        public static final int STAT_BYTES = 5;  // bytes in all the files
+        public static final int STAT_FIELDS = 6;
+
+        /** The most files and directories there can be, besides the root. */
+        public static final int MAX_FILES = INODE_COUNT - 1;
+
+        /** Number of evictable blocks in the metadata cache. */
+        private static final int DEFAULT_CACHE_SIZE = 32;
+
+        /** Number of names remembered by the lookup cache. */
+        private static final int DEFAULT_NAME_CACHE_SIZE = 64;
 
         private final Disk disk;
-        private boolean[] freeMap; // Tracks free/used blocks
-        private String[] fileTable; // Maps block indices to filenames
+        private final BlockCache cache;
+        private final DentryCache names;
+        private BitSet freeMap; // Tracks free/used blocks; a set bit is a used block
+
+        /** Number of free blocks, and of directories, in each block group;
+         * rebuilt at mount. */
+        private final int[] groupFree = new int[GROUP_COUNT];
+        private final int[] groupDirs = new int[GROUP_COUNT];
+
+        /** Totals for the whole file system, kept up to date by every
+         * operation so that stat() need not scan anything: free data
+         * blocks, files, directories, and the sum of the files' sizes.
+         * Rebuilt at mount and written to the superblock at each
+         * checkpoint. */
+        private int freeBlocks;
+        private int fileCount;
+        private int dirCount;
+        private int fileBytes;
+
+        /** Log-structured mode: the number of free blocks in each segment,
+         * the next block to try at the head of the log (or -1 to start a
+         * new segment), and the cleaner thread while it runs. */
+        private boolean log;
+        private final int[] segmentFree = new int[SEGMENT_COUNT];
+        private int logHead = -1;
+        private Thread cleaner;
+
+        /** Blocks released since the last checkpoint, which stay allocated
+         * until it, and the number of operations since it. */
+        private final int[] limbo = new int[DISK_SIZE];
+        private int limboCount;
+        private int uncheckpointed;
+
+        /** Whether messages are suppressed; see setQuiet(). */
+        private volatile boolean quiet;
+
+        /** The disk block holding each block of the inode table, or 0 if
+         * it has none, as stored in the inode map; and the number of used
+         * inodes in each.  Loaded at mount. */
+        private final int[] inodeTable = new int[INODE_BLOCKS];
+        private final int[] inodesUsed = new int[INODE_BLOCKS];
+
+        /** Number of inode pointers to each block; rebuilt at mount. */
+        private final int[] refCount = new int[DISK_SIZE];
+
+        /** The checksum of every block; loaded at mount. */
+        private final BlockChecksums checksums = new BlockChecksums(DISK_SIZE, CHECKSUM_START);
+
+        /** Deduplication state: the index from fingerprint to block, and
+         * the fingerprint under which each indexed block is filed. */
+        private boolean dedup;
+        private final HashMap<ByteBuffer, Integer> fingerprints = new HashMap<ByteBuffer, Integer>();
+        private final ByteBuffer[] fingerprintOf = new ByteBuffer[DISK_SIZE];
+        private final MessageDigest sha;
+
+        /** Flyweights reused by every operation. */
+        private final InodeView dirInode = new InodeView();
+        private final InodeView fileInode = new InodeView();
+        private final DirEntryView entry = new DirEntryView();
+        private final DirNodeView node = new DirNodeView();
+        private final DirNodeView sibling = new DirNodeView();
+
+        /** The encoded last component of the path most recently passed to
+         * parentOf. */
+        private byte[] lastName;
+
+        /** Scratch buffer for partial-block transfers. */
+        private final byte[] blockBuffer = new byte[BLOCK_SIZE];
+
+        /** Data blocks written during a writeRange and not yet sent to the
+         * disk: a run of pendingCount consecutive blocks from pendingStart,
+         * sent in one writeBlocks by flushWrites. */
+        private final byte[] pendingData = new byte[MAX_RUN * BLOCK_SIZE];
+        private int pendingStart;
+        private int pendingCount;
+        private boolean batching;
+
+        /** A block of zeros, for recognizing blocks that can stay holes. */
+        private static final byte[] ZERO_BLOCK = new byte[BLOCK_SIZE];
+
+        /** What a block of the inode table that has no disk block reads
+         * as: eight free inodes.  Never written. */
+        private static final byte[] NO_INODES = new byte[BLOCK_SIZE];
+
+        /** Codec state and output buffer for compressed files. */
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final Inflater inflater = new Inflater();
+        private byte[] packBuffer = new byte[BLOCK_SIZE];
 
         public FileSystem(Disk disk) {
+            this(disk, DEFAULT_CACHE_SIZE);
+        }
+
+        /**
+         * Creates a file system.
+         * @param disk the disk holding the file system.
+         * @param cacheSize the number of directory and indirect blocks to cache.
+         */
+        public FileSystem(Disk disk, int cacheSize) {
             this.disk = disk;
-            this.freeMap = new boolean[DISK_SIZE];
-            this.fileTable = new String[DISK_SIZE];
+            this.cache = new BlockCache(disk, cacheSize, RESERVED_BLOCKS, checksums);
+            this.names = new DentryCache(DEFAULT_NAME_CACHE_SIZE);
+            this.freeMap = new BitSet(DISK_SIZE);
+            try {
+                this.sha = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
         }
 
-        /** Initializes the file system. */
-        public void initialize() {
-            Arrays.fill(freeMap, false);
-            Arrays.fill(fileTable, null);
-            Library.output("FileSystem: Initialized.\n");
+        /** Initializes the file system, mounting it if the disk holds one. */
+        public synchronized void initialize() {
+            byte[] superBlock = cache.get(SUPER_BLOCK);
+            if (Utilities.unpackInt(superBlock, MAGIC_OFFSET) == MAGIC) {
+                loadChecksums(superBlock);
+                freeMap = Utilities.unpackBitSet(superBlock, BITMAP_OFFSET, DISK_SIZE);
+                names.clear();
+                dedup = (Utilities.unpackInt(superBlock, FEATURES_OFFSET) & FEATURE_DEDUP) != 0;
+                log = (Utilities.unpackInt(superBlock, FEATURES_OFFSET) & FEATURE_LOG) != 0;
+                logHead = -1;
+                limboCount = 0;
+                uncheckpointed = 0;
+                try {
+                    loadInodeTable();
+                    countGroups();
+                    rebuildReferences();
+                } catch (IllegalStateException e) {
+                    // An inode table or indirect block failed its checksum.
+                    output("Error: " + e.getMessage() + "; fsck repair is needed.\n");
+                }
+            } else {
+                reset();
+            }
+            Kernel.mount(this);
+            output("FileSystem: Initialized.\n");
         }
 
         /** Formats the disk and clears the file system state. */
-        public int format() {
+        public synchronized int format() {
             try {
-                Arrays.fill(freeMap, false);
-                Arrays.fill(fileTable, null);
-
-                byte[] emptyBlock = new byte[BLOCK_SIZE];
-                for (int i = 0; i < FREE_MAP_BLOCKS; i++) {
-                    disk.write(i, emptyBlock);
-                }
-                Library.output("FileSystem: Disk formatted.\n");
+                reset();
+                output("FileSystem: Disk formatted.\n");
                 return 0; // Success
             } catch (Exception e) {
-                Library.output("Error formatting disk: " + e.getMessage() + "\n");
+                output("Error formatting disk: " + e.getMessage() + "\n");
                 return Kernel.ERROR_IO;
             }
         }
 
+        /**
+         * Writes an empty superblock, inode map, and root directory.
+         * Every other block is discarded rather than cleared, so only the
+         * superblock, the map, and the root inode's block are actually
+         * written.
+         */
+        private void reset() {
+            freeMap.clear();
+            Arrays.fill(refCount, 0);
+            Arrays.fill(inodeTable, 0);
+            Arrays.fill(fingerprintOf, null);
+            fingerprints.clear();
+            names.clear();
+            dedup = false;
+            log = false;
+            logHead = -1;
+            limboCount = 0;
+            uncheckpointed = 0;
+            checksums.clear();
+            for (int i = 0; i < RESERVED_BLOCKS; i++) {
+                cache.discard(i);
+                checksums.record(i, ZERO_BLOCK);
+                freeMap.set(i);
+            }
+            for (int i = RESERVED_BLOCKS; i < DISK_SIZE; i++) {
+                cache.invalidate(i);
+                disk.discard(i);
+            }
+            Utilities.pack(MAGIC, cache.get(SUPER_BLOCK), MAGIC_OFFSET);
+            allocateInodeBlock(ROOT_INODE);
+            InodeView root = inode(dirInode, ROOT_INODE);
+            root.setFlags(InodeView.FLAG_USED | InodeView.FLAG_DIR);
+            countGroups();
+            cache.markDirty(inodeBlock(ROOT_INODE));
+            sync();
+        }
+
+        /**
+         * Writes the free map and all dirty metadata blocks to the disk at
+         * the end of an operation.  In log-structured mode this is put off
+         * to a checkpoint every few operations.
+         */
+        private void sync() {
+            if (log && ++uncheckpointed < CHECKPOINT_INTERVAL) {
+                return;
+            }
+            checkpoint();
+        }
+
+        /**
+         * Writes the free map and all dirty metadata blocks to the disk now,
+         * first freeing the blocks released since the last checkpoint.  In
+         * log-structured mode, call this before the disk is flushed or the
+         * last few operations may be lost.
+         */
+        public synchronized void checkpoint() {
+            for (int i = 0; i < limboCount; i++) {
+                setUsed(limbo[i], false);
+                checksums.forget(limbo[i]);
+                disk.discard(limbo[i]);
+            }
+            limboCount = 0;
+            uncheckpointed = 0;
+            byte[] superBlock = cache.get(SUPER_BLOCK);
+            Utilities.pack(freeMap, DISK_SIZE, superBlock, BITMAP_OFFSET);
+            packCounts(superBlock);
+            // The table takes in the checksums of the dirty blocks, the
+            // superblock those of the table, and last of all its own.
+            cache.recordChecksums();
+            checksums.store(cache);
+            for (int i = 0; i < CHECKSUM_BLOCKS; i++) {
+                Utilities.pack(BlockChecksums.compute(cache.get(CHECKSUM_START + i)),
+                        superBlock, TABLE_CHECKSUMS_OFFSET + 4 * i);
+            }
+            Utilities.pack(0, superBlock, CHECKSUM_OFFSET);
+            Utilities.pack(BlockChecksums.compute(superBlock), superBlock, CHECKSUM_OFFSET);
+            cache.markDirty(SUPER_BLOCK);
+            cache.flush();
+        }
+
+        /**
+         * Loads the checksum table at mount, after checking the superblock
+         * and each table block.  If any fails, the table cannot be trusted,
+         * so no block is checked until it is written again or a repair
+         * records checksums for every block.
+         */
+        private void loadChecksums(byte[] superBlock) {
+            checksums.clear();
+            int stored = Utilities.unpackInt(superBlock, CHECKSUM_OFFSET);
+            Utilities.pack(0, superBlock, CHECKSUM_OFFSET);
+            boolean good = BlockChecksums.compute(superBlock) == stored;
+            Utilities.pack(stored, superBlock, CHECKSUM_OFFSET);
+            for (int i = 0; good && i < CHECKSUM_BLOCKS; i++) {
+                byte[] table = cache.get(CHECKSUM_START + i);
+                good = BlockChecksums.compute(table)
+                        == Utilities.unpackInt(superBlock, TABLE_CHECKSUMS_OFFSET + 4 * i);
+                checksums.load(i, table);
+            }
+            if (!good) {
+                checksums.clear();
+                output("Error: The superblock or checksum table fails its checksum;"
+                        + " blocks will not be checked until fsck repair is run.\n");
+            }
+        }
+
         /** Creates a new file. */
-        public int create(String filename) {
-            if (findFile(filename) != -1) {
-                Library.output("Error: File already exists.\n");
+        public synchronized int create(String filename) {
+            // The file starts out inline; no data block is allocated until
+            // it outgrows its inode.
+            return createNode(filename, InodeView.FLAG_USED | InodeView.FLAG_INLINE, "File");
+        }
+
+        /** Creates a new, empty directory. */
+        public synchronized int mkdir(String path) {
+            return createNode(path, InodeView.FLAG_USED | InodeView.FLAG_DIR, "Directory");
+        }
+
+        /**
+         * Creates a file or directory.
+         * @param flags the flags of the new inode.
+         * @param kind the kind of node created, for the log message.
+         */
+        private int createNode(String path, int flags, String kind) {
+            int parent = parentOf(path);
+            byte[] name = lastName;
+            if (parent == -1) {
+                output("Error: Directory not found.\n");
+                return Kernel.ERROR_BAD_ARGUMENT;
+            }
+            if (name == null) {
+                output("Error: Invalid file name.\n");
+                return Kernel.ERROR_BAD_ARGUMENT;
+            }
+            if (lookup(parent, name) != -1) {
+                output("Error: File already exists.\n");
                 return Kernel.ERROR_BAD_ARGUMENT;
             }
 
-            for (int i = FREE_MAP_BLOCKS; i < DISK_SIZE; i++) {
-                if (!freeMap[i]) {
-                    freeMap[i] = true;
-                    fileTable[i] = filename;
-                    Library.output("FileSystem: File created: " + filename + "\n");
-                    return 0;
+            try {
+                int ino = addNode(parent, name, flags, -1);
+                sync();
+                if (ino == NO_INODE) {
+                    output("Error: No free inodes.\n");
+                    return Kernel.ERROR_OUT_OF_RANGE;
                 }
+                if (ino == NO_SPACE) {
+                    output("Error: Disk is full.\n");
+                    return Kernel.ERROR_OUT_OF_RANGE;
+                }
+                if (ino == NO_ROOM) {
+                    output("Error: Directory is full.\n");
+                    return Kernel.ERROR_OUT_OF_RANGE;
+                }
+                output("FileSystem: " + kind + " created: " + path + "\n");
+                return 0;
+            } catch (Exception e) {
+                output("Error creating file: " + e.getMessage() + "\n");
+                return Kernel.ERROR_IO;
+            }
+        }
+
+        /**
+         * Creates many files in one operation.  The paths are taken in
+         * sorted order, so the names going into a directory are inserted
+         * in order and mostly land in the same few leaves; the new inodes
+         * are taken in a run, each search for a free one picking up where
+         * the last left off; and the metadata is written back once, at the
+         * end.  A path that cannot be created is reported and skipped.
+         * @return 0 if every file was created, else the error code for the
+         * first that was not.
+         */
+        public synchronized int create(String[] paths) {
+            String[] sorted = paths.clone();
+            Arrays.sort(sorted);
+            int result = 0;
+            int created = 0;
+            int last = -1;
+            try {
+                for (String path : sorted) {
+                    int parent = parentOf(path);
+                    byte[] name = lastName;
+                    int rc = 0;
+                    if (parent == -1) {
+                        output("Error: " + path + ": Directory not found.\n");
+                        rc = Kernel.ERROR_BAD_ARGUMENT;
+                    } else if (name == null) {
+                        output("Error: " + path + ": Invalid file name.\n");
+                        rc = Kernel.ERROR_BAD_ARGUMENT;
+                    } else if (lookup(parent, name) != -1) {
+                        output("Error: " + path + ": File already exists.\n");
+                        rc = Kernel.ERROR_BAD_ARGUMENT;
+                    } else {
+                        int ino = addNode(parent, name, InodeView.FLAG_USED | InodeView.FLAG_INLINE, last);
+                        if (ino == NO_INODE) {
+                            output("Error: " + path + ": No free inodes.\n");
+                            rc = Kernel.ERROR_OUT_OF_RANGE;
+                        } else if (ino == NO_SPACE) {
+                            output("Error: " + path + ": Disk is full.\n");
+                            rc = Kernel.ERROR_OUT_OF_RANGE;
+                        } else if (ino == NO_ROOM) {
+                            output("Error: " + path + ": Directory is full.\n");
+                            rc = Kernel.ERROR_OUT_OF_RANGE;
+                        } else {
+                            last = ino;
+                            created++;
+                        }
+                    }
+                    if (result == 0) {
+                        result = rc;
+                    }
+                }
+            } catch (Exception e) {
+                output("Error creating files: " + e.getMessage() + "\n");
+                result = Kernel.ERROR_IO;
+            }
+            sync();
+            output("FileSystem: Created " + created + " of " + paths.length + " files.\n");
+            return result;
+        }
+
+        /**
+         * Adds a new, empty inode to a directory under a name that is not
+         * already there.  Nothing is written back.
+         * @param flags the flags of the new inode.
+         * @param after an inode to start the search for a free one after,
+         * if it is in the right group, or -1.
+         * @return the new inode number, NO_INODE if every inode is in use,
+         * NO_SPACE if a block was needed for the inode table or the
+         * directory and none was free, or NO_ROOM if the directory needed
+         * a block beyond the most a file can have.
+         */
+        private int addNode(int parent, byte[] name, int flags, int after) {
+            int group = chooseGroup(parent, (flags & InodeView.FLAG_DIR) != 0);
+            int ino = after != -1 && inodeGroup(after) == group
+                    ? findFreeInodeFrom(after + 1) : findFreeInode(group);
+            if (ino == -1) {
+                return NO_INODE;
+            }
+            boolean fresh = inodeBlock(ino) == 0;
+            if (fresh && !allocateInodeBlock(ino)) {
+                return NO_SPACE;
+            }
+            if (!treeInsert(parent, name, ino)) {
+                // A free block would have been found had there been one.
+                int result = freeBlocks == 0 ? NO_SPACE : NO_ROOM;
+                if (fresh) {
+                    freeInodeBlock(ino);
+                }
+                return result;
+            }
+            names.put(parent, name, ino);
+            InodeView node = inode(fileInode, ino);
+            node.clear();
+            node.setFlags(flags);
+            cache.markDirty(inodeBlock(ino));
+            inodesUsed[ino / INODES_PER_BLOCK]++;
+            if (node.isDirectory()) {
+                groupDirs[inodeGroup(ino)]++;
+                dirCount++;
+            } else {
+                fileCount++;
             }
-            Library.output("Error: Disk is full.\n");
-            return Kernel.ERROR_OUT_OF_RANGE;
+            return ino;
         }
 
-        /** Writes data to a file. */
-        public int write(String filename, byte[] buffer) {
-            int blockIndex = findFile(filename);
-            if (blockIndex == -1) {
-                Library.output("Error: File not found.\n");
+        /**
+         * Writes data to a file, replacing its previous contents.
+         * Blocks of the buffer that are entirely zero are left as holes.
+         */
+        public synchronized int write(String filename, byte[] buffer) {
+            int ino = findFile(filename);
+            if (ino == -1) {
+                output("Error: File not found.\n");
                 return Kernel.ERROR_BAD_ARGUMENT;
             }
+            if (buffer.length > MAX_FILE_SIZE) {
+                output("Error: File is too large.\n");
+                return Kernel.ERROR_OUT_OF_RANGE;
+            }
 
             try {
-                disk.write(blockIndex, buffer);
-                Library.output("FileSystem: Data written to file: " + filename + "\n");
+                InodeView file = inode(fileInode, ino);
+                boolean ok = storeContents(file, ino, buffer, buffer.length);
+                sync();
+                if (!ok) {
+                    output("Error: Disk is full.\n");
+                    return Kernel.ERROR_OUT_OF_RANGE;
+                }
+                output("FileSystem: Data written to file: " + filename + "\n");
                 return 0;
             } catch (Exception e) {
-                Library.output("Error writing to file: " + e.getMessage() + "\n");
+                output("Error writing to file: " + e.getMessage() + "\n");
                 return Kernel.ERROR_IO;
             }
         }
 
-        /** Reads data from a file. */
-        public int read(String filename, byte[] buffer) {
-            int blockIndex = findFile(filename);
-            if (blockIndex == -1) {
-                Library.output("Error: File not found.\n");
+        /**
+         * Writes data into a file at a byte position, keeping the rest of
+         * its contents and extending it if needed.  Writing past the end of
+         * the file leaves a hole that reads as zeros and occupies no blocks.
+         */
+        public synchronized int write(String filename, int position, byte[] buffer) {
+            int ino = findFile(filename);
+            if (ino == -1) {
+                output("Error: File not found.\n");
+                return Kernel.ERROR_BAD_ARGUMENT;
+            }
+            int rc = writeAt(ino, position, buffer, 0, buffer.length);
+            if (rc == 0) {
+                output("FileSystem: Data written to file: " + filename + "\n");
+            }
+            return rc;
+        }
+
+        /**
+         * Sets the size of a file.  Growing a file allocates nothing; the
+         * new bytes are a hole that reads as zeros.  Shrinking a file frees
+         * the blocks past its new end.
+         */
+        public synchronized int truncate(String filename, int size) {
+            int ino = findFile(filename);
+            if (ino == -1) {
+                output("Error: File not found.\n");
+                return Kernel.ERROR_BAD_ARGUMENT;
+            }
+            int rc = truncateAt(ino, size);
+            if (rc == 0) {
+                output("FileSystem: File truncated: " + filename + "\n");
+            }
+            return rc;
+        }
+
+        /**
+         * Reads data from a file.  The buffer receives the first
+         * buffer.length bytes of the file; any part of the buffer past the
+         * end of the file is cleared.
+         */
+        public synchronized int read(String filename, byte[] buffer) {
+            int ino = findFile(filename);
+            if (ino == -1) {
+                output("Error: File not found.\n");
+                return Kernel.ERROR_BAD_ARGUMENT;
+            }
+            int n = readAt(ino, 0, buffer, 0, buffer.length);
+            if (n < 0) {
+                return n;
+            }
+            Arrays.fill(buffer, n, buffer.length, (byte) 0);
+            output("FileSystem: Data read from file: " + filename + "\n");
+            return 0;
+        }
+
+        /**
+         * Turns compression on or off for a file.  The current contents are
+         * rewritten under the new setting.
+         */
+        public synchronized int setCompressed(String filename, boolean compressed) {
+            int ino = findFile(filename);
+            if (ino == -1) {
+                output("Error: File not found.\n");
                 return Kernel.ERROR_BAD_ARGUMENT;
             }
 
             try {
-                disk.read(blockIndex, buffer);
-                Library.output("FileSystem: Data read from file: " + filename + "\n");
+                InodeView file = inode(fileInode, ino);
+                byte[] data = readContents(file, file.size());
+                int old = file.flags();
+                int flags = old & ~InodeView.FLAG_COMPRESS;
+                file.setFlags(compressed ? flags | InodeView.FLAG_COMPRESS : flags);
+                boolean ok = storeContents(file, ino, data, data.length);
+                if (!ok) {
+                    // The contents are untouched, so keep them as they were.
+                    file.setFlags(old);
+                }
+                sync();
+                if (!ok) {
+                    output("Error: Disk is full.\n");
+                    return Kernel.ERROR_OUT_OF_RANGE;
+                }
+                output("FileSystem: Compression " + (compressed ? "enabled" : "disabled")
+                        + " for file: " + filename + "\n");
+                return 0;
+            } catch (Exception e) {
+                output("Error changing compression: " + e.getMessage() + "\n");
+                return Kernel.ERROR_IO;
+            }
+        }
+
+        /**
+         * Turns deduplication of newly written blocks on or off.  Turning it
+         * on indexes the blocks already on disk.  Blocks that are already
+         * shared stay shared either way.
+         */
+        public synchronized int setDeduplication(boolean enabled) {
+            try {
+                byte[] superBlock = cache.get(SUPER_BLOCK);
+                int features = Utilities.unpackInt(superBlock, FEATURES_OFFSET);
+                features = enabled ? features | FEATURE_DEDUP | FEATURE_SHARED
+                        : features & ~FEATURE_DEDUP;
+                Utilities.pack(features, superBlock, FEATURES_OFFSET);
+                dedup = enabled;
+                rebuildReferences();
+                sync();
+                output("FileSystem: Deduplication "
+                        + (enabled ? "enabled" : "disabled") + ".\n");
+                return 0;
+            } catch (Exception e) {
+                output("Error changing deduplication: " + e.getMessage() + "\n");
+                return Kernel.ERROR_IO;
+            }
+        }
+
+        /**
+         * Turns log-structured writing on or off.  While it is on, every
+         * data block written goes to a new block at the head of the log
+         * instead of over the old one, and metadata is written only at
+         * checkpoints, so a run of updates to scattered files is written
+         * in one sweep of the disk.  A cleaner thread compacts part-used
+         * segments in the background so that the log always has free
+         * segments to move into.
+         * @see #checkpoint()
+         */
+        public synchronized int setLogStructured(boolean enabled) {
+            try {
+                byte[] superBlock = cache.get(SUPER_BLOCK);
+                int features = Utilities.unpackInt(superBlock, FEATURES_OFFSET);
+                features = enabled ? features | FEATURE_LOG : features & ~FEATURE_LOG;
+                Utilities.pack(features, superBlock, FEATURES_OFFSET);
+                log = enabled;
+                logHead = -1;
+                checkpoint();
+                output("FileSystem: Log-structured writes "
+                        + (enabled ? "enabled" : "disabled") + ".\n");
                 return 0;
             } catch (Exception e) {
-                Library.output("Error reading file: " + e.getMessage() + "\n");
+                output("Error changing log mode: " + e.getMessage() + "\n");
                 return Kernel.ERROR_IO;
             }
         }
 
-        /** Deletes a file. */
-        public int delete(String filename) {
-            int blockIndex = findFile(filename);
-            if (blockIndex == -1) {
-                Library.output("Error: File not found.\n");
+        /**
+         * Turns the file system's messages off or back on: the report of
+         * each operation, its errors, and listings alike.  The return codes
+         * are unchanged, so a program driving the file system hard can
+         * check those instead.
+         */
+        public void setQuiet(boolean quiet) {
+            this.quiet = quiet;
+        }
+
+        /** Prints a message, unless the file system has been made quiet. */
+        private void output(String message) {
+            if (!quiet) {
+                Library.output(message);
+            }
+        }
+
+        /**
+         * Defragments the file system while it stays mounted.  Each file
+         * whose data blocks are not in one run is moved, a file at a time,
+         * to the first free run long enough to hold it, looking first in
+         * the file's own block group.  Blocks shared between files, and
+         * directories, are left in place.  The file system is unlocked
+         * between files, and the pass pauses after each one so as to move
+         * at most a given number of blocks a second.  Reports the
+         * fragmentation before and after.
+         * @param rate the most blocks to move a second, or 0 for no limit.
+         */
+        public int defragment(int rate) {
+            if (rate < 0) {
+                output("Error: Invalid rate.\n");
                 return Kernel.ERROR_BAD_ARGUMENT;
             }
+            String before;
+            synchronized (this) {
+                before = fragmentationReport();
+            }
+            int files = 0; // counting a file once per pass that moves it
+            int moved = 0;
+            // Moving one file frees space that may make room for another,
+            // so make passes over the files until one achieves nothing.
+            for (int pass = 0, progress = 1; progress > 0 && pass < DEFRAG_PASSES; pass++) {
+                progress = 0;
+                for (int ino = ROOT_INODE + 1; ino < INODE_COUNT; ino++) {
+                    int n;
+                    synchronized (this) {
+                        n = defragmentFile(ino);
+                    }
+                    if (n == 0) {
+                        continue;
+                    }
+                    files++;
+                    moved += n;
+                    progress += n;
+                    if (rate > 0) {
+                        try {
+                            Thread.sleep(n * 1000L / rate);
+                        } catch (InterruptedException e) {
+                            pass = DEFRAG_PASSES;
+                            break;
+                        }
+                    }
+                }
+            }
+            synchronized (this) {
+                output("FileSystem: Defragmented " + files + " files, moving "
+                        + moved + " blocks.\n"
+                        + "Before: " + before + "\n"
+                        + "After:  " + fragmentationReport() + "\n");
+            }
+            return 0;
+        }
+
+        /**
+         * Checks that the file system's metadata is consistent, and
+         * optionally repairs it.  The free map is rebuilt from the block
+         * maps and compared with the one stored on disk; each file's block
+         * count, size, and pointers are checked; each directory's B+tree is
+         * walked, checking its names, their order, and the inodes they
+         * name; every used inode must be reachable by exactly one name
+         * from the root; and every block in use is read and checked against
+         * its checksum.  The inodes are scanned in parallel.
+         * <p>
+         * A repair takes the contents of each block that fails its
+         * checksum, or has none, as they are and records a new checksum, so
+         * that what is left of the data can be read again.  It drops bad
+         * pointers and directory entries, gives each file its own copy of a
+         * block it wrongly shares, files inodes that no directory names
+         * under /lost+found as #&lt;inode number&gt;, and rebuilds the free
+         * map.  A directory whose tree is out of order is only reported.
+         * @param repair whether to repair what is found.
+         * @return 0 if no problems were found or all were repaired, else
+         * Kernel.ERROR_IO.
+         */
+        public synchronized int check(boolean repair) {
+            // The scan reads the disk, so it must be up to date.
+            checkpoint();
+            CheckState state = scan();
+            int found = state.report.size();
+            if (found == 0) {
+                output("FileSystem: Check found no problems.\n");
+                return 0;
+            }
+            output("FileSystem: Check found " + found + " problems:\n");
+            for (String problem : state.report) {
+                output("  " + problem + "\n");
+            }
+            if (!repair) {
+                return Kernel.ERROR_IO;
+            }
+            try {
+                repairFiles(state);
+                repairEntries(scan());
+                attachOrphans(scan());
+                state = scan();
+            } catch (Exception e) {
+                output("Error repairing file system: " + e.getMessage() + "\n");
+                return Kernel.ERROR_IO;
+            }
+            output("FileSystem: Repaired " + (found - Math.min(found, state.report.size()))
+                    + " problems; " + state.report.size() + " remain.\n");
+            for (String problem : state.report) {
+                output("  " + problem + "\n");
+            }
+            return state.report.isEmpty() ? 0 : Kernel.ERROR_IO;
+        }
 
-            freeMap[blockIndex] = false;
-            fileTable[blockIndex] = null;
+        /** Deletes a file, or a directory if it is empty. */
+        public synchronized int delete(String filename) {
+            int parent = parentOf(filename);
+            byte[] name = lastName;
+            int ino = parent == -1 || name == null ? -1 : lookup(parent, name);
+            if (ino == -1) {
+                output("Error: File not found.\n");
+                return Kernel.ERROR_BAD_ARGUMENT;
+            }
+            InodeView file = inode(fileInode, ino);
+            if (file.isDirectory() && file.size() != 0) {
+                output("Error: Directory is not empty.\n");
+                return Kernel.ERROR_BAD_ARGUMENT;
+            }
 
-            byte[] emptyBlock = new byte[BLOCK_SIZE];
             try {
-                disk.write(blockIndex, emptyBlock);
-                Library.output("FileSystem: File deleted: " + filename + "\n");
+                removeNode(parent, name, ino);
+                sync();
+                output("FileSystem: File deleted: " + filename + "\n");
                 return 0;
             } catch (Exception e) {
-                Library.output("Error deleting file: " + e.getMessage() + "\n");
+                output("Error deleting file: " + e.getMessage() + "\n");
                 return Kernel.ERROR_IO;
             }
         }
 
-        /** Displays the directory contents. */
-        public int dir() {
-            Library.output("Directory:\n");
-            for (int i = FREE_MAP_BLOCKS; i < DISK_SIZE; i++) {
-                if (fileTable[i] != null) {
-                    Library.output(fileTable[i] + "\n");
+        /**
+         * Deletes many files, and empty directories, in one operation.  The
+         * last component of each path may be a pattern in which '*' stands
+         * for any run of characters and '?' for any one; the names matching
+         * it are found in one pass over the directory, reading only the
+         * leaves that can hold them.  The metadata is written back once, at
+         * the end.  A path that cannot be deleted is reported and skipped.
+         * @return 0 if every path was deleted and every pattern matched,
+         * else the error code for the first that was not.
+         */
+        public synchronized int delete(String[] paths) {
+            int result = 0;
+            int deleted = 0;
+            try {
+                for (String path : paths) {
+                    int slash = path.lastIndexOf('/');
+                    boolean pattern = isPattern(path.substring(slash + 1));
+                    ArrayList<byte[]> matched = new ArrayList<byte[]>();
+                    int parent;
+                    if (pattern) {
+                        parent = resolve(path.substring(0, slash + 1));
+                        if (parent != -1 && inode(dirInode, parent).isDirectory()) {
+                            matched = matchNames(parent, path.substring(slash + 1));
+                        }
+                    } else {
+                        parent = parentOf(path);
+                        if (parent != -1 && lastName != null) {
+                            matched.add(lastName);
+                        }
+                    }
+                    int rc = 0;
+                    if (matched.isEmpty()) {
+                        output("Error: " + path + ": File not found.\n");
+                        rc = Kernel.ERROR_BAD_ARGUMENT;
+                    }
+                    for (byte[] name : matched) {
+                        int ino = lookup(parent, name);
+                        String shown = !pattern ? path
+                                : path.substring(0, slash + 1) + new String(name, StandardCharsets.UTF_8);
+                        if (ino == -1) {
+                            output("Error: " + shown + ": File not found.\n");
+                            rc = Kernel.ERROR_BAD_ARGUMENT;
+                        } else if (inode(fileInode, ino).isDirectory() && inode(fileInode, ino).size() != 0) {
+                            output("Error: " + shown + ": Directory is not empty.\n");
+                            rc = Kernel.ERROR_BAD_ARGUMENT;
+                        } else {
+                            removeNode(parent, name, ino);
+                            deleted++;
+                        }
+                    }
+                    if (result == 0) {
+                        result = rc;
+                    }
+                }
+            } catch (Exception e) {
+                output("Error deleting files: " + e.getMessage() + "\n");
+                result = Kernel.ERROR_IO;
+            }
+            sync();
+            output("FileSystem: Deleted " + deleted + " files.\n");
+            return result;
+        }
+
+        /**
+         * Removes a name from a directory and frees the inode it names and
+         * that inode's blocks.  Nothing is written back.
+         */
+        private void removeNode(int parent, byte[] name, int ino) {
+            treeRemove(parent, name);
+            names.put(parent, name, DentryCache.ABSENT);
+
+            InodeView file = inode(fileInode, ino);
+            truncateBlocks(file, ino, 0);
+            if (file.isDirectory()) {
+                groupDirs[inodeGroup(ino)]--;
+                dirCount--;
+            } else {
+                fileCount--;
+                fileBytes -= file.size();
+            }
+            file.clear();
+            cache.markDirty(inodeBlock(ino));
+            if (--inodesUsed[ino / INODES_PER_BLOCK] == 0) {
+                freeInodeBlock(ino);
+            }
+        }
+
+        /** Displays the contents of the root directory. */
+        public synchronized int dir() {
+            return dir("/");
+        }
+
+        /**
+         * Displays the contents of a directory in name order.  If the last
+         * component of the path is a pattern, in which '*' stands for any
+         * run of characters and '?' for any one, only the names in the
+         * parent directory that match it are shown, and only the range of
+         * the directory that begins with the pattern's fixed prefix is
+         * read.
+         */
+        public synchronized int dir(String pattern) {
+            String path = pattern;
+            String glob = null;
+            byte[] prefix = new byte[0];
+            int slash = pattern.lastIndexOf('/');
+            if (isPattern(pattern.substring(slash + 1))) {
+                path = pattern.substring(0, slash + 1);
+                glob = pattern.substring(slash + 1);
+                prefix = literalPrefix(glob);
+            }
+            int ino = resolve(path);
+            if (ino == -1 || !inode(dirInode, ino).isDirectory()) {
+                output("Error: Directory not found.\n");
+                return Kernel.ERROR_BAD_ARGUMENT;
+            }
+
+            output("Directory:\n");
+            InodeView dir = inode(dirInode, ino);
+            int block = bmap(dir, 0);
+            if (block == 0) {
+                return 0;
+            }
+            block = findLeaf(block, prefix);
+            int i = node.wrap(cache.get(block)).lowerBound(prefix);
+            while (block != 0) {
+                node.wrap(cache.get(block));
+                for (; i < node.count(); i++) {
+                    node.entry(entry, i);
+                    if (!entry.startsWith(prefix)) {
+                        return 0;
+                    }
+                    if (glob != null && !globMatches(glob, entry.name())) {
+                        continue;
+                    }
+                    boolean isDir = inode(fileInode, entry.inode()).isDirectory();
+                    output(entry.name() + (isDir ? "/" : "") + "\n");
                 }
+                block = node.next();
+                i = 0;
             }
             return 0;
         }
 
-        /** Finds the block index of a file. */
+        /**
+         * Fills in the file system's totals, indexed by the STAT_
+         * constants.  Takes constant time: nothing is read or counted.
+         * @param counts an array of at least STAT_FIELDS elements.
+         */
+        public synchronized void stat(int[] counts) {
+            counts[STAT_BLOCKS] = DISK_SIZE - RESERVED_BLOCKS;
+            counts[STAT_USED] = DISK_SIZE - RESERVED_BLOCKS - freeBlocks;
+            counts[STAT_FREE] = freeBlocks;
+            counts[STAT_FILES] = fileCount;
+            counts[STAT_DIRS] = dirCount;
+            counts[STAT_BYTES] = fileBytes;
+        }
+
+        /**
+         * Displays the size of a file, or the number and total size of the
+         * files in a directory and the directories below it.  A file's size
+         * and block count are read from its inode; a directory's are added
+         * up over its subtree, which reads only the inode table and the
+         * directory nodes, both normally cached.
+         */
+        public synchronized int du(String path) {
+            int ino = resolve(path);
+            if (ino == -1) {
+                output("Error: File not found.\n");
+                return Kernel.ERROR_BAD_ARGUMENT;
+            }
+            InodeView file = inode(fileInode, ino);
+            if (!file.isDirectory()) {
+                output("FileSystem: " + path + " is " + file.size() + " bytes in "
+                        + file.blockCount() + " blocks.\n");
+                return 0;
+            }
+
+            try {
+                int files = 0;
+                int dirs = 0;
+                int blocks = 0;
+                long bytes = 0;
+                // A directory named twice in a damaged tree is counted once.
+                boolean[] seen = new boolean[INODE_COUNT];
+                ArrayDeque<Integer> pending = new ArrayDeque<Integer>();
+                pending.push(ino);
+                seen[ino] = true;
+                while (!pending.isEmpty()) {
+                    InodeView dir = inode(dirInode, pending.pop());
+                    dirs++;
+                    blocks += dir.blockCount();
+                    int block = bmap(dir, 0);
+                    if (block != 0) {
+                        block = findLeaf(block, new byte[0]);
+                    }
+                    while (block != 0) {
+                        node.wrap(cache.get(block));
+                        for (int i = 0; i < node.count(); i++) {
+                            node.entry(entry, i);
+                            int child = entry.inode();
+                            file = inode(fileInode, child);
+                            if (!file.isDirectory()) {
+                                files++;
+                                bytes += file.size();
+                                blocks += file.blockCount();
+                            } else if (!seen[child]) {
+                                seen[child] = true;
+                                pending.push(child);
+                            }
+                        }
+                        block = node.next();
+                    }
+                }
+                output("FileSystem: " + path + " holds " + files + " files of "
+                        + bytes + " bytes in " + dirs + " directories, " + blocks + " blocks.\n");
+                return 0;
+            } catch (Exception e) {
+                output("Error measuring directory: " + e.getMessage() + "\n");
+                return Kernel.ERROR_IO;
+            }
+        }
+
+        ////////////////////////////////////////////////// Open files
+
+        // These calls name a file by its inode number, so a caller that
+        // reads or writes a file many times, such as a stream, looks its
+        // path up only once.  They report errors but not success.
+
+        /**
+         * Looks up a file for repeated access.  Unlike the other calls this
+         * reports nothing, leaving a missing file to the caller.
+         * @return the file's inode number, or ERROR_BAD_ARGUMENT if there is
+         * no such file.
+         */
+        synchronized int open(String filename) {
+            int ino = findFile(filename);
+            return ino == -1 ? Kernel.ERROR_BAD_ARGUMENT : ino;
+        }
+
+        /**
+         * Returns the size of an open file in bytes, or ERROR_BAD_ARGUMENT
+         * if it has since been deleted.
+         */
+        synchronized int size(int ino) {
+            InodeView file = openInode(ino);
+            return file == null ? Kernel.ERROR_BAD_ARGUMENT : file.size();
+        }
+
+        /**
+         * Reads bytes from an open file.
+         * @param position the position in the file of the first byte.
+         * @return the number of bytes read, which is less than len only at
+         * the end of the file, or a negative error code.
+         */
+        synchronized int readAt(int ino, int position, byte[] buf, int off, int len) {
+            InodeView file = openInode(ino);
+            if (file == null || position < 0) {
+                return Kernel.ERROR_BAD_ARGUMENT;
+            }
+
+            try {
+                int n = Math.max(0, Math.min(len, file.size() - position));
+                int end = position + n;
+                if (n == 0) {
+                    return 0;
+                } else if (file.hasFlag(InodeView.FLAG_INLINE)) {
+                    file.readInline(position, buf, off, n);
+                } else if (file.hasFlag(InodeView.FLAG_COMPRESSED)) {
+                    System.arraycopy(readContents(file, end), position, buf, off, n);
+                } else {
+                    for (int pos = position; pos < end; ) {
+                        int start = pos % BLOCK_SIZE;
+                        int count = Math.min(BLOCK_SIZE - start, end - pos);
+                        int dst = off + (pos - position);
+                        if (count == BLOCK_SIZE) {
+                            // Whole blocks go straight to their place.
+                            count = (end - pos) / BLOCK_SIZE * BLOCK_SIZE;
+                            readBlocks(file, pos / BLOCK_SIZE, count / BLOCK_SIZE, buf, dst);
+                        } else {
+                            loadBlock(file, pos / BLOCK_SIZE, end, blockBuffer);
+                            System.arraycopy(blockBuffer, start, buf, dst, count);
+                        }
+                        pos += count;
+                    }
+                }
+                return n;
+            } catch (Exception e) {
+                output("Error reading file: " + e.getMessage() + "\n");
+                return Kernel.ERROR_IO;
+            }
+        }
+
+        /**
+         * Writes bytes into an open file at a position, extending it if
+         * needed.
+         * @return zero, or a negative error code.
+         */
+        synchronized int writeAt(int ino, int position, byte[] buf, int off, int len) {
+            InodeView file = openInode(ino);
+            if (file == null) {
+                return Kernel.ERROR_BAD_ARGUMENT;
+            }
+            // Compared this way round, a position near Integer.MAX_VALUE
+            // cannot overflow into a small end.
+            if (position < 0 || len > MAX_FILE_SIZE - position) {
+                output("Error: File is too large.\n");
+                return Kernel.ERROR_OUT_OF_RANGE;
+            }
+
+            try {
+                boolean ok;
+                int end = position + len;
+                if (file.hasFlag(InodeView.FLAG_INLINE) && end <= InodeView.INLINE_CAPACITY) {
+                    file.writeInline(buf, off, position, len);
+                    setFileSize(file, Math.max(file.size(), end));
+                    cache.markDirty(inodeBlock(ino));
+                    ok = true;
+                } else if (file.hasFlag(InodeView.FLAG_COMPRESSED)) {
+                    byte[] data = readContents(file, Math.max(file.size(), end));
+                    System.arraycopy(buf, off, data, position, len);
+                    ok = storeContents(file, ino, data, data.length);
+                } else {
+                    ok = expandInline(file, ino)
+                            && writeRange(file, ino, position, buf, off, len);
+                }
+                sync();
+                if (!ok) {
+                    output("Error: Disk is full.\n");
+                    return Kernel.ERROR_OUT_OF_RANGE;
+                }
+                return 0;
+            } catch (Exception e) {
+                output("Error writing to file: " + e.getMessage() + "\n");
+                return Kernel.ERROR_IO;
+            }
+        }
+
+        /**
+         * Sets the size of an open file.
+         * @return zero, or a negative error code.
+         */
+        synchronized int truncateAt(int ino, int size) {
+            InodeView file = openInode(ino);
+            if (file == null) {
+                return Kernel.ERROR_BAD_ARGUMENT;
+            }
+            if (size < 0 || size > MAX_FILE_SIZE) {
+                output("Error: File is too large.\n");
+                return Kernel.ERROR_OUT_OF_RANGE;
+            }
+
+            try {
+                if (file.hasFlag(InodeView.FLAG_COMPRESSED)
+                        || file.hasFlag(InodeView.FLAG_INLINE)
+                        || size <= InodeView.INLINE_CAPACITY) {
+                    // Rewrite the contents, which also moves them into or
+                    // out of the inode as the new size requires.
+                    byte[] data = readContents(file, size);
+                    if (!storeContents(file, ino, data, size)) {
+                        sync();
+                        output("Error: Disk is full.\n");
+                        return Kernel.ERROR_OUT_OF_RANGE;
+                    }
+                } else {
+                    if (size < file.size() && size % BLOCK_SIZE != 0) {
+                        // Clear the tail of the new last block so that growing
+                        // the file again cannot expose the old bytes.
+                        int index = size / BLOCK_SIZE;
+                        int block = bmap(file, index);
+                        if (block != 0) {
+                            readBlock(block, blockBuffer);
+                            Arrays.fill(blockBuffer, size % BLOCK_SIZE, BLOCK_SIZE, (byte) 0);
+                            storeBlock(file, ino, index, blockBuffer);
+                        }
+                    }
+                    truncateBlocks(file, ino, blocksFor(size));
+                    setFileSize(file, size);
+                    cache.markDirty(inodeBlock(ino));
+                }
+                sync();
+                return 0;
+            } catch (Exception e) {
+                output("Error truncating file: " + e.getMessage() + "\n");
+                return Kernel.ERROR_IO;
+            }
+        }
+
+        /**
+         * Points the file inode view at an open file.
+         * @return the view, or null if the inode is no longer a file.
+         */
+        private InodeView openInode(int ino) {
+            if (ino <= ROOT_INODE || ino >= INODE_COUNT) {
+                return null;
+            }
+            InodeView file = inode(fileInode, ino);
+            return file.isUsed() && !file.isDirectory() ? file : null;
+        }
+
+        ////////////////////////////////////////////////// Paths
+
+        /** Finds the inode number of a file; directories are not files. */
         private int findFile(String filename) {
-            for (int i = FREE_MAP_BLOCKS; i < DISK_SIZE; i++) {
-                if (filename.equals(fileTable[i])) {
-                    return i;
+            int ino = resolve(filename);
+            if (ino == -1 || inode(fileInode, ino).isDirectory()) {
+                return -1;
+            }
+            return ino;
+        }
+
+        /**
+         * Encodes a file name for storage in a directory entry.
+         * @return the encoded name, or null if the name is empty, too long,
+         * or contains a slash or NUL.
+         */
+        private static byte[] encodeName(String filename) {
+            if (filename == null || filename.isEmpty()
+                    || filename.indexOf('/') >= 0 || filename.indexOf('\0') >= 0) {
+                return null;
+            }
+            byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+            return name.length <= DirEntryView.MAX_NAME ? name : null;
+        }
+
+        /** Returns whether a path component is a pattern rather than a name. */
+        private static boolean isPattern(String component) {
+            return component.indexOf('*') >= 0 || component.indexOf('?') >= 0;
+        }
+
+        /** Returns the encoded part of a pattern before its first wildcard. */
+        private static byte[] literalPrefix(String glob) {
+            int end = 0;
+            while (end < glob.length() && glob.charAt(end) != '*' && glob.charAt(end) != '?') {
+                end++;
+            }
+            return glob.substring(0, end).getBytes(StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Matches a name against a pattern.  '*' matches any run of
+         * characters, including none, and '?' any one character.  On a
+         * mismatch the last '*' is retried one character further on, so
+         * the match takes time proportional to the product of the lengths
+         * at worst, however many stars there are.
+         */
+        private static boolean globMatches(String glob, String name) {
+            int g = 0;
+            int n = 0;
+            int star = -1;     // the position in glob after the last '*'
+            int resume = 0;    // where in name that '*' stops matching
+            while (n < name.length()) {
+                char c = g < glob.length() ? glob.charAt(g) : 0;
+                if (c == '*') {
+                    star = ++g;
+                    resume = n;
+                } else if (g < glob.length() && (c == '?' || c == name.charAt(n))) {
+                    g++;
+                    n++;
+                } else if (star != -1) {
+                    g = star;
+                    n = ++resume;
+                } else {
+                    return false;
                 }
             }
-            return -1;
+            while (g < glob.length() && glob.charAt(g) == '*') {
+                g++;
+            }
+            return g == glob.length();
+        }
+
+        /**
+         * Finds the names in a directory that match a pattern, reading only
+         * the leaves that hold names beginning with its fixed prefix.
+         * @return the encoded names, in order.
+         */
+        private ArrayList<byte[]> matchNames(int dirIno, String glob) {
+            ArrayList<byte[]> matched = new ArrayList<byte[]>();
+            byte[] prefix = literalPrefix(glob);
+            int block = bmap(inode(dirInode, dirIno), 0);
+            if (block == 0) {
+                return matched;
+            }
+            block = findLeaf(block, prefix);
+            int i = node.wrap(cache.get(block)).lowerBound(prefix);
+            while (block != 0) {
+                node.wrap(cache.get(block));
+                for (; i < node.count(); i++) {
+                    node.entry(entry, i);
+                    if (!entry.startsWith(prefix)) {
+                        return matched;
+                    }
+                    if (globMatches(glob, entry.name())) {
+                        matched.add(entry.nameBytes());
+                    }
+                }
+                block = node.next();
+                i = 0;
+            }
+            return matched;
+        }
+
+        /**
+         * Resolves a path to an inode number.  Paths are taken relative to
+         * the root directory whether or not they start with a slash.
+         * @return the inode number, or -1 if the path does not exist.
+         */
+        private int resolve(String path) {
+            int dir = parentOf(path);
+            if (dir == -1 || lastName == null) {
+                return dir;
+            }
+            return lookup(dir, lastName);
+        }
+
+        /**
+         * Resolves every component of a path but the last, and leaves the
+         * last component, encoded, in lastName.  A path with no components
+         * resolves to the root directory with lastName null.
+         * @return the inode number of the directory named by the leading
+         * components, or -1 if it does not exist or a component is invalid.
+         */
+        private int parentOf(String path) {
+            lastName = null;
+            if (path == null) {
+                return -1;
+            }
+            int dir = ROOT_INODE;
+            byte[] name = null;
+            for (String component : path.split("/")) {
+                if (component.isEmpty()) {
+                    continue;
+                }
+                if (name != null) {
+                    dir = lookup(dir, name);
+                    if (dir == -1 || !inode(dirInode, dir).isDirectory()) {
+                        return -1;
+                    }
+                }
+                name = encodeName(component);
+                if (name == null) {
+                    return -1;
+                }
+            }
+            lastName = name;
+            return dir;
+        }
+
+        ////////////////////////////////////////////////// Directories
+
+        /**
+         * Looks up a name in a directory, consulting the name cache first
+         * and recording the result there on a miss.
+         * @return the inode number, or -1 if the name is not present.
+         */
+        private int lookup(int dirIno, byte[] name) {
+            Integer cached = names.get(dirIno, name);
+            if (cached != null) {
+                return cached;
+            }
+            int ino = treeFind(dirIno, name);
+            names.put(dirIno, name, ino);
+            return ino;
         }
-    }
 
+        /**
+         * Searches a directory's B+tree for a name.  On success the shared
+         * entry view is left positioned on the entry.
+         * @return the inode number, or -1 if the name is not present.
+         */
+        private int treeFind(int dirIno, byte[] name) {
+            int block = bmap(inode(dirInode, dirIno), 0);
+            if (block == 0) {
+                return -1;
+            }
+            block = findLeaf(block, name);
+            node.wrap(cache.get(block));
+            int i = node.lowerBound(name);
+            if (i < node.count() && node.entry(entry, i).compareName(name) == 0) {
+                return entry.inode();
+            }
+            return -1;
+        }
+
+        /**
+         * Descends from a node to the leaf whose range covers a name.
+         * @return the block number of the leaf.
+         */
+        private int findLeaf(int block, byte[] name) {
+            for (int depth = 0; ; depth++) {
+                node.wrap(cache.get(block));
+                if (node.isLeaf()) {
+                    return block;
+                }
+                if (depth == MAX_TREE_DEPTH) {
+                    throw new IllegalStateException("Directory tree is too deep");
+                }
+                block = node.child(node.upperBound(name));
+            }
+        }
+
+        /**
+         * Adds a name to a directory's B+tree.  Full nodes are split on the
+         * way down, so the leaf reached always has room.  The root stays in
+         * the directory's first block: when it is full its contents move to
+         * a new block, which becomes the root's only child, before the
+         * split.
+         * @return false if a new node was needed and no block was free.  The
+         * tree is left valid either way.
+         */
+        private boolean treeInsert(int dirIno, byte[] name, int ino) {
+            InodeView dir = inode(dirInode, dirIno);
+            int root = bmap(dir, 0);
+            if (root == 0) {
+                root = allocateNode(dir, dirIno);
+                if (root == -1) {
+                    return false;
+                }
+            }
+            if (node.wrap(cache.get(root)).count() == DirNodeView.MAX_KEYS) {
+                int moved = allocateNode(dir, dirIno);
+                if (moved == -1) {
+                    return false;
+                }
+                byte[] movedBuf = cache.get(moved);
+                byte[] rootBuf = cache.get(root);
+                cache.markDirty(root);
+                System.arraycopy(rootBuf, 0, movedBuf, 0, BLOCK_SIZE);
+                node.wrap(rootBuf).clear();
+                node.setLeaf(false);
+                node.setFirstChild(moved);
+                if (!splitChild(dir, dirIno, root, 0)) {
+                    return false;
+                }
+            }
+
+            int block = root;
+            while (!node.wrap(cache.get(block)).isLeaf()) {
+                int c = node.upperBound(name);
+                int child = node.child(c);
+                if (node.wrap(cache.get(child)).count() == DirNodeView.MAX_KEYS) {
+                    if (!splitChild(dir, dirIno, block, c)) {
+                        return false;
+                    }
+                    node.wrap(cache.get(block));
+                    child = node.child(node.upperBound(name));
+                }
+                block = child;
+            }
+            cache.markDirty(block);
+            int i = node.lowerBound(name);
+            node.insertAt(i);
+            node.entry(entry, i).setName(name);
+            entry.setInode(ino);
+
+            dir.setSize(dir.size() + DirEntryView.SIZE);
+            cache.markDirty(inodeBlock(dirIno));
+            return true;
+        }
+
+        /**
+         * Splits a full child of an internal node in two, moving the upper
+         * half of its records to a new node and adding a separator for the
+         * new node to the parent, which must not be full.  A leaf's
+         * separator is a copy of the new node's first name; an internal
+         * node's middle record moves up into the parent.
+         * @return false if no block was free for the new node.
+         */
+        private boolean splitChild(InodeView dir, int dirIno, int parent, int index) {
+            int right = allocateNode(dir, dirIno);
+            if (right == -1) {
+                return false;
+            }
+            byte[] rightBuf = cache.get(right);
+            byte[] parentBuf = cache.get(parent);
+            cache.markDirty(parent);
+            int left = node.wrap(parentBuf).child(index);
+            byte[] leftBuf = cache.get(left);
+            cache.markDirty(left);
+
+            node.wrap(leftBuf);
+            sibling.wrap(rightBuf);
+            int half = DirNodeView.MAX_KEYS / 2;
+            if (node.isLeaf()) {
+                node.moveTail(half, sibling);
+                sibling.setNext(node.next());
+                node.setNext(right);
+                System.arraycopy(rightBuf, DirNodeView.offset(0), blockBuffer, 0, DirEntryView.SIZE);
+            } else {
+                System.arraycopy(leftBuf, DirNodeView.offset(half), blockBuffer, 0, DirEntryView.SIZE);
+                sibling.setLeaf(false);
+                sibling.setFirstChild(node.entry(entry, half).inode());
+                node.removeAt(half);
+                node.moveTail(half, sibling);
+            }
+
+            // The separator is in blockBuffer; point it at the new node.
+            node.wrap(parentBuf).insertAt(index);
+            System.arraycopy(blockBuffer, 0, parentBuf, DirNodeView.offset(index), DirEntryView.SIZE);
+            node.entry(entry, index).setInode(right);
+            return true;
+        }
+
+        /**
+         * Allocates a block for a new, empty B+tree node and appends it to a
+         * directory's block map.
+         * @return the block number, or -1 if no block was free or the
+         * directory's block map is full.
+         */
+        private int allocateNode(InodeView dir, int dirIno) {
+            if (dir.blockCount() >= MAX_FILE_BLOCKS) {
+                return -1;
+            }
+            int block = findFreeBlock(goal(dir, dirIno, dir.blockCount()));
+            if (block == -1 || !setBmap(dir, dirIno, dir.blockCount(), block)) {
+                return -1;
+            }
+            cache.getZeroed(block);
+            return block;
+        }
+
+        /**
+         * Removes a name from a directory's B+tree.  Nodes are not merged
+         * as they empty; instead the whole tree is freed once the directory
+         * holds no names.
+         * @return false if the name was not present.
+         */
+        private boolean treeRemove(int dirIno, byte[] name) {
+            InodeView dir = inode(dirInode, dirIno);
+            int root = bmap(dir, 0);
+            if (root == 0) {
+                return false;
+            }
+            int leaf = findLeaf(root, name);
+            node.wrap(cache.get(leaf));
+            int i = node.lowerBound(name);
+            if (i == node.count() || node.entry(entry, i).compareName(name) != 0) {
+                return false;
+            }
+            cache.markDirty(leaf);
+            node.removeAt(i);
+
+            dir.setSize(dir.size() - DirEntryView.SIZE);
+            if (dir.size() == 0) {
+                truncateBlocks(dir, dirIno, 0);
+            }
+            cache.markDirty(inodeBlock(dirIno));
+            return true;
+        }
+
+        ////////////////////////////////////////////////// Inodes and blocks
+
+        /** Returns the disk block holding an inode, or 0 if it has none. */
+        private int inodeBlock(int ino) {
+            return inodeTable[ino / INODES_PER_BLOCK];
+        }
+
+        /**
+         * Points a view at an inode record.  An inode whose block of the
+         * table has no disk block reads as free, and must not be written.
+         */
+        private InodeView inode(InodeView view, int ino) {
+            int block = inodeBlock(ino);
+            return view.wrap(block == 0 ? NO_INODES : cache.get(block),
+                    (ino % INODES_PER_BLOCK) * InodeView.SIZE);
+        }
+
+        /**
+         * Returns the number of an unused inode, or -1.  The search starts
+         * in a group's run of inodes and moves on to the following groups.
+         */
+        private int findFreeInode(int group) {
+            return findFreeInodeFrom(group * INODES_PER_GROUP);
+        }
+
+        /**
+         * Returns the number of an unused inode at or after a given one,
+         * moving on through the following groups and wrapping around, or
+         * -1.  Within each group a free inode in a block of the table that
+         * already exists is preferred to one that needs a new block.
+         */
+        private int findFreeInodeFrom(int start) {
+            for (int n = 0; n <= GROUP_COUNT; n++) {
+                int group = (inodeGroup(start) + n) % GROUP_COUNT;
+                int from = n == 0 ? start : group * INODES_PER_GROUP;
+                int to = n == 0 || n == GROUP_COUNT ? INODES_PER_GROUP * (group + 1)
+                        : from + INODES_PER_GROUP;
+                for (int ino = from; ino < to; ino++) {
+                    int index = ino / INODES_PER_BLOCK;
+                    if (inodeTable[index] == 0 || inodesUsed[index] == INODES_PER_BLOCK) {
+                        ino = (index + 1) * INODES_PER_BLOCK - 1;
+                    } else if (ino != ROOT_INODE && !inode(fileInode, ino).isUsed()) {
+                        return ino;
+                    }
+                }
+                for (int index = from / INODES_PER_BLOCK; index * INODES_PER_BLOCK < to; index++) {
+                    if (inodeTable[index] == 0) {
+                        return Math.max(from, index * INODES_PER_BLOCK);
+                    }
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Gives the block of the inode table holding an inode a disk block,
+         * taken from the start of the inode's group, and keeps it in the
+         * cache.
+         * @return false if no block was free.
+         */
+        private boolean allocateInodeBlock(int ino) {
+            int block = findFreeBlock(groupStart(inodeGroup(ino)));
+            if (block == -1) {
+                return false;
+            }
+            claimBlock(block);
+            cache.pin(block);
+            cache.getZeroed(block);
+            setInodeBlock(ino / INODES_PER_BLOCK, block);
+            return true;
+        }
+
+        /** Frees the disk block of an empty block of the inode table. */
+        private void freeInodeBlock(int ino) {
+            int block = inodeBlock(ino);
+            setInodeBlock(ino / INODES_PER_BLOCK, 0);
+            releaseBlock(block);
+        }
+
+        /** Records the disk block of a block of the inode table in the map. */
+        private void setInodeBlock(int index, int block) {
+            inodeTable[index] = block;
+            Utilities.pack((short) block, cache.get(INODE_MAP), 2 * index);
+            cache.markDirty(INODE_MAP);
+        }
+
+        /**
+         * Reads the inode map at mount, and each block of the inode table
+         * into the cache to stay there.  A map that fails its checksum is
+         * still used, since nothing else says where the inodes are.
+         */
+        private void loadInodeTable() {
+            byte[] map;
+            try {
+                map = cache.get(INODE_MAP);
+            } catch (IllegalStateException e) {
+                output("Error: The inode map fails its checksum; fsck repair is needed.\n");
+                map = new byte[BLOCK_SIZE];
+                disk.read(INODE_MAP, map);
+                checksums.record(INODE_MAP, map);
+                map = cache.get(INODE_MAP);
+            }
+            for (int i = 0; i < INODE_BLOCKS; i++) {
+                inodeTable[i] = Utilities.unpackShort(map, 2 * i) & 0xffff;
+                if (inodeTable[i] < RESERVED_BLOCKS || inodeTable[i] >= DISK_SIZE) {
+                    inodeTable[i] = 0; // fsck reports it
+                } else {
+                    cache.pin(inodeTable[i]);
+                }
+            }
+            for (int block : inodeTable) {
+                if (block != 0) {
+                    cache.get(block);
+                }
+            }
+        }
+
+        /**
+         * Returns the number of a free data block, or -1.  The search starts
+         * at a goal block and moves on towards the end of the disk, then
+         * wraps around, so the block found is the nearest free one after
+         * the goal.
+         */
+        private int findFreeBlock(int goal) {
+            int i = freeMap.nextClearBit(Math.max(goal, RESERVED_BLOCKS));
+            if (i >= DISK_SIZE) {
+                i = freeMap.nextClearBit(RESERVED_BLOCKS);
+            }
+            return i < DISK_SIZE ? i : -1;
+        }
+
+        /**
+         * Picks a good place for a new block of a file: just after the block
+         * before it, if that is allocated, else the start of the group the
+         * file's inode belongs to.
+         */
+        private int goal(InodeView file, int ino, int index) {
+            if (index > 0) {
+                int previous = bmap(file, index - 1);
+                if (previous != 0) {
+                    return previous + 1;
+                }
+            }
+            return groupStart(inodeGroup(ino));
+        }
+
+        /**
+         * Picks the group for a new inode.  A file joins its directory's
+         * group.  A directory nested inside another joins its parent's
+         * group too, unless that group has less free space than average, in
+         * which case it goes to the group with the most free blocks.  A
+         * directory in the root goes to the group with the fewest
+         * directories among those with at least average free space, so
+         * that unrelated trees start out apart.
+         */
+        private int chooseGroup(int parent, boolean isDir) {
+            int home = inodeGroup(parent);
+            if (!isDir) {
+                return home;
+            }
+            int total = 0;
+            int roomiest = home;
+            for (int g = 0; g < GROUP_COUNT; g++) {
+                total += groupFree[g];
+                if (groupFree[g] > groupFree[roomiest]) {
+                    roomiest = g;
+                }
+            }
+            if (parent == ROOT_INODE) {
+                int best = -1;
+                for (int g = 0; g < GROUP_COUNT; g++) {
+                    if (groupFree[g] * GROUP_COUNT >= total
+                            && (best == -1 || groupDirs[g] < groupDirs[best]
+                                || (groupDirs[g] == groupDirs[best]
+                                    && groupFree[g] > groupFree[best]))) {
+                        best = g;
+                    }
+                }
+                return best == -1 ? roomiest : best;
+            }
+            return groupFree[home] * GROUP_COUNT >= total ? home : roomiest;
+        }
+
+        private static int inodeGroup(int ino) {
+            return Math.min(ino / INODES_PER_GROUP, GROUP_COUNT - 1);
+        }
+
+        private static int blockGroup(int block) {
+            return (block - RESERVED_BLOCKS) / GROUP_BLOCKS;
+        }
+
+        private static int groupStart(int group) {
+            return RESERVED_BLOCKS + group * GROUP_BLOCKS;
+        }
+
+        /**
+         * Recounts the free blocks in each group and segment from the free
+         * map, the directories in each group from the inode table, and the
+         * totals from both.
+         */
+        private void countGroups() {
+            Arrays.fill(groupFree, 0);
+            Arrays.fill(groupDirs, 0);
+            Arrays.fill(segmentFree, 0);
+            Arrays.fill(inodesUsed, 0);
+            freeBlocks = 0;
+            fileCount = 0;
+            dirCount = 0;
+            fileBytes = 0;
+            for (int i = freeMap.nextClearBit(RESERVED_BLOCKS); i < DISK_SIZE;
+                    i = freeMap.nextClearBit(i + 1)) {
+                groupFree[blockGroup(i)]++;
+                segmentFree[segmentOf(i)]++;
+                freeBlocks++;
+            }
+            for (int ino = 0; ino < INODE_COUNT; ino++) {
+                InodeView file = inode(fileInode, ino);
+                if (!file.isUsed()) {
+                    continue;
+                }
+                inodesUsed[ino / INODES_PER_BLOCK]++;
+                if (file.isDirectory()) {
+                    groupDirs[inodeGroup(ino)]++;
+                    dirCount++;
+                } else {
+                    fileCount++;
+                    fileBytes += file.size();
+                }
+            }
+        }
+
+        /** Stores the totals in the superblock, in the order of the STAT_ indexes. */
+        private void packCounts(byte[] superBlock) {
+            Utilities.pack(freeBlocks, superBlock, COUNTS_OFFSET);
+            Utilities.pack(fileCount, superBlock, COUNTS_OFFSET + 4);
+            Utilities.pack(dirCount, superBlock, COUNTS_OFFSET + 8);
+            Utilities.pack(fileBytes, superBlock, COUNTS_OFFSET + 12);
+        }
+
+        /**
+         * Maps a logical block of a file to a disk block.
+         * @return the disk block, or 0 if none is allocated or the file is
+         * inline.
+         */
+        private int bmap(InodeView file, int index) {
+            if (file.hasFlag(InodeView.FLAG_INLINE)) {
+                return 0;
+            }
+            if (index < InodeView.DIRECT_COUNT) {
+                return file.direct(index);
+            }
+            int indirect = file.indirect();
+            if (indirect == 0) {
+                return 0;
+            }
+            return Utilities.unpackShort(cache.get(indirect),
+                    2 * (index - InodeView.DIRECT_COUNT)) & 0xffff;
+        }
+
+        /**
+         * Points a logical block of a file at a disk block, which is either
+         * free or (when deduplicating) already holds the same data.  The
+         * indirect block is allocated if needed.
+         * @return false if an indirect block was needed and none was free.
+         */
+        private boolean setBmap(InodeView file, int ino, int index, int block) {
+            claimBlock(block);
+            if (index < InodeView.DIRECT_COUNT) {
+                file.setDirect(index, block);
+            } else {
+                int indirect = file.indirect();
+                if (indirect == 0) {
+                    indirect = findFreeBlock(block);
+                    if (indirect == -1) {
+                        if (--refCount[block] == 0) {
+                            setUsed(block, false);
+                        }
+                        return false;
+                    }
+                    claimBlock(indirect);
+                    cache.getZeroed(indirect);
+                    file.setIndirect(indirect);
+                }
+                Utilities.pack((short) block, cache.get(indirect),
+                        2 * (index - InodeView.DIRECT_COUNT));
+                cache.markDirty(indirect);
+            }
+            file.setBlockCount(file.blockCount() + 1);
+            cache.markDirty(inodeBlock(ino));
+            return true;
+        }
+
+        /** Frees every block of a file at or past a logical block index. */
+        private void truncateBlocks(InodeView file, int ino, int keep) {
+            for (int i = keep; i < MAX_FILE_BLOCKS; i++) {
+                if (i >= InodeView.DIRECT_COUNT && file.indirect() == 0) {
+                    break;
+                }
+                unmapBlock(file, ino, i);
+            }
+            if (keep <= InodeView.DIRECT_COUNT && file.indirect() != 0) {
+                releaseBlock(file.indirect());
+                file.setIndirect(0);
+                cache.markDirty(inodeBlock(ino));
+            }
+        }
+
+        /** Frees the block behind one logical block of a file, if any. */
+        private void unmapBlock(InodeView file, int ino, int index) {
+            int block = bmap(file, index);
+            if (block == 0) {
+                return;
+            }
+            releaseBlock(block);
+            if (index < InodeView.DIRECT_COUNT) {
+                file.setDirect(index, 0);
+            } else {
+                Utilities.pack((short) 0, cache.get(file.indirect()),
+                        2 * (index - InodeView.DIRECT_COUNT));
+                cache.markDirty(file.indirect());
+            }
+            file.setBlockCount(file.blockCount() - 1);
+            cache.markDirty(inodeBlock(ino));
+        }
+
+        /**
+         * Copies bytes into a file, reading back any partially overwritten
+         * block first.  Does not shrink the file.
+         * @return false if the disk filled up part way through.
+         */
+        private boolean writeRange(InodeView file, int ino, int position,
+                                   byte[] buf, int off, int len) {
+            int size = file.size();
+            int end = position + len;
+            batching = true;
+            try {
+                for (int pos = position; pos < end; ) {
+                    int index = pos / BLOCK_SIZE;
+                    int start = pos % BLOCK_SIZE;
+                    int n = Math.min(BLOCK_SIZE - start, end - pos);
+                    int src = off + (pos - position);
+                    byte[] data = blockBuffer;
+                    if (n == BLOCK_SIZE && src == 0 && buf.length >= BLOCK_SIZE) {
+                        data = buf;
+                    } else {
+                        if (n < BLOCK_SIZE) {
+                            loadBlock(file, index, size, blockBuffer);
+                        }
+                        System.arraycopy(buf, src, blockBuffer, start, n);
+                    }
+                    if (!storeBlock(file, ino, index, data)) {
+                        return false;
+                    }
+                    pos += n;
+                }
+            } finally {
+                flushWrites();
+                batching = false;
+            }
+            if (end > size) {
+                setFileSize(file, end);
+                cache.markDirty(inodeBlock(ino));
+            }
+            return true;
+        }
+
+        /**
+         * Reads one logical block of a file, with holes and any bytes past
+         * the end of the file returned as zeros.
+         */
+        private void loadBlock(InodeView file, int index, int size, byte[] buf) {
+            int block = bmap(file, index);
+            int valid = Math.max(0, Math.min(BLOCK_SIZE, size - index * BLOCK_SIZE));
+            if (block == 0 || valid == 0) {
+                Arrays.fill(buf, 0, BLOCK_SIZE, (byte) 0);
+            } else {
+                readBlock(block, buf);
+                Arrays.fill(buf, valid, BLOCK_SIZE, (byte) 0);
+            }
+        }
+
+        /**
+         * Reads a data block from the disk and checks it against its
+         * checksum.
+         * @throws IllegalStateException if the block fails its checksum.
+         */
+        private void readBlock(int block, byte[] buf) {
+            readBlock(block, buf, 0);
+        }
+
+        /** Reads a data block into part of a larger buffer, and checks it. */
+        private void readBlock(int block, byte[] buf, int offset) {
+            flushWrites();
+            disk.read(block, buf, offset);
+            checksums.verify(block, buf, offset);
+        }
+
+        /**
+         * Reads logical blocks of a file into a buffer, one BLOCK_SIZE slot
+         * each, and checks them.  Each run of them that lies in consecutive
+         * disk blocks is read with one request.  Holes read as zeros.
+         * @throws IllegalStateException if a block fails its checksum.
+         */
+        private void readBlocks(InodeView file, int index, int count, byte[] buf, int offset) {
+            for (int i = 0; i < count; ) {
+                int dst = offset + i * BLOCK_SIZE;
+                int block = bmap(file, index + i);
+                if (block == 0) {
+                    Arrays.fill(buf, dst, dst + BLOCK_SIZE, (byte) 0);
+                    i++;
+                    continue;
+                }
+                int run = 1;
+                while (i + run < count && run < MAX_RUN
+                        && bmap(file, index + i + run) == block + run) {
+                    run++;
+                }
+                flushWrites();
+                disk.readBlocks(block, run, buf, dst);
+                for (int j = 0; j < run; j++) {
+                    checksums.verify(block + j, buf, dst + j * BLOCK_SIZE);
+                }
+                i += run;
+            }
+        }
+
+        /**
+         * Writes a data block and records its checksum.  During a
+         * writeRange the block is held back, so that consecutive blocks
+         * reach the disk as one request.
+         */
+        private void writeBlock(int block, byte[] buf) {
+            checksums.record(block, buf);
+            if (!batching) {
+                disk.write(block, buf);
+                return;
+            }
+            if (pendingCount == MAX_RUN
+                    || (pendingCount > 0 && block != pendingStart + pendingCount)) {
+                flushWrites();
+            }
+            if (pendingCount == 0) {
+                pendingStart = block;
+            }
+            System.arraycopy(buf, 0, pendingData, pendingCount++ * BLOCK_SIZE, BLOCK_SIZE);
+        }
+
+        /** Sends the data blocks held back by writeBlock to the disk. */
+        private void flushWrites() {
+            if (pendingCount > 0) {
+                disk.writeBlocks(pendingStart, pendingCount, pendingData, 0);
+                pendingCount = 0;
+            }
+        }
+
+        /**
+         * Stores one logical block of a file, allocating a disk block on
+         * first write.  A block of zeros is stored as a hole instead.
+         * @return false if a block was needed and none was free.
+         */
+        private boolean storeBlock(InodeView file, int ino, int index, byte[] data) {
+            int block = bmap(file, index);
+            if (Arrays.mismatch(data, 0, BLOCK_SIZE, ZERO_BLOCK, 0, BLOCK_SIZE) == -1) {
+                unmapBlock(file, ino, index);
+                return true;
+            }
+            ByteBuffer key = null;
+            if (dedup) {
+                key = fingerprint(data);
+                Integer match = fingerprints.get(key);
+                if (match != null) {
+                    if (match != block) {
+                        unmapBlock(file, ino, index);
+                        return setBmap(file, ino, index, match);
+                    }
+                    return true;
+                }
+            }
+            if (block != 0 && (refCount[block] > 1 || log)) {
+                // Shared with another file, or logging: copy on write.
+                unmapBlock(file, ino, index);
+                block = 0;
+            }
+            if (block == 0) {
+                block = log ? appendBlock(-1) : findFreeBlock(goal(file, ino, index));
+                if (block == -1 || !setBmap(file, ino, index, block)) {
+                    return false;
+                }
+            } else {
+                forgetFingerprint(block);
+            }
+            writeBlock(block, data);
+            if (key != null) {
+                fingerprints.put(key, block);
+                fingerprintOf[block] = key;
+            }
+            return true;
+        }
+
+        /** Computes the fingerprint of a block of data. */
+        private ByteBuffer fingerprint(byte[] data) {
+            sha.update(data, 0, BLOCK_SIZE);
+            return ByteBuffer.wrap(sha.digest());
+        }
+
+        /** Removes a block from the deduplication index. */
+        private void forgetFingerprint(int block) {
+            ByteBuffer key = fingerprintOf[block];
+            if (key != null) {
+                fingerprints.remove(key);
+                fingerprintOf[block] = null;
+            }
+        }
+
+        /**
+         * Recounts the references to every block from the inode map and
+         * the inode table, and if deduplication is on, re-indexes every
+         * file data block.
+         */
+        private void rebuildReferences() {
+            Arrays.fill(refCount, 0);
+            Arrays.fill(fingerprintOf, null);
+            fingerprints.clear();
+            for (int block : inodeTable) {
+                if (block != 0) {
+                    refCount[block]++;
+                }
+            }
+            for (int ino = 0; ino < INODE_COUNT; ino++) {
+                InodeView file = inode(fileInode, ino);
+                if (!file.isUsed()) {
+                    continue;
+                }
+                if (file.indirect() != 0) {
+                    refCount[file.indirect()]++;
+                }
+                for (int i = 0; i < MAX_FILE_BLOCKS; i++) {
+                    if (i >= InodeView.DIRECT_COUNT && file.indirect() == 0) {
+                        break;
+                    }
+                    int block = bmap(file, i);
+                    if (block == 0) {
+                        continue;
+                    }
+                    if (refCount[block]++ == 0 && dedup && !file.isDirectory()) {
+                        // A block that fails its checksum is not indexed,
+                        // so no new copy will share it.
+                        disk.read(block, blockBuffer);
+                        ByteBuffer key = fingerprint(blockBuffer);
+                        if (checksums.matches(block, blockBuffer) && !fingerprints.containsKey(key)) {
+                            fingerprints.put(key, block);
+                            fingerprintOf[block] = key;
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Replaces the contents of a file, compressing them if the file asks
+         * for it and doing so saves at least one block.  The old contents
+         * are overwritten in place, so nothing is touched until the free
+         * map is known to hold every block the new ones could need.
+         * @return false if the disk is too full for the new contents, in
+         * which case the file is left as it was.
+         */
+        private boolean storeContents(InodeView file, int ino, byte[] data, int length) {
+            if (length <= InodeView.INLINE_CAPACITY) {
+                truncateBlocks(file, ino, 0);
+                file.setFlags(file.flags() & ~InodeView.FLAG_COMPRESSED | InodeView.FLAG_INLINE);
+                file.writeInline(data, 0, 0, length);
+                file.clearInline(length);
+                setFileSize(file, length);
+                cache.markDirty(inodeBlock(ino));
+                return true;
+            }
+            byte[] stored = data;
+            int storedLength = length;
+            int flags = file.flags() & ~(InodeView.FLAG_COMPRESSED | InodeView.FLAG_INLINE);
+            if ((flags & InodeView.FLAG_COMPRESS) != 0) {
+                int packed = compress(data, length);
+                if (packed >= 0) {
+                    stored = packBuffer;
+                    storedLength = packed;
+                    flags |= InodeView.FLAG_COMPRESSED;
+                }
+            }
+            if (blocksNeeded(file, stored, storedLength) > freeBlocks) {
+                return false;
+            }
+            if (file.hasFlag(InodeView.FLAG_INLINE)) {
+                file.clearInline(0);
+            }
+            file.setFlags(flags);
+            setFileSize(file, 0);
+            boolean ok = writeRange(file, ino, 0, stored, 0, storedLength);
+            truncateBlocks(file, ino, ok ? blocksFor(storedLength) : 0);
+            setFileSize(file, ok ? length : 0);
+            cache.markDirty(inodeBlock(ino));
+            return ok;
+        }
+
+        /**
+         * Returns the most blocks that storing data over a file's blocks
+         * could take from the free map: one for each block of the data that
+         * is not all zeros and has no block of the file's own to overwrite
+         * in place, and one for the indirect block if it is missing.
+         */
+        private int blocksNeeded(InodeView file, byte[] data, int length) {
+            boolean inline = file.hasFlag(InodeView.FLAG_INLINE);
+            int count = blocksFor(length);
+            int needed = 0;
+            for (int i = 0; i < count; i++) {
+                int off = i * BLOCK_SIZE;
+                int n = Math.min(BLOCK_SIZE, length - off);
+                if (Arrays.mismatch(data, off, off + n, ZERO_BLOCK, 0, n) == -1) {
+                    continue;
+                }
+                int block = inline ? 0 : bmap(file, i);
+                if (block == 0 || log || refCount[block] > 1) {
+                    needed++;
+                }
+            }
+            if (count > InodeView.DIRECT_COUNT && (inline || file.indirect() == 0)) {
+                needed++;
+            }
+            return needed;
+        }
+
+        /**
+         * Reads the contents of a file, decompressing them if needed.
+         * @param length the length of the array returned; bytes past the end
+         * of the file are zero.
+         */
+        private byte[] readContents(InodeView file, int length) throws DataFormatException {
+            int size = Math.min(file.size(), length);
+            byte[] data = new byte[length];
+            if (file.hasFlag(InodeView.FLAG_INLINE)) {
+                file.readInline(0, data, 0, size);
+                return data;
+            }
+            if (file.hasFlag(InodeView.FLAG_COMPRESSED)) {
+                inflate(file, data, size);
+                return data;
+            }
+            int whole = size / BLOCK_SIZE;
+            readBlocks(file, 0, whole, data, 0);
+            if (size % BLOCK_SIZE != 0) {
+                loadBlock(file, whole, size, blockBuffer);
+                System.arraycopy(blockBuffer, 0, data, whole * BLOCK_SIZE, size % BLOCK_SIZE);
+            }
+            return data;
+        }
+
+        /**
+         * Moves an inline file's data out of its inode and into a block, so
+         * that it can grow past the inline capacity.
+         * @return false if a block was needed and none was free, in which
+         * case the file is left inline.
+         */
+        private boolean expandInline(InodeView file, int ino) {
+            if (!file.hasFlag(InodeView.FLAG_INLINE)) {
+                return true;
+            }
+            int size = file.size();
+            byte[] data = blockBuffer;
+            file.readInline(0, data, 0, size);
+            Arrays.fill(data, size, BLOCK_SIZE, (byte) 0);
+            file.clearInline(0);
+            file.setFlags(file.flags() & ~InodeView.FLAG_INLINE);
+            cache.markDirty(inodeBlock(ino));
+            if (size > 0 && !storeBlock(file, ino, 0, data)) {
+                file.setFlags(file.flags() | InodeView.FLAG_INLINE);
+                file.writeInline(data, 0, 0, size);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Compresses data into packBuffer.
+         * @return the compressed length, or -1 if compression would not
+         * save at least one block.
+         */
+        private int compress(byte[] data, int length) {
+            int limit = (blocksFor(length) - 1) * BLOCK_SIZE;
+            if (limit <= 0) {
+                return -1;
+            }
+            if (packBuffer.length < limit) {
+                packBuffer = new byte[limit];
+            }
+            deflater.reset();
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            int n = 0;
+            while (!deflater.finished() && n < limit) {
+                n += deflater.deflate(packBuffer, n, limit - n);
+            }
+            return deflater.finished() ? n : -1;
+        }
+
+        /**
+         * Decompresses the first length bytes of a compressed file, reading
+         * its blocks only as far as needed.
+         */
+        private void inflate(InodeView file, byte[] out, int length) throws DataFormatException {
+            inflater.reset();
+            int produced = 0;
+            int index = 0;
+            while (produced < length && !inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (index == MAX_FILE_BLOCKS) {
+                        throw new DataFormatException("Compressed data is truncated");
+                    }
+                    loadBlock(file, index++, Integer.MAX_VALUE, blockBuffer);
+                    inflater.setInput(blockBuffer, 0, BLOCK_SIZE);
+                }
+                int n = inflater.inflate(out, produced, length - produced);
+                if (n == 0 && !inflater.finished()
+                        && (inflater.needsDictionary() || !inflater.needsInput())) {
+                    // Corrupt data can stall the inflater with input left.
+                    throw new DataFormatException("Compressed data is corrupt");
+                }
+                produced += n;
+            }
+            Arrays.fill(out, produced, out.length, (byte) 0);
+        }
+
+        /** Returns the number of blocks needed to hold a number of bytes. */
+        private static int blocksFor(int bytes) {
+            return (bytes + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        }
+
+        /** Adds a reference to a block, taking it from the free map if new. */
+        private void claimBlock(int block) {
+            if (refCount[block]++ == 0) {
+                setUsed(block, true);
+            }
+        }
+
+        /**
+         * Drops a reference to a block.  Once nothing refers to it, the
+         * block is returned to the free map and its contents discarded.
+         */
+        private void releaseBlock(int block) {
+            if (--refCount[block] > 0) {
+                return;
+            }
+            refCount[block] = 0;
+            forgetFingerprint(block);
+            cache.invalidate(block);
+            if (log) {
+                // The copy on disk may still point here until the next
+                // checkpoint, so the block is not reused before then.
+                limbo[limboCount++] = block;
+                return;
+            }
+            setUsed(block, false);
+            checksums.forget(block);
+            flushWrites();
+            disk.discard(block);
+        }
+
+        /** Marks a data block used or free in the free map and the counts. */
+        private void setUsed(int block, boolean used) {
+            freeMap.set(block, used);
+            int delta = used ? -1 : 1;
+            groupFree[blockGroup(block)] += delta;
+            segmentFree[segmentOf(block)] += delta;
+            freeBlocks += delta;
+        }
+
+        /** Sets the size of a file, keeping the total of all sizes. */
+        private void setFileSize(InodeView file, int size) {
+            fileBytes += size - file.size();
+            file.setSize(size);
+        }
+
+        ////////////////////////////////////////////////// Log-structured mode
+
+        private static int segmentOf(int block) {
+            return (block - RESERVED_BLOCKS) / SEGMENT_BLOCKS;
+        }
+
+        private static int segmentStart(int segment) {
+            return RESERVED_BLOCKS + segment * SEGMENT_BLOCKS;
+        }
+
+        private static int segmentLength(int segment) {
+            return Math.min(SEGMENT_BLOCKS, DISK_SIZE - segmentStart(segment));
+        }
+
+        /** Returns the number of segments with no block in use. */
+        private int cleanSegments() {
+            int clean = 0;
+            for (int s = 0; s < SEGMENT_COUNT; s++) {
+                if (segmentFree[s] == segmentLength(s)) {
+                    clean++;
+                }
+            }
+            return clean;
+        }
+
+        /**
+         * Takes the block at the head of the log.  The head moves forward
+         * through its segment, then on to the next entirely free segment;
+         * if there is none, to the next free block anywhere.  Starts the
+         * cleaner when free segments run low.
+         * @param avoid a segment not to move into, or -1.
+         * @return the block, not yet claimed, or -1 if the disk is full.
+         */
+        private int appendBlock(int avoid) {
+            int block = -1;
+            // The head may have just crossed into the segment being
+            // cleaned, which the cleaner chose as it was not the one
+            // being filled; its blocks must not land there.
+            if (logHead != -1 && segmentOf(logHead) != avoid) {
+                int end = segmentStart(segmentOf(logHead)) + segmentLength(segmentOf(logHead));
+                int b = freeMap.nextClearBit(logHead);
+                if (b < end) {
+                    block = b;
+                }
+            }
+            if (block == -1) {
+                int from = logHead == -1 ? 0 : segmentOf(logHead) + 1;
+                for (int n = 0; n < SEGMENT_COUNT; n++) {
+                    int s = (from + n) % SEGMENT_COUNT;
+                    if (s != avoid && segmentFree[s] == segmentLength(s)) {
+                        block = segmentStart(s);
+                        break;
+                    }
+                }
+            }
+            if (block == -1) {
+                block = findFreeBlock(logHead == -1 ? RESERVED_BLOCKS : logHead);
+                if (block != -1 && segmentOf(block) == avoid) {
+                    block = findFreeBlock(segmentStart(avoid) + segmentLength(avoid));
+                    if (block != -1 && segmentOf(block) == avoid) {
+                        block = -1;
+                    }
+                }
+            }
+            if (block == -1) {
+                return -1;
+            }
+            logHead = block + 1 < DISK_SIZE ? block + 1 : -1;
+            if (cleaner == null && cleanSegments() < CLEAN_LOW) {
+                cleaner = new Thread(this::runCleaner, "Cleaner");
+                cleaner.setDaemon(true);
+                cleaner.start();
+            }
+            return block;
+        }
+
+        /** The cleaner thread: cleans one segment at a time until there
+         * are enough free segments or nothing more can be cleaned.  If
+         * cleaning fails, the thread still gives up its place, so that
+         * the next append can start another. */
+        private void runCleaner() {
+            try {
+                while (cleanSegment()) {
+                    Thread.yield();
+                }
+            } finally {
+                synchronized (this) {
+                    if (cleaner == Thread.currentThread()) {
+                        cleaner = null;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Empties the part-used segment with the fewest blocks in use by
+         * moving its blocks to the head of the log.  Only file data and
+         * indirect blocks are moved; a segment holding directory nodes or
+         * blocks shared between files is left alone.
+         * @return false, and the cleaner is finished, if there was no need
+         * to clean or no segment could be cleaned.
+         */
+        private synchronized boolean cleanSegment() {
+            if (log && limboCount > 0) {
+                checkpoint();
+            }
+            if (!log || cleanSegments() >= CLEAN_HIGH) {
+                cleaner = null;
+                return false;
+            }
+            // Find the owner of every block: an inode and logical index
+            // (-1 for an indirect block), or -1 for a block not to move.
+            int[] owner = new int[DISK_SIZE];
+            int[] ownerIndex = new int[DISK_SIZE];
+            Arrays.fill(owner, -1);
+            for (int ino = 0; ino < INODE_COUNT; ino++) {
+                InodeView file = inode(fileInode, ino);
+                if (!file.isUsed() || file.isDirectory()) {
+                    continue;
+                }
+                if (file.indirect() != 0) {
+                    owner[file.indirect()] = ino;
+                    ownerIndex[file.indirect()] = -1;
+                }
+                for (int i = 0; i < MAX_FILE_BLOCKS; i++) {
+                    if (i >= InodeView.DIRECT_COUNT && file.indirect() == 0) {
+                        break;
+                    }
+                    int block = bmap(file, i);
+                    if (block != 0 && refCount[block] == 1) {
+                        owner[block] = ino;
+                        ownerIndex[block] = i;
+                    }
+                }
+            }
+            int free = 0;
+            for (int s = 0; s < SEGMENT_COUNT; s++) {
+                free += segmentFree[s];
+            }
+            int victim = -1;
+            int head = logHead == -1 ? -1 : segmentOf(logHead - 1);
+            for (int s = 0; s < SEGMENT_COUNT; s++) {
+                int live = segmentLength(s) - segmentFree[s];
+                if (s == head || live == 0 || live > free - segmentFree[s]
+                        || (victim != -1 && live >= segmentLength(victim) - segmentFree[victim])) {
+                    continue;
+                }
+                boolean movable = true;
+                for (int b = segmentStart(s); b < segmentStart(s) + segmentLength(s); b++) {
+                    if (freeMap.get(b) && owner[b] == -1) {
+                        movable = false;
+                        break;
+                    }
+                }
+                if (movable) {
+                    victim = s;
+                }
+            }
+            if (victim == -1) {
+                cleaner = null;
+                return false;
+            }
+            for (int b = segmentStart(victim); b < segmentStart(victim) + segmentLength(victim); b++) {
+                if (freeMap.get(b)) {
+                    moveBlock(b, appendBlock(victim), owner[b], ownerIndex[b]);
+                }
+            }
+            checkpoint();
+            return true;
+        }
+
+        /**
+         * Moves a block that belongs to one file to a free block.
+         * @param block the block to move.
+         * @param moved the free block to move it to.
+         * @param ino the file's inode number.
+         * @param index the block's logical index in the file, or -1 if it is
+         * the file's indirect block.
+         */
+        private void moveBlock(int block, int moved, int ino, int index) {
+            claimBlock(moved);
+            InodeView file = inode(fileInode, ino);
+            if (index == -1) {
+                // An indirect block lives in the cache.
+                byte[] pointers = cache.get(block);
+                System.arraycopy(pointers, 0, cache.getZeroed(moved), 0, BLOCK_SIZE);
+                cache.markDirty(moved);
+                file.setIndirect(moved);
+            } else {
+                readBlock(block, blockBuffer);
+                writeBlock(moved, blockBuffer);
+                if (index < InodeView.DIRECT_COUNT) {
+                    file.setDirect(index, moved);
+                } else {
+                    Utilities.pack((short) moved, cache.get(file.indirect()),
+                            2 * (index - InodeView.DIRECT_COUNT));
+                    cache.markDirty(file.indirect());
+                }
+            }
+            cache.markDirty(inodeBlock(ino));
+            ByteBuffer key = fingerprintOf[block];
+            releaseBlock(block);
+            if (key != null) {
+                fingerprints.put(key, moved);
+                fingerprintOf[moved] = key;
+            }
+        }
+
+        ////////////////////////////////////////////////// Defragmentation
+
+        /**
+         * Moves a file's data blocks into one run of free blocks, in order.
+         * @return the number of blocks moved, or 0 if the file is already
+         * in one run, shares blocks, or no free run is long enough.
+         */
+        private int defragmentFile(int ino) {
+            InodeView file = inode(fileInode, ino);
+            if (!file.isUsed() || file.isDirectory() || file.blockCount() == 0) {
+                return 0;
+            }
+            int count = 0;
+            int breaks = 0;
+            int previous = 0;
+            for (int i = 0; i < MAX_FILE_BLOCKS; i++) {
+                if (i >= InodeView.DIRECT_COUNT && file.indirect() == 0) {
+                    break;
+                }
+                int block = bmap(file, i);
+                if (block == 0) {
+                    continue;
+                }
+                if (refCount[block] > 1) {
+                    return 0;
+                }
+                if (previous != 0 && block != previous + 1) {
+                    breaks++;
+                }
+                previous = block;
+                count++;
+            }
+            int target = breaks == 0 ? -1 : findFreeRun(groupStart(inodeGroup(ino)), count);
+            if (target == -1) {
+                return 0;
+            }
+            for (int i = 0; i < MAX_FILE_BLOCKS; i++) {
+                if (i >= InodeView.DIRECT_COUNT && file.indirect() == 0) {
+                    break;
+                }
+                int block = bmap(file, i);
+                if (block != 0) {
+                    moveBlock(block, target++, ino, i);
+                }
+            }
+            // A checkpoint frees the old blocks at once even when logging.
+            checkpoint();
+            return count;
+        }
+
+        /**
+         * Finds a run of free blocks, searching from a goal block towards
+         * the end of the disk and then from the start.
+         * @return the first block of the run, or -1 if there is none.
+         */
+        private int findFreeRun(int goal, int length) {
+            int[] starts = { Math.max(goal, RESERVED_BLOCKS), RESERVED_BLOCKS };
+            for (int start : starts) {
+                for (int i = freeMap.nextClearBit(start); i + length <= DISK_SIZE; ) {
+                    int end = freeMap.nextSetBit(i);
+                    if (end < 0 || end - i >= length) {
+                        return i;
+                    }
+                    i = freeMap.nextClearBit(end);
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Describes how fragmented the file system is: the share of
+         * consecutive data blocks of files that are not next to each other
+         * on the disk, and the number of runs the free space is in.
+         */
+        private String fragmentationReport() {
+            int pairs = 0;
+            int breaks = 0;
+            for (int ino = ROOT_INODE + 1; ino < INODE_COUNT; ino++) {
+                InodeView file = inode(fileInode, ino);
+                if (!file.isUsed() || file.isDirectory()) {
+                    continue;
+                }
+                int previous = 0;
+                for (int i = 0; i < MAX_FILE_BLOCKS; i++) {
+                    if (i >= InodeView.DIRECT_COUNT && file.indirect() == 0) {
+                        break;
+                    }
+                    int block = bmap(file, i);
+                    if (block == 0) {
+                        continue;
+                    }
+                    if (previous != 0) {
+                        pairs++;
+                        if (block != previous + 1) {
+                            breaks++;
+                        }
+                    }
+                    previous = block;
+                }
+            }
+            int runs = 0;
+            for (int i = freeMap.nextClearBit(RESERVED_BLOCKS); i < DISK_SIZE; ) {
+                runs++;
+                int end = freeMap.nextSetBit(i);
+                i = end < 0 ? DISK_SIZE : freeMap.nextClearBit(end);
+            }
+            return String.format("%.1f%% of file blocks out of sequence, free space in %d runs",
+                    pairs == 0 ? 0.0 : 100.0 * breaks / pairs, runs);
+        }
+
+        ////////////////////////////////////////////////// Consistency check
+
+        /** The name of the directory that orphaned inodes are filed under. */
+        private static final byte[] LOST_FOUND = encodeName("lost+found");
+
+        /** A directory entry as found by a check. */
+        private static final class EntryRef {
+            final int block;
+            final int index;
+            final int ino;
+            final String name;
+            String problem; // null if the entry is good
+
+            EntryRef(int block, int index, int ino, String name) {
+                this.block = block;
+                this.index = index;
+                this.ino = ino;
+                this.name = name;
+            }
+        }
+
+        /**
+         * What a check has learned about the file system.  The per-inode
+         * arrays are filled in by parallel InodeScan tasks, each writing
+         * only the slots of its own inodes; the reference counts are shared
+         * and atomic.
+         */
+        private static final class CheckState {
+            /** A copy of the whole disk, read before the workers start. */
+            final byte[] image = new byte[DISK_SIZE * BLOCK_SIZE];
+
+            /** A copy of the inode table, and which inodes are used. */
+            final byte[][] table = new byte[INODE_BLOCKS][];
+            final boolean[] used = new boolean[INODE_COUNT];
+            boolean shared; // FEATURE_SHARED is set
+
+            /** Pointers to each block from block maps, and from indirect
+             * pointers and directory maps alone. */
+            final AtomicIntegerArray refs = new AtomicIntegerArray(DISK_SIZE);
+            final AtomicIntegerArray metaRefs = new AtomicIntegerArray(DISK_SIZE);
+
+            /** Each file's block map: the block at each logical index, 0
+             * for a hole, or -1 for a bad pointer. */
+            final int[][] blocks = new int[INODE_COUNT][];
+
+            /** Repairs to each inode. */
+            final boolean[] clear = new boolean[INODE_COUNT];
+            final boolean[] badIndirect = new boolean[INODE_COUNT];
+            final boolean[] wrongCount = new boolean[INODE_COUNT];
+            final int[] newSize = new int[INODE_COUNT];
+
+            /** Each directory's entries, and whether its tree is broken. */
+            final EntryRef[][] entries = new EntryRef[INODE_COUNT][];
+            final boolean[] badTree = new boolean[INODE_COUNT];
+
+            /** Blocks that fail their checksums, and blocks in use that
+             * have none. */
+            final boolean[] badSum = new boolean[DISK_SIZE];
+            final boolean[] noSum = new boolean[DISK_SIZE];
+
+            /** The problems found with each inode, then all of them. */
+            final String[][] problems = new String[INODE_COUNT][];
+            final ArrayList<String> report = new ArrayList<String>();
+
+            /** Inodes no entry names, and the file blocks to give a copy
+             * of their own, as { inode, index }. */
+            final ArrayList<Integer> orphans = new ArrayList<Integer>();
+            final ArrayList<int[]> clones = new ArrayList<int[]>();
+
+            CheckState() {
+                Arrays.fill(newSize, -1);
+            }
+        }
+
+        /** Scans a range of inodes, splitting it among worker threads. */
+        private final class InodeScan extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final CheckState state;
+            private final int from;
+            private final int to;
+
+            InodeScan(CheckState state, int from, int to) {
+                this.state = state;
+                this.from = from;
+                this.to = to;
+            }
+
+            protected void compute() {
+                if (to - from > INODES_PER_BLOCK) {
+                    int middle = (from + to) >>> 1;
+                    invokeAll(new InodeScan(state, from, middle), new InodeScan(state, middle, to));
+                    return;
+                }
+                InodeView file = new InodeView();
+                byte[] buf = new byte[BLOCK_SIZE];
+                for (int ino = from; ino < to; ino++) {
+                    ArrayList<String> problems = new ArrayList<String>();
+                    scanInode(state, ino, file, buf, problems);
+                    state.problems[ino] = problems.toArray(new String[0]);
+                }
+            }
+        }
+
+        /** Walks one directory's B+tree, checking its structure and names. */
+        private final class TreeWalk {
+            private final CheckState state;
+            private final int dir;
+            private final ArrayList<String> problems;
+
+            /** The directory's blocks, and those the walk has reached. */
+            private final HashSet<Integer> owned = new HashSet<Integer>();
+            private final HashSet<Integer> reached = new HashSet<Integer>();
+
+            /** The leaves in name order, and the next pointer of each. */
+            private final ArrayList<Integer> leaves = new ArrayList<Integer>();
+            private final ArrayList<Integer> nexts = new ArrayList<Integer>();
+
+            final ArrayList<EntryRef> entries = new ArrayList<EntryRef>();
+            boolean broken;
+
+            TreeWalk(CheckState state, int dir, ArrayList<String> problems) {
+                this.state = state;
+                this.dir = dir;
+                this.problems = problems;
+                for (int block : state.blocks[dir]) {
+                    if (block > 0) {
+                        owned.add(block);
+                    }
+                }
+            }
+
+            /**
+             * Walks the subtree at a node, whose names must all lie in
+             * [low, high); a null bound is unbounded.
+             */
+            void walk(int block, int depth, byte[] low, byte[] high) {
+                if (!owned.contains(block) || !reached.add(block) || depth == MAX_TREE_DEPTH) {
+                    fail("node " + block + " is not a block of the directory, or is reached twice");
+                    return;
+                }
+                byte[] buf = new byte[BLOCK_SIZE];
+                if (!readForCheck(state, block, buf)) {
+                    problems.add("directory " + dir + ": node " + block + " fails its checksum");
+                    state.badSum[block] = true;
+                }
+                DirNodeView view = new DirNodeView().wrap(buf);
+                int n = view.count();
+                if (n > DirNodeView.MAX_KEYS) {
+                    fail("node " + block + " claims " + n + " names");
+                    return;
+                }
+                DirEntryView e = new DirEntryView();
+                byte[][] keys = new byte[n][];
+                byte[] previous = null;
+                boolean disordered = false;
+                for (int i = 0; i < n; i++) {
+                    view.entry(e, i);
+                    byte[] name = e.nameBytes();
+                    if (!view.isLeaf()) {
+                        keys[i] = name;
+                        if ((previous == null ? low : previous) != null
+                                && Arrays.compareUnsigned(name, previous == null ? low : previous) <= 0
+                                || high != null && Arrays.compareUnsigned(name, high) >= 0) {
+                            disordered = true;
+                        }
+                        previous = name;
+                        continue;
+                    }
+                    EntryRef ref = new EntryRef(block, i, e.inode(),
+                            "\"" + new String(name, StandardCharsets.UTF_8) + "\"");
+                    entries.add(ref);
+                    if (!e.hasValidName()) {
+                        ref.problem = "has a bad name";
+                        continue;
+                    }
+                    int order = previous == null ? 1 : Arrays.compareUnsigned(name, previous);
+                    if (order < 0 || previous == null && low != null && Arrays.compareUnsigned(name, low) < 0
+                            || high != null && Arrays.compareUnsigned(name, high) >= 0) {
+                        disordered = true;
+                    } else if (order == 0) {
+                        ref.problem = "repeats the name before it";
+                        continue;
+                    }
+                    previous = name;
+                    if (ref.ino == ROOT_INODE || ref.ino >= INODE_COUNT) {
+                        ref.problem = "names inode " + ref.ino + ", which is out of range";
+                    } else if (!state.used[ref.ino]) {
+                        ref.problem = "names inode " + ref.ino + ", which is free";
+                    }
+                }
+                if (disordered) {
+                    fail("names in node " + block + " are out of order");
+                }
+                if (view.isLeaf()) {
+                    leaves.add(block);
+                    nexts.add(view.next());
+                    return;
+                }
+                for (int c = 0; c <= n; c++) {
+                    walk(view.child(c), depth + 1, c == 0 ? low : keys[c - 1], c == n ? high : keys[c]);
+                }
+            }
+
+            /** Checks that the leaves are chained in order and that the
+             * walk reached every block of the directory. */
+            void finish() {
+                for (int k = 0; k < leaves.size(); k++) {
+                    int expected = k + 1 < leaves.size() ? leaves.get(k + 1) : 0;
+                    if (nexts.get(k) != expected) {
+                        fail("leaf " + leaves.get(k) + " is chained to " + nexts.get(k)
+                                + " rather than " + expected);
+                    }
+                }
+                if (!broken && reached.size() != owned.size()) {
+                    problems.add("directory " + dir + " holds " + (owned.size() - reached.size())
+                            + " blocks outside its tree");
+                }
+            }
+
+            private void fail(String problem) {
+                problems.add("directory " + dir + ": " + problem);
+                broken = true;
+            }
+        }
+
+        /**
+         * Reads the on-disk metadata and checks it.  The inode map and
+         * table are copied from the cache, which a checkpoint has just
+         * written back.  The rest of the disk is copied in one pass, so the
+         * parallel workers read that copy without taking the disk.
+         */
+        private CheckState scan() {
+            CheckState state = new CheckState();
+            disk.readBlocks(0, DISK_SIZE, state.image, 0);
+            byte[] map = cache.get(INODE_MAP);
+            for (int i = 0; i < INODE_BLOCKS; i++) {
+                int block = Utilities.unpackShort(map, 2 * i) & 0xffff;
+                state.table[i] = NO_INODES;
+                if (block == 0) {
+                    continue;
+                }
+                if (block != inodeTable[i]) {
+                    state.report.add("the inode map has a bad pointer " + block + " at entry " + i);
+                    continue;
+                }
+                state.refs.incrementAndGet(block);
+                state.metaRefs.incrementAndGet(block);
+                try {
+                    state.table[i] = cache.get(block).clone();
+                } catch (IllegalStateException e) {
+                    state.table[i] = new byte[BLOCK_SIZE];
+                    readForCheck(state, block, state.table[i]);
+                    state.report.add("inode table block " + block + " fails its checksum");
+                    state.badSum[block] = true;
+                }
+            }
+            InodeView file = new InodeView();
+            for (int ino = 0; ino < INODE_COUNT; ino++) {
+                state.used[ino] = checkInode(state, file, ino).isUsed();
+            }
+            byte[] superBlock = cache.get(SUPER_BLOCK);
+            state.shared = (Utilities.unpackInt(superBlock, FEATURES_OFFSET) & FEATURE_SHARED) != 0;
+
+            ForkJoinPool.commonPool().invoke(new InodeScan(state, 0, INODE_COUNT));
+
+            for (String[] problems : state.problems) {
+                state.report.addAll(Arrays.asList(problems));
+            }
+            checkNames(state);
+            BitSet stored = Utilities.unpackBitSet(superBlock, BITMAP_OFFSET, DISK_SIZE);
+            checkBlocks(state, stored);
+            checkCounts(state, superBlock, stored);
+            return state;
+        }
+
+        /** Points a view at an inode record in a check's copy of the table. */
+        private static InodeView checkInode(CheckState state, InodeView view, int ino) {
+            return view.wrap(state.table[ino / INODES_PER_BLOCK],
+                    (ino % INODES_PER_BLOCK) * InodeView.SIZE);
+        }
+
+        /**
+         * Reads a block from a check's copy of the disk.  The copy is never
+         * written, so worker threads share it without locking.
+         * @return whether the block passes its checksum.
+         */
+        private boolean readForCheck(CheckState state, int block, byte[] buf) {
+            System.arraycopy(state.image, block * BLOCK_SIZE, buf, 0, BLOCK_SIZE);
+            return checksums.matches(block, buf);
+        }
+
+        /**
+         * Checks one inode: its flags, size, block count, and pointers, and
+         * if it is a directory, its tree.  Runs on a worker thread, so it
+         * touches only the check's state, never the cache.
+         */
+        private void scanInode(CheckState state, int ino, InodeView file, byte[] buf,
+                               ArrayList<String> problems) {
+            checkInode(state, file, ino);
+            String what = (file.isDirectory() ? "directory " : "file ") + ino;
+            if (!file.isUsed()) {
+                byte[] table = state.table[ino / INODES_PER_BLOCK];
+                int offset = (ino % INODES_PER_BLOCK) * InodeView.SIZE;
+                for (int i = offset; i < offset + InodeView.SIZE; i++) {
+                    if (table[i] != 0) {
+                        problems.add("inode " + ino + " is free but not cleared");
+                        state.clear[ino] = true;
+                        break;
+                    }
+                }
+                return;
+            }
+            if (ino == ROOT_INODE && !file.isDirectory()) {
+                problems.add("the root inode is not a directory");
+                return;
+            }
+
+            int[] map;
+            if (file.hasFlag(InodeView.FLAG_INLINE)) {
+                map = new int[0];
+                if (file.isDirectory()) {
+                    problems.add(what + " is marked inline");
+                }
+                if (file.size() > InodeView.INLINE_CAPACITY) {
+                    problems.add(what + " is inline but " + file.size() + " bytes long");
+                    state.newSize[ino] = InodeView.INLINE_CAPACITY;
+                }
+                if (file.indirect() != 0) {
+                    problems.add(what + " is inline but has an indirect block");
+                    state.badIndirect[ino] = true;
+                }
+            } else {
+                map = new int[MAX_FILE_BLOCKS];
+                for (int i = 0; i < InodeView.DIRECT_COUNT; i++) {
+                    map[i] = file.direct(i);
+                }
+                int indirect = file.indirect();
+                if (indirect != 0 && (indirect < RESERVED_BLOCKS || indirect >= DISK_SIZE)) {
+                    problems.add(what + " has a bad indirect block " + indirect);
+                    state.badIndirect[ino] = true;
+                } else if (indirect != 0) {
+                    state.refs.incrementAndGet(indirect);
+                    state.metaRefs.incrementAndGet(indirect);
+                    if (!readForCheck(state, indirect, buf)) {
+                        problems.add(what + " has indirect block " + indirect + ", which fails its checksum");
+                        state.badSum[indirect] = true;
+                    }
+                    for (int i = 0; i < POINTERS_PER_BLOCK; i++) {
+                        map[InodeView.DIRECT_COUNT + i] = Utilities.unpackShort(buf, 2 * i) & 0xffff;
+                    }
+                }
+                int limit = file.isDirectory() ? MAX_FILE_BLOCKS
+                        : blocksFor(Math.max(0, Math.min(file.size(), MAX_FILE_SIZE)));
+                if (file.size() < 0 || file.size() > MAX_FILE_SIZE) {
+                    problems.add(what + " is " + file.size() + " bytes long");
+                    state.newSize[ino] = file.size() < 0 ? 0 : MAX_FILE_SIZE;
+                }
+                for (int i = 0; i < MAX_FILE_BLOCKS; i++) {
+                    int block = map[i];
+                    if (block == 0) {
+                        continue;
+                    }
+                    if (block < RESERVED_BLOCKS || block >= DISK_SIZE) {
+                        problems.add(what + " has a bad pointer " + block + " at block " + i);
+                        map[i] = -1;
+                    } else if (i >= limit) {
+                        problems.add(what + " has block " + block + " past its end");
+                        map[i] = -1;
+                    } else {
+                        state.refs.incrementAndGet(block);
+                        if (file.isDirectory()) {
+                            state.metaRefs.incrementAndGet(block);
+                        } else if (!readForCheck(state, block, buf)) {
+                            // A directory's nodes are checked by its walk.
+                            problems.add(what + " has block " + block + ", which fails its checksum");
+                            state.badSum[block] = true;
+                        }
+                    }
+                }
+            }
+            state.blocks[ino] = map;
+
+            int count = 0;
+            for (int block : map) {
+                count += block > 0 ? 1 : 0;
+            }
+            if (file.blockCount() != count) {
+                problems.add(what + " counts " + file.blockCount() + " blocks but has " + count);
+                state.wrongCount[ino] = true;
+            }
+
+            if (!file.isDirectory() || file.hasFlag(InodeView.FLAG_INLINE)) {
+                return;
+            }
+            TreeWalk walk = new TreeWalk(state, ino, problems);
+            if (map[0] > 0) {
+                walk.walk(map[0], 0, null, null);
+                walk.finish();
+            } else if (file.size() != 0) {
+                walk.fail("holds names but has no tree");
+            }
+            state.entries[ino] = walk.entries.toArray(new EntryRef[0]);
+            state.badTree[ino] = walk.broken;
+            if (!walk.broken && file.size() != walk.entries.size() * DirEntryView.SIZE) {
+                problems.add(what + " is " + file.size() + " bytes long but holds "
+                        + walk.entries.size() + " names");
+                state.newSize[ino] = walk.entries.size() * DirEntryView.SIZE;
+            }
+        }
+
+        /**
+         * Checks that every used inode but the root is named exactly once
+         * and can be reached from the root.  A second name for an inode is
+         * a bad entry.
+         */
+        private void checkNames(CheckState state) {
+            int[] links = new int[INODE_COUNT];
+            for (int dir = 0; dir < INODE_COUNT; dir++) {
+                if (state.entries[dir] == null) {
+                    continue;
+                }
+                for (EntryRef ref : state.entries[dir]) {
+                    if (ref.problem == null && links[ref.ino]++ > 0) {
+                        ref.problem = "names inode " + ref.ino + ", which already has a name";
+                    }
+                    if (ref.problem != null) {
+                        state.report.add("directory " + dir + ": entry " + ref.name + " " + ref.problem);
+                    }
+                }
+            }
+
+            boolean[] reachable = new boolean[INODE_COUNT];
+            ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+            reachable[ROOT_INODE] = true;
+            queue.add(ROOT_INODE);
+            while (!queue.isEmpty()) {
+                EntryRef[] entries = state.entries[queue.poll()];
+                if (entries == null) {
+                    continue;
+                }
+                for (EntryRef ref : entries) {
+                    if (ref.problem == null && !reachable[ref.ino]) {
+                        reachable[ref.ino] = true;
+                        queue.add(ref.ino);
+                    }
+                }
+            }
+            for (int ino = 0; ino < INODE_COUNT; ino++) {
+                if (!state.used[ino] || reachable[ino]) {
+                    continue;
+                }
+                if (links[ino] == 0) {
+                    state.report.add("inode " + ino + " is used but has no name");
+                    state.orphans.add(ino);
+                } else {
+                    state.report.add("inode " + ino + " cannot be reached from the root");
+                }
+            }
+        }
+
+        /**
+         * Compares the free map rebuilt from the block maps with the one
+         * stored on disk, and looks for blocks claimed more than once.
+         * Unless deduplication has been used, no data block may be shared,
+         * and a metadata block may never be.
+         */
+        private void checkBlocks(CheckState state, BitSet stored) {
+            boolean[] leaked = new boolean[DISK_SIZE];
+            boolean[] unmarked = new boolean[DISK_SIZE];
+            for (int i = 0; i < DISK_SIZE; i++) {
+                boolean expected = i < RESERVED_BLOCKS || state.refs.get(i) > 0;
+                leaked[i] = stored.get(i) && !expected;
+                unmarked[i] = expected && !stored.get(i);
+            }
+            reportRuns(state, leaked, "in use but unreferenced");
+            reportRuns(state, unmarked, "in use but marked free");
+
+            for (int i = INODE_MAP; i < DISK_SIZE; i++) {
+                state.noSum[i] = checksums.covers(i) && !checksums.has(i)
+                        && (i < RESERVED_BLOCKS || state.refs.get(i) > 0);
+            }
+            reportRuns(state, state.noSum, "in use but without a checksum");
+
+            for (int i = RESERVED_BLOCKS; i < DISK_SIZE; i++) {
+                int refs = state.refs.get(i);
+                boolean meta = state.metaRefs.get(i) > 0;
+                if (refs > 1 && (meta || !state.shared)) {
+                    state.report.add("block " + i + " is claimed " + refs + " times"
+                            + (meta ? ", as metadata" : ""));
+                }
+            }
+            // Metadata keeps a block it shares, and otherwise the first file
+            // to claim it does; every other file gets a copy.
+            boolean[] kept = new boolean[DISK_SIZE];
+            for (int ino = 0; ino < INODE_COUNT; ino++) {
+                int[] map = state.blocks[ino];
+                if (map == null || state.entries[ino] != null) {
+                    continue;
+                }
+                for (int i = 0; i < map.length; i++) {
+                    int block = map[i];
+                    if (block <= 0 || state.refs.get(block) < 2) {
+                        continue;
+                    }
+                    if (state.metaRefs.get(block) > 0 || !state.shared && kept[block]) {
+                        state.clones.add(new int[] { ino, i });
+                    } else if (!state.shared) {
+                        kept[block] = true;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Checks the totals stored in the superblock against a recount of
+         * the free map and the inode table as stored.  Rebuilding the free
+         * map in a repair recounts them.
+         */
+        private void checkCounts(CheckState state, byte[] superBlock, BitSet stored) {
+            int[] actual = new int[4];
+            actual[0] = DISK_SIZE - RESERVED_BLOCKS - stored.get(RESERVED_BLOCKS, DISK_SIZE).cardinality();
+            InodeView file = new InodeView();
+            for (int ino = 0; ino < INODE_COUNT; ino++) {
+                if (!checkInode(state, file, ino).isUsed()) {
+                    continue;
+                }
+                if (file.isDirectory()) {
+                    actual[2]++;
+                } else {
+                    actual[1]++;
+                    actual[3] += file.size();
+                }
+            }
+            String[] what = { "free blocks", "files", "directories", "bytes in files" };
+            for (int i = 0; i < actual.length; i++) {
+                int count = Utilities.unpackInt(superBlock, COUNTS_OFFSET + 4 * i);
+                if (count != actual[i]) {
+                    state.report.add("the superblock counts " + count + " " + what[i]
+                            + " but there are " + actual[i]);
+                }
+            }
+        }
+
+        /** Reports each run of marked blocks as one problem. */
+        private static void reportRuns(CheckState state, boolean[] marked, String problem) {
+            for (int i = 0; i < DISK_SIZE; i++) {
+                if (!marked[i]) {
+                    continue;
+                }
+                int start = i;
+                while (i + 1 < DISK_SIZE && marked[i + 1]) {
+                    i++;
+                }
+                state.report.add((start == i ? "block " + i + " is " : "blocks " + start + "-" + i + " are ")
+                        + problem);
+            }
+        }
+
+        /**
+         * Drops the bad pointers from the inode map, repairs each inode's
+         * fields and pointers, rebuilds the free map and reference counts
+         * from the result, then gives each file a copy of every block it
+         * wrongly shares.
+         */
+        private void repairFiles(CheckState state) {
+            acceptContents(state);
+            byte[] inodeMap = cache.get(INODE_MAP);
+            for (int i = 0; i < INODE_BLOCKS; i++) {
+                if ((Utilities.unpackShort(inodeMap, 2 * i) & 0xffff) != inodeTable[i]) {
+                    setInodeBlock(i, inodeTable[i]);
+                }
+            }
+            for (int ino = 0; ino < INODE_COUNT; ino++) {
+                if (inodeBlock(ino) == 0) {
+                    continue;
+                }
+                InodeView file = inode(fileInode, ino);
+                if (state.clear[ino]) {
+                    file.clear();
+                } else if (state.used[ino]) {
+                    if (state.newSize[ino] >= 0) {
+                        file.setSize(state.newSize[ino]);
+                    }
+                    if (state.badIndirect[ino]) {
+                        file.setIndirect(0);
+                    }
+                    int[] map = state.blocks[ino];
+                    int count = 0;
+                    for (int i = 0; map != null && i < map.length; i++) {
+                        if (map[i] > 0) {
+                            count++;
+                        } else if (map[i] == -1 && i < InodeView.DIRECT_COUNT) {
+                            file.setDirect(i, 0);
+                        } else if (map[i] == -1) {
+                            Utilities.pack((short) 0, cache.get(file.indirect()),
+                                    2 * (i - InodeView.DIRECT_COUNT));
+                            cache.markDirty(file.indirect());
+                        }
+                    }
+                    if (state.wrongCount[ino]) {
+                        file.setBlockCount(count);
+                    }
+                }
+                cache.markDirty(inodeBlock(ino));
+            }
+            rebuildAllocation();
+
+            for (int[] clone : state.clones) {
+                InodeView file = inode(fileInode, clone[0]);
+                int copy = findFreeBlock(goal(file, clone[0], clone[1]));
+                if (copy == -1) {
+                    break;
+                }
+                moveBlock(bmap(file, clone[1]), copy, clone[0], clone[1]);
+            }
+            checkpoint();
+        }
+
+        /**
+         * Records new checksums for the blocks that fail theirs or have
+         * none, taking their contents as they are now.
+         */
+        private void acceptContents(CheckState state) {
+            byte[] buf = new byte[BLOCK_SIZE];
+            for (int i = INODE_MAP; i < DISK_SIZE; i++) {
+                if (state.badSum[i] || state.noSum[i]) {
+                    disk.read(i, buf);
+                    checksums.record(i, buf);
+                }
+            }
+        }
+
+        /**
+         * Removes the bad entries from each directory whose tree is sound,
+         * last first within each node so that the positions found by the
+         * scan stay right.
+         */
+        private void repairEntries(CheckState state) {
+            for (int dir = 0; dir < INODE_COUNT; dir++) {
+                if (state.entries[dir] == null || state.badTree[dir]) {
+                    continue;
+                }
+                int removed = 0;
+                EntryRef[] entries = state.entries[dir];
+                for (int k = entries.length - 1; k >= 0; k--) {
+                    if (entries[k].problem != null) {
+                        node.wrap(cache.get(entries[k].block)).removeAt(entries[k].index);
+                        cache.markDirty(entries[k].block);
+                        removed++;
+                    }
+                }
+                if (removed == 0) {
+                    continue;
+                }
+                InodeView file = inode(dirInode, dir);
+                file.setSize(Math.max(0, file.size() - removed * DirEntryView.SIZE));
+                if (file.size() == 0) {
+                    truncateBlocks(file, dir, 0);
+                }
+                cache.markDirty(inodeBlock(dir));
+            }
+            rebuildAllocation();
+        }
+
+        /** Files each inode that has no name under /lost+found. */
+        private void attachOrphans(CheckState state) {
+            if (state.orphans.isEmpty()) {
+                return;
+            }
+            int lostFound = lookup(ROOT_INODE, LOST_FOUND);
+            if (lostFound == -1) {
+                createNode("/lost+found", InodeView.FLAG_USED | InodeView.FLAG_DIR, "Directory");
+                lostFound = lookup(ROOT_INODE, LOST_FOUND);
+            }
+            if (lostFound == -1 || !inode(dirInode, lostFound).isDirectory()) {
+                return;
+            }
+            for (int ino : state.orphans) {
+                if (!treeInsert(lostFound, encodeName("#" + ino), ino)) {
+                    break;
+                }
+            }
+            rebuildAllocation();
+        }
+
+        /**
+         * Rebuilds the reference counts, free map, and group counts from
+         * the inode table, and writes everything back.
+         */
+        private void rebuildAllocation() {
+            checkpoint();
+            logHead = -1;
+            rebuildReferences();
+            for (int i = RESERVED_BLOCKS; i < DISK_SIZE; i++) {
+                freeMap.set(i, refCount[i] > 0);
+            }
+            countGroups();
+            names.clear();
+            checkpoint();
+        }
+    }
@@ -0,0 +1,271 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+/**
+ * FileSystemChannel.java
+ * A SeekableByteChannel over a file of a {@link FileSystem}, with
+ * FileChannel-style bulk transfers to and from other channels.
+ * <p>
+ * The file is looked up once, when the channel is opened.  A read or
+ * write moves the whole of the buffer's remaining bytes in one call to
+ * the file system, straight from or to the buffer's backing array when it
+ * has one.  transferTo and transferFrom move data through a block-aligned
+ * buffer of several blocks, so copying between this file system and a
+ * host file takes one call per chunk on each side.
+ * <p>
+ * Although each call to the file system is atomic, a channel keeps its
+ * own position and is not safe for use by more than one thread at a time.
+ *
+ * @see FileSystemInputStream
+ * @see FileSystemOutputStream
+ */
+public class FileSystemChannel implements SeekableByteChannel
+{
+    /** The number of blocks moved per step of a transfer. */
+    private static final int TRANSFER_BLOCKS = 16;
+
+    private final FileSystem fileSystem;
+
+    /** The inode number of the file. */
+    private final int ino;
+
+    /** The file position of the next byte read or written. */
+    private int position;
+
+    /** Staging buffer for transfers and for buffers without an array. */
+    private final byte[] transfer = new byte[TRANSFER_BLOCKS * Disk.BLOCK_SIZE];
+
+    private boolean open = true;
+
+    /**
+     * Opens a file for reading and writing.
+     * @param fileSystem    the file system holding the file
+     * @param path          the path of the file
+     * @throws FileNotFoundException if there is no such file
+     */
+    public FileSystemChannel(FileSystem fileSystem, String path) throws FileNotFoundException
+    {
+        this.fileSystem = fileSystem;
+        this.ino = fileSystem.open(path);
+        if (ino < 0) {
+            throw new FileNotFoundException(path);
+        }
+    }
+
+    public int read(ByteBuffer dst) throws IOException
+    {
+        ensureOpen();
+        int n = read(dst, position);
+        if (n > 0) {
+            position += n;
+        }
+        return n;
+    }
+
+    public int write(ByteBuffer src) throws IOException
+    {
+        ensureOpen();
+        int n = write(src, position);
+        position += n;
+        return n;
+    }
+
+    /**
+     * Reads bytes starting at a file position, without moving the
+     * channel's position.
+     * @return the number of bytes read, or -1 if position is at or past
+     *         the end of the file
+     */
+    public int read(ByteBuffer dst, long position) throws IOException
+    {
+        ensureOpen();
+        int pos = checkPosition(position);
+        if (pos >= size()) {
+            return -1;
+        }
+        int total = 0;
+        while (dst.hasRemaining()) {
+            int n;
+            if (dst.hasArray()) {
+                n = check(fileSystem.readAt(ino, pos + total, dst.array(),
+                        dst.arrayOffset() + dst.position(), dst.remaining()));
+                dst.position(dst.position() + n);
+            } else {
+                n = check(fileSystem.readAt(ino, pos + total, transfer, 0,
+                        Math.min(dst.remaining(), transfer.length)));
+                dst.put(transfer, 0, n);
+            }
+            if (n == 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Writes bytes starting at a file position, without moving the
+     * channel's position.  The file grows as needed.
+     * @return the number of bytes written
+     */
+    public int write(ByteBuffer src, long position) throws IOException
+    {
+        ensureOpen();
+        int pos = checkPosition(position);
+        int total = 0;
+        while (src.hasRemaining()) {
+            int n;
+            if (src.hasArray()) {
+                n = src.remaining();
+                check(fileSystem.writeAt(ino, pos + total, src.array(),
+                        src.arrayOffset() + src.position(), n));
+                src.position(src.position() + n);
+            } else {
+                n = Math.min(src.remaining(), transfer.length);
+                src.get(transfer, 0, n);
+                check(fileSystem.writeAt(ino, pos + total, transfer, 0, n));
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    public long position() throws IOException
+    {
+        ensureOpen();
+        return position;
+    }
+
+    public FileSystemChannel position(long newPosition) throws IOException
+    {
+        ensureOpen();
+        position = checkPosition(newPosition);
+        return this;
+    }
+
+    public long size() throws IOException
+    {
+        ensureOpen();
+        return check(fileSystem.size(ino));
+    }
+
+    /**
+     * Shrinks the file to a size, if it is larger.  The position is
+     * moved back to the new end of the file if it was past it.
+     */
+    public FileSystemChannel truncate(long size) throws IOException
+    {
+        ensureOpen();
+        int newSize = checkPosition(size);
+        if (newSize < size()) {
+            check(fileSystem.truncateAt(ino, newSize));
+        }
+        position = Math.min(position, newSize);
+        return this;
+    }
+
+    /**
+     * Copies bytes from this file to another channel, starting at a file
+     * position and without moving this channel's position.
+     * @return the number of bytes transferred
+     */
+    public long transferTo(long position, long count, WritableByteChannel target)
+            throws IOException
+    {
+        ensureOpen();
+        int pos = checkPosition(position);
+        long total = 0;
+        while (total < count) {
+            int want = (int) Math.min(count - total, transfer.length - (pos % Disk.BLOCK_SIZE));
+            int n = check(fileSystem.readAt(ino, pos, transfer, 0, want));
+            if (n == 0) {
+                break;
+            }
+            // Stop early if the target will take no more for now.
+            ByteBuffer chunk = ByteBuffer.wrap(transfer, 0, n);
+            int w;
+            do {
+                w = target.write(chunk);
+            } while (w > 0 && chunk.hasRemaining());
+            pos += chunk.position();
+            total += chunk.position();
+            if (chunk.hasRemaining()) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Copies bytes from another channel into this file, starting at a
+     * file position and without moving this channel's position.  Nothing
+     * is transferred if the position is past the end of the file.
+     * @return the number of bytes transferred
+     */
+    public long transferFrom(ReadableByteChannel src, long position, long count)
+            throws IOException
+    {
+        ensureOpen();
+        int pos = checkPosition(position);
+        if (pos > size()) {
+            return 0;
+        }
+        long total = 0;
+        while (total < count) {
+            int want = (int) Math.min(count - total, transfer.length - (pos % Disk.BLOCK_SIZE));
+            ByteBuffer chunk = ByteBuffer.wrap(transfer, 0, want);
+            // Fill the chunk so that each write covers whole blocks.
+            int r;
+            do {
+                r = src.read(chunk);
+            } while (r > 0 && chunk.hasRemaining());
+            int n = chunk.position();
+            if (n == 0) {
+                break;
+            }
+            check(fileSystem.writeAt(ino, pos, transfer, 0, n));
+            pos += n;
+            total += n;
+            if (n < want) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    public boolean isOpen()
+    {
+        return open;
+    }
+
+    public void close()
+    {
+        open = false;
+    }
+
+    private void ensureOpen() throws IOException
+    {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    /** Checks that a position is one the file system can address. */
+    private static int checkPosition(long position)
+    {
+        if (position < 0 || position > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Bad position: " + position);
+        }
+        return (int) position;
+    }
+
+    /** Turns a negative result from the file system into an exception. */
+    private static int check(int rc) throws IOException
+    {
+        if (rc < 0) {
+            throw new IOException("File system error " + rc);
+        }
+        return rc;
+    }
+}
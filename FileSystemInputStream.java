@@ -0,0 +1,143 @@
+import java.io.*;
+
+/**
+ * FileSystemInputStream.java
+ * An InputStream that reads a file of a {@link FileSystem}.
+ * <p>
+ * The file is looked up once, when the stream is opened.  Reads are
+ * buffered one block at a time, aligned to block boundaries, so a run of
+ * small reads costs one block transfer per block.  A bulk read that starts
+ * on a block boundary and asks for at least a block fetches the whole
+ * blocks it covers in one call, bypassing the buffer.
+ * <p>
+ * Although each call to the file system is atomic, a stream keeps its
+ * own position and is not safe for use by more than one thread at a time.
+ *
+ * @see FileSystemOutputStream
+ */
+public class FileSystemInputStream extends InputStream
+{
+    private static final int BLOCK_SIZE = Disk.BLOCK_SIZE;
+
+    private final FileSystem fileSystem;
+
+    /** The inode number of the file. */
+    private final int ino;
+
+    /** Buffered bytes of the block holding the read position. */
+    private final byte[] buffer = new byte[BLOCK_SIZE];
+
+    /** The file position of buffer[0], and the number of valid bytes. */
+    private int bufferStart, bufferLength;
+
+    /** The file position of the next byte to read. */
+    private int position;
+
+    private boolean closed;
+
+    /**
+     * Opens a file for reading.
+     * @param fileSystem    the file system holding the file
+     * @param path          the path of the file
+     * @throws FileNotFoundException if there is no such file
+     */
+    public FileSystemInputStream(FileSystem fileSystem, String path)
+            throws FileNotFoundException
+    {
+        this.fileSystem = fileSystem;
+        this.ino = fileSystem.open(path);
+        if (ino < 0) {
+            throw new FileNotFoundException(path);
+        }
+    }
+
+    public int read() throws IOException
+    {
+        ensureOpen();
+        if (!buffered() && !fill()) {
+            return -1;
+        }
+        return buffer[position++ - bufferStart] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        java.util.Objects.checkFromIndexSize(off, len, b.length);
+        ensureOpen();
+        int total = 0;
+        while (len > 0) {
+            int n;
+            if (buffered()) {
+                n = Math.min(len, bufferStart + bufferLength - position);
+                System.arraycopy(buffer, position - bufferStart, b, off, n);
+            } else if (position % BLOCK_SIZE == 0 && len >= BLOCK_SIZE) {
+                n = check(fileSystem.readAt(ino, position, b, off, len - len % BLOCK_SIZE));
+                if (n == 0) {
+                    break;
+                }
+            } else if (fill()) {
+                continue;
+            } else {
+                break;
+            }
+            position += n;
+            off += n;
+            len -= n;
+            total += n;
+        }
+        return total == 0 && len > 0 ? -1 : total;
+    }
+
+    public long skip(long n) throws IOException
+    {
+        ensureOpen();
+        long skipped = Math.max(0, Math.min(n, (long) available()));
+        position += (int) skipped;
+        return skipped;
+    }
+
+    public int available() throws IOException
+    {
+        ensureOpen();
+        return Math.max(0, check(fileSystem.size(ino)) - position);
+    }
+
+    public void close()
+    {
+        closed = true;
+    }
+
+    /** Returns true if the byte at the read position is buffered. */
+    private boolean buffered()
+    {
+        return position >= bufferStart && position < bufferStart + bufferLength;
+    }
+
+    /**
+     * Buffers the block holding the read position.
+     * @return false at the end of the file
+     */
+    private boolean fill() throws IOException
+    {
+        ensureOpen();
+        bufferStart = position - position % BLOCK_SIZE;
+        bufferLength = check(fileSystem.readAt(ino, bufferStart, buffer, 0, BLOCK_SIZE));
+        return buffered();
+    }
+
+    private void ensureOpen() throws IOException
+    {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    /** Turns a negative result from the file system into an exception. */
+    private static int check(int rc) throws IOException
+    {
+        if (rc < 0) {
+            throw new IOException("File system error " + rc);
+        }
+        return rc;
+    }
+}
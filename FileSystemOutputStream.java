@@ -0,0 +1,151 @@
+import java.io.*;
+
+/**
+ * FileSystemOutputStream.java
+ * An OutputStream that writes a file of a {@link FileSystem}.
+ * <p>
+ * The file is looked up once, when the stream is opened, and created if
+ * it does not exist.  Writes are buffered up to the next block boundary,
+ * so that every write the file system sees after the first is of whole,
+ * aligned blocks and needs no read-modify-write.  A bulk write that starts
+ * on a block boundary with at least a block of data hands the whole blocks
+ * it covers to the file system in one call, bypassing the buffer.
+ * <p>
+ * Although each call to the file system is atomic, a stream keeps its
+ * own position and is not safe for use by more than one thread at a time.
+ *
+ * @see FileSystemInputStream
+ */
+public class FileSystemOutputStream extends OutputStream
+{
+    private static final int BLOCK_SIZE = Disk.BLOCK_SIZE;
+
+    private final FileSystem fileSystem;
+
+    /** The inode number of the file. */
+    private final int ino;
+
+    /** Bytes written but not yet passed to the file system. */
+    private final byte[] buffer = new byte[BLOCK_SIZE];
+
+    /** The file position of buffer[0], and the number of bytes held. */
+    private int bufferStart, bufferLength;
+
+    private boolean closed;
+
+    /**
+     * Opens a file for writing, replacing its contents.
+     * @param fileSystem    the file system holding the file
+     * @param path          the path of the file
+     * @throws IOException if the file can be neither found nor created
+     */
+    public FileSystemOutputStream(FileSystem fileSystem, String path) throws IOException
+    {
+        this(fileSystem, path, false);
+    }
+
+    /**
+     * Opens a file for writing.
+     * @param fileSystem    the file system holding the file
+     * @param path          the path of the file
+     * @param append        true to write after the current contents,
+     *                      false to replace them
+     * @throws IOException if the file can be neither found nor created
+     */
+    public FileSystemOutputStream(FileSystem fileSystem, String path, boolean append)
+            throws IOException
+    {
+        this.fileSystem = fileSystem;
+        int ino = fileSystem.open(path);
+        if (ino < 0 && fileSystem.create(path) == 0) {
+            ino = fileSystem.open(path);
+        }
+        if (ino < 0) {
+            throw new FileNotFoundException(path);
+        }
+        this.ino = ino;
+        if (append) {
+            bufferStart = check(fileSystem.size(ino));
+        } else {
+            check(fileSystem.truncateAt(ino, 0));
+        }
+    }
+
+    public void write(int b) throws IOException
+    {
+        ensureOpen();
+        buffer[bufferLength++] = (byte) b;
+        if (bufferLength == room()) {
+            flushBuffer();
+        }
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        java.util.Objects.checkFromIndexSize(off, len, b.length);
+        ensureOpen();
+        while (len > 0) {
+            int n;
+            if (bufferLength == 0 && bufferStart % BLOCK_SIZE == 0 && len >= BLOCK_SIZE) {
+                n = len - len % BLOCK_SIZE;
+                check(fileSystem.writeAt(ino, bufferStart, b, off, n));
+                bufferStart += n;
+            } else {
+                n = Math.min(len, room() - bufferLength);
+                System.arraycopy(b, off, buffer, bufferLength, n);
+                bufferLength += n;
+                if (bufferLength == room()) {
+                    flushBuffer();
+                }
+            }
+            off += n;
+            len -= n;
+        }
+    }
+
+    /** Passes any buffered bytes to the file system. */
+    public void flush() throws IOException
+    {
+        ensureOpen();
+        flushBuffer();
+    }
+
+    public void close() throws IOException
+    {
+        if (!closed) {
+            flushBuffer();
+            closed = true;
+        }
+    }
+
+    /** Returns the number of bytes the buffer takes before it is flushed. */
+    private int room()
+    {
+        return BLOCK_SIZE - bufferStart % BLOCK_SIZE;
+    }
+
+    private void flushBuffer() throws IOException
+    {
+        if (bufferLength > 0) {
+            check(fileSystem.writeAt(ino, bufferStart, buffer, 0, bufferLength));
+            bufferStart += bufferLength;
+            bufferLength = 0;
+        }
+    }
+
+    private void ensureOpen() throws IOException
+    {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    /** Turns a negative result from the file system into an exception. */
+    private static int check(int rc) throws IOException
+    {
+        if (rc < 0) {
+            throw new IOException("File system error " + rc);
+        }
+        return rc;
+    }
+}
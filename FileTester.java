@@ -1,110 +1,855 @@
-    /* $Id: FastDisk.java,v 1.15 2006/11/22 21:47:00 solomon Exp $ */
-
-    import java.io.*;
-    import java.util.StringTokenizer;
-
-    import static java.lang.System.out;
-
-    /** A new and improved Disk.
-     * <b>You may not change this class.</b>
-     * <p>
-     * This disk is so much faster than the previous model that read and write
-     * operations appear to finish in no time.   Because disk is so fast, beginRead
-     * and beginWrite wait for the operation to finish rather than causing a CPU
-     * interrupt when they complete.
-     * <p>
-     * @see Disk
-     * @see Kernel
-     */
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/** A correctness test of the {@link FileSystem}.
+ * <p>
+ * Usage:
+ * <pre>
+ *    java FileTester [verbose]
+ * </pre>
+ * Runs the file system on a fresh, unsaved FastDisk through each of its
+ * features in turn: creating, writing, reading, and deleting files;
+ * directories; truncation and writes at a position; compression;
+ * deduplication; log-structured writes; running out of space; block
+ * checksums and fsck repair; a corrupt compressed file; filling the disk
+ * with more small files than it has blocks; filling one directory until it
+ * can take no more names; writing and reading files through streams,
+ * and through a channel to and from a host file and a direct buffer;
+ * defragmenting interleaved files, in place and in log mode; and taking a
+ * snapshot of the disk, writing, and rolling back to it.  Then it runs on a
+ * StripedDisk, and on a MirroredDisk that it saves and reopens with one
+ * member's file gone; these use the files DISK0, DISK1, ... in the current
+ * directory, and are skipped if any is already there.  Every result is
+ * checked against what it should be, and the file system is checked with
+ * fsck after each part.
+ * Each failed check is reported, and the exit status is 0 only if none
+ * failed.  The file system's own messages are suppressed unless
+ * <b>verbose</b> is given.
+ *
+ * @see FileSystem
+ * @see LoadGenerator
+ */
 public class FileTester {
+    private static final int DISK_SIZE = 1024;
+
+    private static FastDisk disk;
     private static FileSystem fileSystem;
+    private static boolean verbose;
 
-    public static void main(String[] args) {
-            // Initialize the file system
-            FastDisk disk = new FastDisk(1024);  // Assuming a disk size of 1024 blocks
-            fileSystem = new FileSystem(disk);
-            fileSystem.initialize();  // Format and initialize the file system
-
-            // Test commands
-            runCommands();
-        }
-        private static void runCommands() {
-            StringBuffer sb = new StringBuffer();
-
-            // Example commands to test file system
-            String[] commands = {
-                    "create file1.txt",
-                    "write file1.txt Hello, world!",
-                    "read file1.txt",
-                    "create file2.txt",
-                    "dir",
-                    "delete file1.txt",
-                    "dir"
-            };
-
-            for (String command : commands) {
-                Library.output("Command: " + command + "\n");
-                StringTokenizer st = new StringTokenizer(command);
-                String cmd = st.nextToken();
-                if (cmd.equals("create")) {
-                    String filename = st.nextToken();
-                    createFile(filename);
-                } else if (cmd.equals("write")) {
-                    String filename = st.nextToken();
-                    String data = st.nextToken("\n").trim();
-                    writeFile(filename, data);
-                } else if (cmd.equals("read")) {
-                    String filename = st.nextToken();
-                    readFile(filename);
-                } else if (cmd.equals("delete")) {
-                    String filename = st.nextToken();
-                    deleteFile(filename);
-                } else if (cmd.equals("dir")) {
-                    listDirectory();
-                }
+    /** The number of checks made, and of those that failed. */
+    private static int checks;
+    private static int failures;
+
+    /** The main program.
+     * @param args the command-line arguments
+     */
+    public static void main(String args[]) {
+        for (String arg : args) {
+            if (arg.equals("verbose")) {
+                verbose = true;
+            } else {
+                System.err.println("usage: java FileTester [verbose]");
+                System.exit(-1);
             }
         }
+        disk = new FastDisk(DISK_SIZE, null);
+        mount();
+        check(fileSystem.format() == 0, "format");
 
-        private static void createFile(String filename) {
-            int result = fileSystem.create(filename);
-            if (result == 0) {
-                Library.output("Created file: " + filename + "\n");
-            } else {
-                Library.output("Error creating file: " + filename + "\n");
+        testFiles();
+        testDirectories();
+        testTruncate();
+        testCompression();
+        testDeduplication();
+        testLog();
+        testDiskFull();
+        testChecksums();
+        testCorruptCompression();
+        testSmallFiles();
+        testLargeDirectory();
+        testStreams(false);
+        testStreams(true);
+        testChannels();
+        testDefragment(false);
+        testDefragment(true);
+        testSnapshot();
+        testStriped();
+        testMirrored();
+
+        System.out.println("FileTester: " + checks + " checks, " + failures + " failed");
+        System.exit(failures == 0 ? 0 : 1);
+    } // main
+
+    /** Creates, writes, reads, rewrites, and deletes files. */
+    private static void testFiles() {
+        byte hello[] = "Hello, world!".getBytes();
+        check(fileSystem.create("file1.txt") == 0, "create file1.txt");
+        check(fileSystem.create("file1.txt") != 0, "create file1.txt again fails");
+        check(fileSystem.write("file1.txt", hello) == 0, "write file1.txt");
+        checkContents("file1.txt", hello);
+
+        byte big[] = randomBytes(1, 3000);
+        check(fileSystem.create("file2.txt") == 0, "create file2.txt");
+        check(fileSystem.write("file2.txt", big) == 0, "write 3000 bytes");
+        checkContents("file2.txt", big);
+        byte shorter[] = randomBytes(2, 700);
+        check(fileSystem.write("file2.txt", shorter) == 0, "rewrite shorter");
+        checkContents("file2.txt", shorter);
+
+        int counts[] = stat();
+        check(counts[FileSystem.STAT_FILES] == 2, "stat counts 2 files");
+        check(counts[FileSystem.STAT_BYTES] == hello.length + shorter.length,
+                "stat counts the bytes in the files");
+
+        mount();
+        checkContents("file1.txt", hello);
+        checkContents("file2.txt", shorter);
+
+        check(fileSystem.delete("file1.txt") == 0, "delete file1.txt");
+        check(fileSystem.read("file1.txt", new byte[1]) != 0, "read deleted file fails");
+        check(fileSystem.delete("file1.txt") != 0, "delete deleted file fails");
+        check(fileSystem.delete("file2.txt") == 0, "delete file2.txt");
+        check(stat()[FileSystem.STAT_FILES] == 0, "stat counts no files");
+        check(stat()[FileSystem.STAT_USED] == 1, "only the root directory's block is used");
+        fsck("files");
+    } // testFiles
+
+    /** Builds and takes down a small tree of directories. */
+    private static void testDirectories() {
+        byte data[] = randomBytes(3, 1200);
+        check(fileSystem.mkdir("a") == 0, "mkdir a");
+        check(fileSystem.mkdir("a/b") == 0, "mkdir a/b");
+        check(fileSystem.create("a/b/f") == 0, "create a/b/f");
+        check(fileSystem.create("missing/f") != 0, "create in a missing directory fails");
+        check(fileSystem.write("a/b/f", data) == 0, "write a/b/f");
+        checkContents("a/b/f", data);
+        check(fileSystem.delete("a") != 0, "delete a non-empty directory fails");
+        check(stat()[FileSystem.STAT_DIRS] == 3, "stat counts 3 directories");
+
+        mount();
+        checkContents("a/b/f", data);
+        check(fileSystem.delete("a/b/f") == 0, "delete a/b/f");
+        check(fileSystem.delete("a/b") == 0, "delete a/b");
+        check(fileSystem.delete("a") == 0, "delete a");
+        check(fileSystem.read("a/b/f", new byte[1]) != 0, "read in a deleted directory fails");
+        fsck("directories");
+    } // testDirectories
+
+    /** Shrinks and grows a file, and writes into it at a position. */
+    private static void testTruncate() {
+        byte data[] = randomBytes(4, 5000);
+        fileSystem.create("t");
+        check(fileSystem.write("t", data) == 0, "write t");
+        check(fileSystem.truncate("t", 1000) == 0, "truncate to 1000");
+        check(size("t") == 1000, "size after shrinking");
+        checkContents("t", Arrays.copyOf(data, 1000));
+        check(fileSystem.truncate("t", 3000) == 0, "truncate to 3000");
+        checkContents("t", Arrays.copyOf(Arrays.copyOf(data, 1000), 3000));
+
+        byte patch[] = randomBytes(5, 600);
+        check(fileSystem.write("t", 4000, patch) == 0, "write past the end");
+        byte expected[] = Arrays.copyOf(Arrays.copyOf(data, 1000), 4600);
+        System.arraycopy(patch, 0, expected, 4000, patch.length);
+        checkContents("t", expected);
+        check(fileSystem.write("t", 500, patch) == 0, "write in the middle");
+        System.arraycopy(patch, 0, expected, 500, patch.length);
+        checkContents("t", expected);
+        check(fileSystem.truncate("t", -1) != 0, "truncate to a negative size fails");
+        check(fileSystem.truncate("t", Integer.MAX_VALUE) == Kernel.ERROR_OUT_OF_RANGE,
+                "truncate past the largest file fails");
+        check(fileSystem.write("t", Integer.MAX_VALUE - 10, patch) == Kernel.ERROR_OUT_OF_RANGE,
+                "write whose end overflows fails");
+        checkContents("t", expected);
+        check(fileSystem.delete("t") == 0, "delete t");
+        fsck("truncate");
+    } // testTruncate
+
+    /** Compresses a file and expands it again. */
+    private static void testCompression() {
+        byte data[] = textBytes(20000);
+        fileSystem.create("c");
+        check(fileSystem.write("c", data) == 0, "write c");
+        int plain = stat()[FileSystem.STAT_USED];
+        check(fileSystem.setCompressed("c", true) == 0, "compress c");
+        check(stat()[FileSystem.STAT_USED] < plain, "compression saves blocks");
+        checkContents("c", data);
+        mount();
+        checkContents("c", data);
+        byte more[] = textBytes(9000);
+        check(fileSystem.write("c", more) == 0, "write compressed c");
+        checkContents("c", more);
+        check(fileSystem.setCompressed("c", false) == 0, "expand c");
+        checkContents("c", more);
+        check(fileSystem.delete("c") == 0, "delete c");
+        fsck("compression");
+    } // testCompression
+
+    /** Writes the same contents to two files with deduplication on. */
+    private static void testDeduplication() {
+        byte data[] = randomBytes(6, 8 * Disk.BLOCK_SIZE);
+        check(fileSystem.setDeduplication(true) == 0, "enable deduplication");
+        fileSystem.create("d1");
+        fileSystem.create("d2");
+        int before = stat()[FileSystem.STAT_USED];
+        check(fileSystem.write("d1", data) == 0, "write d1");
+        check(fileSystem.write("d2", data) == 0, "write d2");
+        check(stat()[FileSystem.STAT_USED] - before == 8, "the copies share blocks");
+        byte changed[] = data.clone();
+        changed[10] ^= 1;
+        check(fileSystem.write("d2", 0, Arrays.copyOf(changed, 20)) == 0, "change d2");
+        checkContents("d1", data);
+        checkContents("d2", changed);
+        check(fileSystem.delete("d1") == 0, "delete d1");
+        checkContents("d2", changed);
+        check(fileSystem.delete("d2") == 0, "delete d2");
+        check(fileSystem.setDeduplication(false) == 0, "disable deduplication");
+        fsck("deduplication");
+    } // testDeduplication
+
+    /** Rewrites files in log-structured mode, then remounts. */
+    private static void testLog() {
+        check(fileSystem.setLogStructured(true) == 0, "enable log mode");
+        Random random = new Random(7);
+        byte contents[][] = new byte[10][];
+        for (int i = 0; i < contents.length; i++) {
+            fileSystem.create("l" + i);
+        }
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < contents.length; i++) {
+                contents[i] = randomBytes(random.nextLong(), random.nextInt(6000));
+                check(fileSystem.write("l" + i, contents[i]) == 0, "write l" + i);
             }
         }
+        fileSystem.checkpoint();
+        mount();
+        for (int i = 0; i < contents.length; i++) {
+            checkContents("l" + i, contents[i]);
+        }
+        check(fileSystem.setLogStructured(false) == 0, "disable log mode");
+        for (int i = 0; i < contents.length; i++) {
+            check(fileSystem.delete("l" + i) == 0, "delete l" + i);
+        }
+        fsck("log mode");
+    } // testLog
+
+    /** Fills the disk, then rewrites files that no longer fit. */
+    private static void testDiskFull() {
+        byte keep[] = randomBytes(8, 3000);
+        fileSystem.create("keep");
+        check(fileSystem.write("keep", keep) == 0, "write keep");
+        byte text[] = textBytes(20000);
+        fileSystem.create("packed");
+        check(fileSystem.write("packed", text) == 0, "write packed");
+        check(fileSystem.setCompressed("packed", true) == 0, "compress packed");
+        int fillers = fill();
+        check(stat()[FileSystem.STAT_FREE] == 0, "fill the disk");
+
+        byte bigger[] = randomBytes(9, 6000);
+        check(fileSystem.write("keep", bigger) == Kernel.ERROR_OUT_OF_RANGE,
+                "a rewrite that does not fit fails");
+        checkContents("keep", keep);
+        check(fileSystem.truncate("keep", 20) == 0, "truncate into the inode");
+        checkContents("keep", Arrays.copyOf(keep, 20));
+        check(fileSystem.write("keep", bigger) == Kernel.ERROR_OUT_OF_RANGE,
+                "growing out of the inode fails");
+        checkContents("keep", Arrays.copyOf(keep, 20));
+        int free = stat()[FileSystem.STAT_FREE];
+        check(fileSystem.setCompressed("packed", false) == Kernel.ERROR_OUT_OF_RANGE,
+                "expanding a file that does not fit fails");
+        checkContents("packed", text);
+        check(stat()[FileSystem.STAT_FREE] == free, "a failed rewrite takes no blocks");
+        fsck("a full disk");
+        check(fileSystem.write("packed", text) == 0, "the file is still compressed");
+        check(stat()[FileSystem.STAT_FREE] == free, "so a rewrite takes no more blocks");
+        check(fileSystem.delete("packed") == 0, "delete packed");
 
-        private static void writeFile(String filename, String data) {
-            byte[] buffer = data.getBytes();
-            int result = fileSystem.write(filename, buffer);
-            if (result == 0) {
-                Library.output("Written to file: " + filename + "\n");
+        for (int i = 0; i < fillers; i++) {
+            check(fileSystem.delete("z" + i) == 0, "delete z" + i);
+        }
+        check(fileSystem.delete("keep") == 0, "delete keep");
+        fsck("emptying a full disk");
+    } // testDiskFull
+
+    /** Writes random files until no free block is left.
+     * @return the number of files, named z0, z1, and so on.
+     */
+    private static int fill() {
+        int count = 0;
+        for (int size = 64 * Disk.BLOCK_SIZE; size >= Disk.BLOCK_SIZE; ) {
+            String name = "z" + count;
+            fileSystem.create(name);
+            if (fileSystem.write(name, randomBytes(count, size)) == 0) {
+                count++;
             } else {
-                Library.output("Error writing to file: " + filename + "\n");
+                fileSystem.delete(name);
+                size /= 2;
             }
         }
+        return count;
+    } // fill
 
-        private static void readFile(String filename) {
-            byte[] buffer = new byte[Disk.BLOCK_SIZE];
-            int result = fileSystem.read(filename, buffer);
-            if (result == 0) {
-                Library.output("Read from file: " + filename + " - Data: " + new String(buffer).trim() + "\n");
-            } else {
-                Library.output("Error reading file: " + filename + "\n");
+    /** Damages a data block behind the file system's back. */
+    private static void testChecksums() {
+        byte data[] = new byte[2 * Disk.BLOCK_SIZE];
+        Arrays.fill(data, 0, Disk.BLOCK_SIZE, (byte) 'Q');
+        Arrays.fill(data, Disk.BLOCK_SIZE, data.length, (byte) 'R');
+        fileSystem.create("k");
+        check(fileSystem.write("k", data) == 0, "write k");
+        mount();
+
+        byte buf[] = new byte[Disk.BLOCK_SIZE];
+        int block = -1;
+        for (int i = 0; i < DISK_SIZE && block == -1; i++) {
+            disk.read(i, buf);
+            if (Arrays.equals(buf, Arrays.copyOf(data, Disk.BLOCK_SIZE))) {
+                block = i;
             }
         }
+        check(block != -1, "find k on the disk");
+        if (block == -1) {
+            return;
+        }
+        buf[100] ^= 1;
+        disk.write(block, buf);
 
-        private static void deleteFile(String filename) {
-            int result = fileSystem.delete(filename);
-            if (result == 0) {
-                Library.output("Deleted file: " + filename + "\n");
-            } else {
-                Library.output("Error deleting file: " + filename + "\n");
+        check(fileSystem.read("k", new byte[data.length]) == Kernel.ERROR_IO,
+                "read of a damaged block fails");
+        check(fileSystem.check(false) != 0, "fsck finds the damaged block");
+        check(fileSystem.check(true) == 0, "fsck repairs");
+        // A repair cannot know the old contents, so it keeps the new ones.
+        byte expected[] = data.clone();
+        expected[100] ^= 1;
+        checkContents("k", expected);
+        check(fileSystem.delete("k") == 0, "delete k");
+        fsck("checksums");
+    } // testChecksums
+
+    /** Damages a compressed file's stream so that it cannot be expanded,
+     * and checks that reading it fails rather than hangs.
+     */
+    private static void testCorruptCompression() {
+        byte before[][] = readDisk();
+        fileSystem.create("cz");
+        check(fileSystem.write("cz", textBytes(20000)) == 0, "write cz");
+        check(fileSystem.setCompressed("cz", true) == 0, "compress cz");
+        mount();
+
+        // The stream starts with a zlib header in the first new block.
+        byte after[][] = readDisk();
+        int block = -1;
+        for (int i = 0; i < DISK_SIZE && block == -1; i++) {
+            if (!Arrays.equals(before[i], after[i]) && after[i][0] == 0x78
+                    && ((after[i][0] & 0xff) * 256 + (after[i][1] & 0xff)) % 31 == 0) {
+                block = i;
+            }
+        }
+        check(block != -1, "find cz on the disk");
+        if (block == -1) {
+            return;
+        }
+        // A valid header that asks for a preset dictionary, which the
+        // inflater then waits for forever.
+        after[block][1] = (byte) 0xBB;
+        disk.write(block, after[block]);
+        check(fileSystem.check(true) == 0, "fsck takes the damaged block as it is");
+
+        final int rc[] = { 0 };
+        Thread reader = new Thread(() -> rc[0] = fileSystem.read("cz", new byte[20000]));
+        reader.setDaemon(true);
+        reader.start();
+        try {
+            reader.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        check(!reader.isAlive(), "reading a corrupt compressed file returns");
+        if (reader.isAlive()) {
+            // The file system is locked up; nothing after this can run.
+            System.out.println("FileTester: " + checks + " checks, " + failures + " failed");
+            System.exit(1);
+        }
+        check(rc[0] == Kernel.ERROR_IO, "reading a corrupt compressed file fails");
+        check(fileSystem.delete("cz") == 0, "delete cz");
+        fsck("a corrupt compressed file");
+    } // testCorruptCompression
+
+    /** Fills the disk with more small files than it has data blocks. */
+    private static void testSmallFiles() {
+        int count = 1500;
+        int dirs = 15;
+        for (int d = 0; d < dirs; d++) {
+            check(fileSystem.mkdir("s" + d) == 0, "mkdir s" + d);
+        }
+        int created = 0;
+        for (int i = 0; i < count; i++) {
+            String name = "s" + i % dirs + "/f" + i;
+            if (fileSystem.create(name) == 0
+                    && fileSystem.write(name, ("small file " + i).getBytes()) == 0) {
+                created++;
+            }
+        }
+        check(created == count, "create " + count + " small files");
+        int counts[] = stat();
+        check(counts[FileSystem.STAT_FILES] == count, "stat counts the small files");
+        check(counts[FileSystem.STAT_FILES] > counts[FileSystem.STAT_BLOCKS],
+                "more files than data blocks");
+        check(counts[FileSystem.STAT_USED] < count / 3, "the files take few blocks");
+        mount();
+        for (int i = 0; i < count; i += 97) {
+            checkContents("s" + i % dirs + "/f" + i, ("small file " + i).getBytes());
+        }
+        fsck("small files");
+        for (int i = 0; i < count; i++) {
+            fileSystem.delete("s" + i % dirs + "/f" + i);
+        }
+        for (int d = 0; d < dirs; d++) {
+            check(fileSystem.delete("s" + d) == 0, "delete s" + d);
+        }
+        check(stat()[FileSystem.STAT_USED] == 1, "deleting them frees every block");
+        fsck("deleting small files");
+    } // testSmallFiles
+
+    /** Grows one directory's B+tree through many splits until it is full. */
+    private static void testLargeDirectory() {
+        check(fileSystem.mkdir("big") == 0, "mkdir big");
+        String names[] = new String[FileSystem.MAX_FILES - 1];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = String.format("big/e%04d", i);
+        }
+        check(fileSystem.create(names) == Kernel.ERROR_OUT_OF_RANGE,
+                "a directory fills up before the inodes run out");
+        int created = stat()[FileSystem.STAT_FILES];
+        check(created > 1500, "a directory holds thousands of names");
+        fsck("filling a directory");
+        check(fileSystem.create(names[created]) == Kernel.ERROR_OUT_OF_RANGE,
+                "create in a full directory fails");
+        check(fileSystem.create("big2") == 0, "create elsewhere still works");
+        check(fileSystem.delete("big2") == 0, "delete big2");
+        fsck("a full directory");
+
+        mount();
+        for (int i = 0; i < created; i += 10) {
+            check(fileSystem.write(names[i], new byte[] { (byte) i }) == 0, "write " + names[i]);
+            checkContents(names[i], new byte[] { (byte) i });
+        }
+        for (int i = 1; i < created; i += 2) {
+            check(fileSystem.delete(names[i]) == 0, "delete " + names[i]);
+        }
+        check(stat()[FileSystem.STAT_FILES] == (created + 1) / 2, "half the names are left");
+        fsck("emptying half a directory");
+        check(fileSystem.delete(new String[] { "big/e*" }) == 0, "delete the rest by pattern");
+        check(fileSystem.delete("big") == 0, "delete big");
+        check(stat()[FileSystem.STAT_USED] == 1, "deleting the directory frees every block");
+        fsck("large directory");
+    } // testLargeDirectory
+
+    /** Writes a file through a FileSystemOutputStream in pieces of many
+     * sizes, appends to it through another, and reads it back through a
+     * FileSystemInputStream, again in pieces of many sizes.  Some of the
+     * pieces start on block boundaries and are whole blocks long, which
+     * the streams pass straight to the file system.
+     * @param compressed whether the file is compressed.
+     */
+    private static void testStreams(boolean compressed) {
+        String name = compressed ? "streamc" : "stream";
+        Random random = new Random(compressed ? 23 : 24);
+        byte data[] = compressed ? textBytes(50000) : randomBytes(25, 50000);
+        byte extra[] = randomBytes(26, 1500);
+        byte expected[] = Arrays.copyOf(data, data.length + extra.length);
+        System.arraycopy(extra, 0, expected, data.length, extra.length);
+        check(fileSystem.create(name) == 0, "create " + name);
+        check(fileSystem.setCompressed(name, compressed) == 0, "set compression of " + name);
+        try {
+            try (OutputStream out = new FileSystemOutputStream(fileSystem, name)) {
+                int pos = 0;
+                // Three aligned whole blocks and a bit.
+                out.write(data, pos, 3 * Disk.BLOCK_SIZE + 100);
+                pos += 3 * Disk.BLOCK_SIZE + 100;
+                out.write(data[pos++]);
+                out.flush();
+                while (pos < data.length - 10 * Disk.BLOCK_SIZE) {
+                    int n = random.nextInt(4) == 0 ? 1 + random.nextInt(10)
+                            : random.nextInt(3 * Disk.BLOCK_SIZE);
+                    out.write(data, pos, n);
+                    pos += n;
+                    if (random.nextInt(5) == 0) {
+                        out.flush();
+                    }
+                }
+                // Up to a block boundary, then whole blocks.
+                int n = Disk.BLOCK_SIZE - pos % Disk.BLOCK_SIZE;
+                out.write(data, pos, n);
+                pos += n;
+                n = 5 * Disk.BLOCK_SIZE;
+                out.write(data, pos, n);
+                pos += n;
+                out.write(data, pos, data.length - pos);
+            }
+            try (OutputStream out = new FileSystemOutputStream(fileSystem, name, true)) {
+                out.write(extra, 0, 700);
+                out.flush();
+                out.write(extra, 700, extra.length - 700);
             }
+            checkContents(name, expected);
+
+            ByteArrayOutputStream copy = new ByteArrayOutputStream();
+            try (InputStream in = new FileSystemInputStream(fileSystem, name)) {
+                check(in.available() == expected.length, "available bytes of " + name);
+                byte buf[] = new byte[4 * Disk.BLOCK_SIZE];
+                int n = in.read(buf, 0, 2 * Disk.BLOCK_SIZE);
+                copy.write(buf, 0, n);
+                while (true) {
+                    if (random.nextInt(4) == 0) {
+                        int b = in.read();
+                        if (b < 0) {
+                            break;
+                        }
+                        copy.write(b);
+                        continue;
+                    }
+                    int off = random.nextInt(10);
+                    n = in.read(buf, off, 1 + random.nextInt(buf.length - off));
+                    if (n < 0) {
+                        break;
+                    }
+                    copy.write(buf, off, n);
+                }
+            }
+            check(Arrays.equals(copy.toByteArray(), expected),
+                    "read " + name + " through a stream");
+        } catch (IOException e) {
+            check(false, "streams on " + name + ": " + e);
+        }
+        check(fileSystem.delete(name) == 0, "delete " + name);
+        fsck(compressed ? "streams on a compressed file" : "streams");
+    } // testStreams
+
+    /** Copies a host file into a file through a FileSystemChannel and back
+     * out again, in whole and in part, and reads and writes the file
+     * through direct buffers, which have no backing array.
+     */
+    private static void testChannels() {
+        byte data[] = randomBytes(27, 70003);
+        byte expected[] = data.clone();
+        check(fileSystem.create("chan") == 0, "create chan");
+        Path host = null;
+        Path copy = null;
+        try (FileSystemChannel channel = new FileSystemChannel(fileSystem, "chan")) {
+            host = Files.createTempFile("FileTester", ".in");
+            copy = Files.createTempFile("FileTester", ".out");
+            Files.write(host, data);
+            try (FileChannel in = FileChannel.open(host)) {
+                check(channel.transferFrom(in, 0, Long.MAX_VALUE) == data.length,
+                        "transfer a host file in");
+                // Part of the host file again, over the middle of the file.
+                in.position(300);
+                check(channel.transferFrom(in, 1000, 5000) == 5000,
+                        "transfer part of a host file in");
+                System.arraycopy(data, 300, expected, 1000, 5000);
+            }
+            checkContents("chan", expected);
+
+            try (FileChannel out = FileChannel.open(copy, StandardOpenOption.WRITE)) {
+                check(channel.transferTo(0, Long.MAX_VALUE, out) == expected.length,
+                        "transfer the file out");
+            }
+            check(Arrays.equals(Files.readAllBytes(copy), expected),
+                    "the host copy matches the file");
+            try (FileChannel out = FileChannel.open(copy, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING))
+            {
+                check(channel.transferTo(777, 3000, out) == 3000, "transfer part of the file out");
+            }
+            check(Arrays.equals(Files.readAllBytes(copy), Arrays.copyOfRange(expected, 777, 3777)),
+                    "the host copy matches part of the file");
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(9000);
+            channel.position(777);
+            check(channel.read(direct) == 9000, "read into a direct buffer");
+            check(channel.position() == 9777, "position after reading");
+            check(Arrays.equals(contents(direct), Arrays.copyOfRange(expected, 777, 9777)),
+                    "contents of a direct buffer");
+            direct.clear();
+            check(channel.read(direct, expected.length - 100) == 100,
+                    "read into a direct buffer at the end of the file");
+            check(Arrays.equals(contents(direct),
+                    Arrays.copyOfRange(expected, expected.length - 100, expected.length)),
+                    "contents of a direct buffer at the end of the file");
+
+            direct.clear();
+            direct.put(data, 0, 2000).flip();
+            check(channel.write(direct, 4000) == 2000, "write from a direct buffer");
+            System.arraycopy(data, 0, expected, 4000, 2000);
+            checkContents("chan", expected);
+        } catch (IOException e) {
+            check(false, "channel on chan: " + e);
+        } finally {
+            try {
+                if (host != null) {
+                    Files.delete(host);
+                }
+                if (copy != null) {
+                    Files.delete(copy);
+                }
+            } catch (IOException e) {
+                check(false, "delete the host files: " + e);
+            }
+        }
+        check(fileSystem.delete("chan") == 0, "delete chan");
+        fsck("channels");
+    } // testChannels
+
+    /** Returns the bytes of a buffer up to its position. */
+    private static byte[] contents(ByteBuffer buffer) {
+        byte bytes[] = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(bytes);
+        return bytes;
+    } // contents
+
+    /** Grows several files a block at a time in turn, so that their blocks
+     * interleave, deletes some to leave holes, and defragments the rest.
+     * @param log whether to do it in log-structured mode.
+     */
+    private static void testDefragment(boolean log) {
+        String mode = log ? " in log mode" : "";
+        check(fileSystem.setLogStructured(log) == 0, "set log mode to " + log);
+        Random random = new Random(log ? 21 : 22);
+        byte contents[][] = new byte[8][0];
+        for (int i = 0; i < contents.length; i++) {
+            fileSystem.create("frag" + i);
+        }
+        for (int round = 0; round < 12; round++) {
+            for (int i = 0; i < contents.length; i++) {
+                byte more[] = randomBytes(random.nextLong(), Disk.BLOCK_SIZE);
+                check(fileSystem.write("frag" + i, contents[i].length, more) == 0,
+                        "append to frag" + i + mode);
+                contents[i] = Arrays.copyOf(contents[i], contents[i].length + more.length);
+                System.arraycopy(more, 0, contents[i], contents[i].length - more.length,
+                        more.length);
+            }
+        }
+        for (int i = 0; i < contents.length; i += 2) {
+            check(fileSystem.delete("frag" + i) == 0, "delete frag" + i + mode);
+        }
+        check(fileSystem.defragment(0) == 0, "defragment" + mode);
+        for (int i = 1; i < contents.length; i += 2) {
+            checkContents("frag" + i, contents[i]);
+        }
+        fileSystem.checkpoint();
+        mount();
+        for (int i = 1; i < contents.length; i += 2) {
+            checkContents("frag" + i, contents[i]);
+        }
+        fsck("defragmenting" + mode);
+        check(fileSystem.setLogStructured(false) == 0, "disable log mode");
+        for (int i = 1; i < contents.length; i += 2) {
+            check(fileSystem.delete("frag" + i) == 0, "delete frag" + i + mode);
+        }
+    } // testDefragment
+
+    /** Takes a snapshot of the disk, changes a file, and restores the
+     * snapshot, checking that the snapshot keeps its contents throughout.
+     */
+    private static void testSnapshot() {
+        byte before[] = randomBytes(18, 6000);
+        byte after[] = randomBytes(19, 9000);
+        byte again[] = randomBytes(20, 3000);
+        fileSystem.create("snap");
+        check(fileSystem.write("snap", before) == 0, "write snap");
+        byte image[][] = readDisk();
+        Disk.Snapshot snapshot = disk.snapshot();
+        check(fileSystem.write("snap", after) == 0, "write snap after the snapshot");
+        checkContents("snap", after);
+        check(snapshotHolds(snapshot, image), "a write leaves the snapshot unchanged");
+
+        disk.restore(snapshot);
+        mount();
+        checkContents("snap", before);
+        check(fileSystem.write("snap", again) == 0, "write snap after restoring");
+        checkContents("snap", again);
+        check(snapshotHolds(snapshot, image), "a write after restoring leaves the snapshot unchanged");
+        check(fileSystem.delete("snap") == 0, "delete snap");
+        fsck("snapshots");
+    } // testSnapshot
+
+    /** Returns true if every block of a snapshot holds what it should. */
+    private static boolean snapshotHolds(Disk.Snapshot snapshot, byte image[][]) {
+        byte block[] = new byte[Disk.BLOCK_SIZE];
+        for (int i = 0; i < DISK_SIZE; i++) {
+            snapshot.read(i, block);
+            if (!Arrays.equals(block, image[i])) {
+                return false;
+            }
+        }
+        return true;
+    } // snapshotHolds
+
+    /** Runs the file system on a three-disk stripe set. */
+    private static void testStriped() {
+        if (!membersAbsent(3, "striped disk")) {
+            return;
+        }
+        FastDisk saved = disk;
+        disk = new StripedDisk(DISK_SIZE, 3, 3);
+        mount();
+        check(fileSystem.format() == 0, "format the striped disk");
+        byte contents[][] = writeSamples();
+        mount();
+        checkSamples(contents);
+        fsck("striped disk");
+        disk = saved;
+        mount();
+    } // testStriped
+
+    /** Runs the file system on a two-way mirror, saves it, and reopens it
+     * with one member's file deleted.
+     */
+    private static void testMirrored() {
+        if (!membersAbsent(2, "mirrored disk")) {
+            return;
+        }
+        FastDisk saved = disk;
+        try {
+            disk = new MirroredDisk(DISK_SIZE, 2);
+            mount();
+            check(fileSystem.format() == 0, "format the mirrored disk");
+            byte contents[][] = writeSamples();
+            fsck("mirrored disk");
+            disk.flush();
+            check(new File("DISK1").delete(), "delete DISK1");
+            disk = new MirroredDisk(DISK_SIZE, 2);
+            check(new File("DISK1").exists(), "the missing member is copied back");
+            mount();
+            checkSamples(contents);
+            fsck("reopening a mirror with a member missing");
+        } finally {
+            new File("DISK0").delete();
+            new File("DISK1").delete();
+            disk = saved;
+            mount();
+        }
+    } // testMirrored
+
+    /** Returns true if none of the files an array of the given number of
+     * members would use exists, else says the part is skipped.
+     */
+    private static boolean membersAbsent(int count, String part) {
+        for (int i = 0; i < count; i++) {
+            if (new File("DISK" + i).exists()) {
+                System.out.println("FileTester: skipping the " + part
+                        + " part: DISK" + i + " exists");
+                return false;
+            }
+        }
+        return true;
+    } // membersAbsent
+
+    /** Writes files of many sizes, some of them rewritten in part, and
+     * returns what each should hold; file i is named "s" + i.
+     */
+    private static byte[][] writeSamples() {
+        Random random = new Random(17);
+        byte contents[][] = new byte[12][];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = randomBytes(random.nextLong(), random.nextInt(40 * Disk.BLOCK_SIZE));
+            check(fileSystem.create("s" + i) == 0, "create s" + i);
+            check(fileSystem.write("s" + i, contents[i]) == 0, "write s" + i);
         }
+        for (int i = 0; i < contents.length; i += 3) {
+            int position = contents[i].length / 3;
+            byte patch[] = randomBytes(i, Math.min(5 * Disk.BLOCK_SIZE + 7,
+                    contents[i].length - position));
+            check(fileSystem.write("s" + i, position, patch) == 0, "rewrite part of s" + i);
+            System.arraycopy(patch, 0, contents[i], position, patch.length);
+        }
+        checkSamples(contents);
+        return contents;
+    } // writeSamples
+
+    /** Checks the files written by writeSamples. */
+    private static void checkSamples(byte contents[][]) {
+        for (int i = 0; i < contents.length; i++) {
+            checkContents("s" + i, contents[i]);
+        }
+    } // checkSamples
+
+    /** Returns a copy of every block on the disk. */
+    private static byte[][] readDisk() {
+        byte blocks[][] = new byte[DISK_SIZE][Disk.BLOCK_SIZE];
+        for (int i = 0; i < DISK_SIZE; i++) {
+            disk.read(i, blocks[i]);
+        }
+        return blocks;
+    } // readDisk
+
+    /** Mounts the file system afresh from the disk. */
+    private static void mount() {
+        fileSystem = new FileSystem(disk);
+        fileSystem.setQuiet(!verbose);
+        fileSystem.initialize();
+    } // mount
+
+    /** Records the result of one check. */
+    private static void check(boolean ok, String what) {
+        checks++;
+        if (!ok) {
+            failures++;
+            System.out.println("FileTester: FAILED: " + what);
+        }
+    } // check
+
+    /** Checks that a file holds exactly the given bytes. */
+    private static void checkContents(String name, byte expected[]) {
+        byte buf[] = new byte[expected.length];
+        check(fileSystem.read(name, buf) == 0, "read " + name);
+        check(Arrays.equals(buf, expected), "contents of " + name);
+        check(size(name) == expected.length, "size of " + name);
+    } // checkContents
+
+    /** Checks the whole file system after one part of the test. */
+    private static void fsck(String part) {
+        check(fileSystem.check(false) == 0, "fsck after " + part);
+    } // fsck
+
+    /** Returns the size of a file, or -1. */
+    private static long size(String name) {
+        try (FileSystemChannel channel = new FileSystemChannel(fileSystem, name)) {
+            return channel.size();
+        } catch (IOException e) {
+            return -1;
+        }
+    } // size
+
+    /** Returns the file system's totals. */
+    private static int[] stat() {
+        int counts[] = new int[FileSystem.STAT_FIELDS];
+        fileSystem.stat(counts);
+        return counts;
+    } // stat
+
+    private static byte[] randomBytes(long seed, int length) {
+        byte data[] = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    } // randomBytes
 
-        private static void listDirectory() {
-            Library.output("Listing directory:\n");
-            fileSystem.dir();
+    /** Returns text-like bytes, which compress well. */
+    private static byte[] textBytes(int length) {
+        byte data[] = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) ('a' + i % 7 + i / 1000 % 3);
         }
-    }
\ No newline at end of file
+        return data;
+    } // textBytes
+} // FileTester
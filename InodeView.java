@@ -0,0 +1,187 @@
+/**
+ * InodeView.java
+ * A flyweight accessor for one inode record inside a cached block buffer.
+ * <p>
+ * The view holds no state of its own besides the buffer and offset it was
+ * last wrapped around, so one instance can walk an entire inode table
+ * without allocating.  Every getter and setter reads or writes the record
+ * in place; callers are responsible for marking the block dirty.
+ * <p>
+ * Record layout (all fields little-endian):
+ * <pre>
+ *     0   int     size in bytes
+ *     4   short   flags
+ *     6   short   number of data blocks allocated to the file
+ *     8   short   indirect block number, or 0
+ *    10   short   reserved
+ *    12   short[] direct block numbers, 0 meaning "not allocated"
+ * </pre>
+ * An inline file keeps its data in bytes 12 onwards in place of the
+ * direct pointers, and has no blocks of its own.
+ *
+ * @see DirEntryView
+ * @see FileSystem
+ */
+public class InodeView
+{
+    /** The size of one inode record in bytes. */
+    public static final int SIZE = 64;
+
+    /** Number of direct block pointers held in the record. */
+    public static final int DIRECT_COUNT = 26;
+
+    /** Flag: the inode is in use. */
+    public static final int FLAG_USED = 0x0001;
+
+    /** Flag: the inode describes a directory. */
+    public static final int FLAG_DIR = 0x0002;
+
+    /** Flag: the file's contents should be compressed when written. */
+    public static final int FLAG_COMPRESS = 0x0004;
+
+    /** Flag: the file's blocks hold a deflate stream rather than raw data.
+     * The size field still gives the uncompressed length.
+     */
+    public static final int FLAG_COMPRESSED = 0x0008;
+
+    /** Flag: the file's data is held in the record instead of in blocks. */
+    public static final int FLAG_INLINE = 0x0010;
+
+    private static final int SIZE_OFFSET = 0;
+    private static final int FLAGS_OFFSET = 4;
+    private static final int BLOCKS_OFFSET = 6;
+    private static final int INDIRECT_OFFSET = 8;
+    private static final int DIRECT_OFFSET = 12;
+
+    /** The most bytes an inline file can hold. */
+    public static final int INLINE_CAPACITY = SIZE - DIRECT_OFFSET;
+
+    /** The buffer holding the record. */
+    private byte[] buf;
+
+    /** The index of the first byte of the record in buf. */
+    private int offset;
+
+    /**
+     * Points this view at a record.
+     * @param buf       the block buffer containing the record
+     * @param offset    the index of the first byte of the record
+     * @return          this view
+     */
+    public InodeView wrap(byte[] buf, int offset)
+    {
+        this.buf = buf;
+        this.offset = offset;
+        return this;
+    }
+
+    /** Resets every field of the record to zero. */
+    public void clear()
+    {
+        java.util.Arrays.fill(buf, offset, offset + SIZE, (byte) 0);
+    }
+
+    public int size()
+    {
+        return Utilities.unpackInt(buf, offset + SIZE_OFFSET);
+    }
+
+    public void setSize(int size)
+    {
+        Utilities.pack(size, buf, offset + SIZE_OFFSET);
+    }
+
+    public int flags()
+    {
+        return Utilities.unpackShort(buf, offset + FLAGS_OFFSET) & 0xffff;
+    }
+
+    public void setFlags(int flags)
+    {
+        Utilities.pack((short) flags, buf, offset + FLAGS_OFFSET);
+    }
+
+    public boolean hasFlag(int flag)
+    {
+        return (flags() & flag) != 0;
+    }
+
+    public boolean isUsed()
+    {
+        return hasFlag(FLAG_USED);
+    }
+
+    public boolean isDirectory()
+    {
+        return hasFlag(FLAG_DIR);
+    }
+
+    /** Returns the number of data blocks allocated to this inode. */
+    public int blockCount()
+    {
+        return Utilities.unpackShort(buf, offset + BLOCKS_OFFSET) & 0xffff;
+    }
+
+    public void setBlockCount(int count)
+    {
+        Utilities.pack((short) count, buf, offset + BLOCKS_OFFSET);
+    }
+
+    public int indirect()
+    {
+        return Utilities.unpackShort(buf, offset + INDIRECT_OFFSET) & 0xffff;
+    }
+
+    public void setIndirect(int block)
+    {
+        Utilities.pack((short) block, buf, offset + INDIRECT_OFFSET);
+    }
+
+    /**
+     * Returns a direct block pointer.
+     * @param index     the pointer index, less than DIRECT_COUNT
+     * @return          the block number, or 0 if none is allocated
+     */
+    public int direct(int index)
+    {
+        return Utilities.unpackShort(buf, offset + DIRECT_OFFSET + 2 * index) & 0xffff;
+    }
+
+    public void setDirect(int index, int block)
+    {
+        Utilities.pack((short) block, buf, offset + DIRECT_OFFSET + 2 * index);
+    }
+
+    /**
+     * Copies bytes out of an inline file's data.
+     * @param position  the position in the file of the first byte
+     * @param dst       the buffer to copy into
+     * @param off       the index in dst of the first byte
+     * @param len       the number of bytes to copy
+     */
+    public void readInline(int position, byte[] dst, int off, int len)
+    {
+        System.arraycopy(buf, offset + DIRECT_OFFSET + position, dst, off, len);
+    }
+
+    /**
+     * Copies bytes into an inline file's data.
+     * @param src       the buffer to copy from
+     * @param off       the index in src of the first byte
+     * @param position  the position in the file of the first byte
+     * @param len       the number of bytes to copy
+     */
+    public void writeInline(byte[] src, int off, int position, int len)
+    {
+        System.arraycopy(src, off, buf, offset + DIRECT_OFFSET + position, len);
+    }
+
+    /**
+     * Clears the inline data (equivalently, the direct pointers) from a
+     * position to the end of the record.
+     */
+    public void clearInline(int position)
+    {
+        java.util.Arrays.fill(buf, offset + DIRECT_OFFSET + position, offset + SIZE, (byte) 0);
+    }
+}
@@ -88,6 +88,20 @@ import java.lang.reflect.*;
          */
         public static final int SYSCALL_JOIN = 3;
 
+        /** System call to get the totals of the mounted file system: its
+         * size, its used and free blocks, and its number of files,
+         * directories, and bytes.  They are kept up to date as the file
+         * system changes, so the call does no I/O however large the disk.
+         * <ul>
+         * <li><b>Parameter o1</b> - An int array of at least
+         * FileSystem.STAT_FIELDS elements, filled in at the
+         * FileSystem.STAT_XXX indexes.
+         * <li><b>Returns</b> -- Zero, or ERROR_BAD_ARGUMENT if no file
+         * system is mounted or the array is too short.
+         * </ul>
+         */
+        public static final int SYSCALL_STATFS = 4;
+
         //////////////// Error codes returned by interrupt()
 
         /** An error code indicating that one of the system call parameters made no
@@ -138,6 +152,9 @@ import java.lang.reflect.*;
         /** The size of the disk cache */
         private static int cacheSize;
 
+        /** The file system most recently mounted, or null */
+        private static FileSystem fileSystem;
+
         //////////////// Methods
 
         /** This is the only entry into the kernel.
@@ -201,6 +218,9 @@ import java.lang.reflect.*;
                             case SYSCALL_JOIN:
                                 return doJoin(i2);
 
+                            case SYSCALL_STATFS:
+                                return doStatfs((int[])o1);
+
                             default:
                                 return ERROR_BAD_ARGUMENT;
                         }
@@ -357,6 +377,34 @@ import java.lang.reflect.*;
             return Launcher.joinOne(pid);
         } // doJoin
 
+        /** Gets the disk the kernel was powered on with.
+         * @return the disk, or null if there has been no POWER_ON interrupt.
+         */
+        static Disk getDisk() {
+            return disk;
+        } // getDisk
+
+        /** Records the file system that SYSCALL_STATFS reports on.  Called
+         * by a FileSystem when it is mounted.
+         * @param fs the file system.
+         */
+        static void mount(FileSystem fs) {
+            fileSystem = fs;
+        } // mount
+
+        /** Gets the totals of the mounted file system.
+         * @param counts an array to fill in.
+         * @return zero, or ERROR_BAD_ARGUMENT.
+         */
+        private static int doStatfs(int counts[]) {
+            if (fileSystem == null || counts == null
+                    || counts.length < FileSystem.STAT_FIELDS) {
+                return ERROR_BAD_ARGUMENT;
+            }
+            fileSystem.stat(counts);
+            return 0;
+        } // doStatfs
+
         /** A Launcher instance represents one atomic command being run by the
          * Kernel.  It has associated with it a process id (pid), a Java method
          * to run, and a list of arguments to the method.
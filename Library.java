@@ -79,5 +79,16 @@
             return Kernel.interrupt(Kernel.INTERRUPT_USER,
                     Kernel.SYSCALL_JOIN, pid, null, null, null);
         } // join
+
+        /** Performs SYSCALL_STATFS.
+         * Gets the totals of the mounted file system without any I/O.
+         * @param counts an array of at least FileSystem.STAT_FIELDS elements,
+         * filled in at the FileSystem.STAT_XXX indexes.
+         * @return zero or ERROR_BAD_ARGUMENT
+         */
+        public static int statfs(int counts[]) {
+            return Kernel.interrupt(Kernel.INTERRUPT_USER,
+                    Kernel.SYSCALL_STATFS, 0, counts, null, null);
+        } // statfs
     } // Library
 
@@ -0,0 +1,395 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/** A multi-threaded workload generator for the {@link FileSystem}.
+ * <p>
+ * Usage:
+ * <pre>
+ *    java LoadGenerator [ &lt;setting&gt;=&lt;value&gt; | &lt;flag&gt; ] ...
+ * </pre>
+ * with these settings:
+ * <dl>
+ * <dt><b>threads</b><dd>the number of client threads (default 4).
+ * <dt><b>files</b><dd>the number of files the clients share (default 64,
+ *     at most {@link FileSystem#MAX_FILES}).
+ * <dt><b>ops</b><dd>the number of operations measured, in all (default
+ *     10000).
+ * <dt><b>warmup</b><dd>the number of operations run first and not measured
+ *     (default 1000).
+ * <dt><b>mix</b><dd>the relative weights of create, read, write, and
+ *     delete, separated by colons (default 10:60:25:5).
+ * <dt><b>zipf</b><dd>the exponent of the Zipf distribution files are
+ *     picked from, or 0 to pick them uniformly (default 0.99).
+ * <dt><b>size</b><dd>the distribution of the sizes of file contents:
+ *     fixed:N, uniform:MIN-MAX, or exp:MEAN, in bytes (default
+ *     uniform:0-4096).  Sizes are capped at 64 KiB.
+ * <dt><b>disk</b><dd>the disk, named as for {@link TraceReplay} (default
+ *     FastDisk).  A plain Disk cannot be used.
+ * <dt><b>cache</b><dd>the number of metadata blocks the file system caches
+ *     (default 32).
+ * <dt><b>seed</b><dd>the seed for the random choices (default 1).
+ * </dl>
+ * and these flags: <b>dedup</b> and <b>log</b> turn on deduplication and
+ * log-structured writes, <b>virtual</b> runs the disk on the
+ * {@link VirtualClock} so that a slow disk costs no waiting and the
+ * latencies reported are simulated ones, and <b>verbose</b> lets the file
+ * system print its usual message for every operation.
+ * <p>
+ * All the files are created before the run, and if they will not all
+ * fit, the generator says so and stops.  A create makes a file again
+ * if it has been deleted and writes its contents; a write replaces a
+ * file's contents with new ones of a size drawn from the distribution; a
+ * read reads a whole file.  An operation on a file that does not exist,
+ * or that finds the disk full, fails; failures are counted but their
+ * latencies are not, so the count of each kind is of the operations that
+ * succeeded.  The report gives the throughput and, for each kind
+ * of operation, the median, 99th, and 99.9th percentile latencies.
+ *
+ * @see FileSystem
+ */
+public class LoadGenerator {
+    private static final int CREATE = 0;
+    private static final int READ = 1;
+    private static final int WRITE = 2;
+    private static final int DELETE = 3;
+    private static final String OP_NAMES[] = { "create", "read", "write", "delete" };
+
+    /** The largest file contents written. */
+    private static final int MAX_SIZE = 64 * 1024;
+
+    private static int threadCount = 4;
+    private static int fileCount = 64;
+    private static int opCount = 10000;
+    private static int warmupCount = 1000;
+    private static int mix[] = { 10, 60, 25, 5 };
+    private static double zipf = 0.99;
+    private static String sizeSpec = "uniform:0-4096";
+    private static String diskName = "FastDisk";
+    private static int cacheSize = 32;
+    private static long seed = 1;
+    private static boolean dedup;
+    private static boolean log;
+    private static boolean virtual;
+    private static boolean verbose;
+
+    private static FileSystem fileSystem;
+
+    /** The cumulative probability of picking each file, by rank. */
+    private static double popularity[];
+
+    /** The latencies of each client's successful operations of each kind,
+     * in nanoseconds, and the number of each. */
+    private static long latency[][][];
+    private static int latencyCount[][];
+    private static int failures[][];
+
+    /** Prints a help message and exits. */
+    private static void usage() {
+        System.err.println("usage: java LoadGenerator [threads=N] [files=N] [ops=N]"
+                + " [warmup=N] [mix=C:R:W:D] [zipf=S] [size=fixed:N|uniform:MIN-MAX|exp:MEAN]"
+                + " [disk=NAME] [cache=N] [seed=N] [dedup] [log] [virtual] [verbose]");
+        System.exit(-1);
+    } // usage
+
+    /** The main program.
+     * @param args the command-line arguments
+     */
+    public static void main(String args[]) {
+        for (String arg : args) {
+            parse(arg);
+        }
+        if (threadCount < 1 || fileCount < 1 || opCount < 1 || warmupCount < 0
+                || cacheSize < 1 || zipf < 0 || mix[0] + mix[1] + mix[2] + mix[3] <= 0)
+        {
+            usage();
+        }
+        if (fileCount > FileSystem.MAX_FILES) {
+            System.err.println("files=" + fileCount + ": the file system holds at most "
+                    + FileSystem.MAX_FILES + " files");
+            System.exit(-1);
+        }
+        drawSize(new Random(seed)); // checks the size setting
+        if (virtual) {
+            if (diskName.equals("FastDisk")) {
+                System.err.println("virtual: a FastDisk takes no time to simulate");
+                usage();
+            }
+            VirtualClock.enable();
+        }
+
+        Disk disk = null;
+        try {
+            disk = TraceReplay.makeDisk(diskName, FileSystem.DISK_SIZE);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage();
+        }
+        fileSystem = new FileSystem(disk, cacheSize);
+        fileSystem.setQuiet(!verbose);
+        fileSystem.initialize();
+        fileSystem.format();
+        fileSystem.setDeduplication(dedup);
+        fileSystem.setLogStructured(log);
+        popularity = zipfTable(fileCount, zipf);
+        Random random = new Random(seed);
+        for (int f = 0; f < fileCount; f++) {
+            if (fileSystem.create(fileName(f)) != 0
+                    || fileSystem.write(fileName(f), contents(random)) != 0)
+            {
+                System.err.println("files=" + fileCount + ": only " + f
+                        + " files of these sizes fit on the disk");
+                System.exit(-1);
+            }
+        }
+
+        latency = new long[threadCount][4][];
+        latencyCount = new int[threadCount][4];
+        failures = new int[threadCount][4];
+        run(warmupCount, false);
+        long elapsed = run(opCount, true);
+        fileSystem.checkpoint();
+        report(elapsed);
+    } // main
+
+    /** Applies one command-line argument. */
+    private static void parse(String arg) {
+        int eq = arg.indexOf('=');
+        String key = eq < 0 ? arg : arg.substring(0, eq);
+        String value = eq < 0 ? null : arg.substring(eq + 1);
+        try {
+            if (value == null) {
+                if (key.equals("dedup")) {
+                    dedup = true;
+                } else if (key.equals("log")) {
+                    log = true;
+                } else if (key.equals("virtual")) {
+                    virtual = true;
+                } else if (key.equals("verbose")) {
+                    verbose = true;
+                } else {
+                    usage();
+                }
+            } else if (key.equals("threads")) {
+                threadCount = Integer.parseInt(value);
+            } else if (key.equals("files")) {
+                fileCount = Integer.parseInt(value);
+            } else if (key.equals("ops")) {
+                opCount = Integer.parseInt(value);
+            } else if (key.equals("warmup")) {
+                warmupCount = Integer.parseInt(value);
+            } else if (key.equals("mix")) {
+                String parts[] = value.split(":");
+                if (parts.length != 4) {
+                    usage();
+                }
+                for (int i = 0; i < 4; i++) {
+                    mix[i] = Integer.parseInt(parts[i]);
+                    if (mix[i] < 0) {
+                        usage();
+                    }
+                }
+            } else if (key.equals("zipf")) {
+                zipf = Double.parseDouble(value);
+            } else if (key.equals("size")) {
+                sizeSpec = value;
+            } else if (key.equals("disk")) {
+                diskName = value;
+            } else if (key.equals("cache")) {
+                cacheSize = Integer.parseInt(value);
+            } else if (key.equals("seed")) {
+                seed = Long.parseLong(value);
+            } else {
+                usage();
+            }
+        } catch (NumberFormatException e) {
+            System.err.println(arg + ": bad number");
+            usage();
+        }
+    } // parse
+
+    /** Runs a number of operations, shared among the client threads.
+     * @param total the number of operations.
+     * @param measure whether to record their latencies.
+     * @return the time taken, in nanoseconds.
+     */
+    private static long run(int total, boolean measure) {
+        Thread threads[] = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int client = t;
+            final int count = total / threadCount + (t < total % threadCount ? 1 : 0);
+            if (measure) {
+                for (int op = 0; op < 4; op++) {
+                    latency[t][op] = new long[count];
+                }
+            }
+            threads[t] = new Thread(() -> client(client, count, measure), "CLIENT" + t);
+        }
+        long start = VirtualClock.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        return VirtualClock.nanoTime() - start;
+    } // run
+
+    /** The work of one client thread. */
+    private static void client(int client, int count, boolean measure) {
+        // Each phase gets its own stream of choices, the same every run.
+        Random random = new Random(seed * 31 + client * 2 + (measure ? 1 : 0));
+        byte buffer[] = new byte[MAX_SIZE];
+        int total = mix[0] + mix[1] + mix[2] + mix[3];
+        for (int i = 0; i < count; i++) {
+            int op = 0;
+            for (int pick = random.nextInt(total); pick >= mix[op]; op++) {
+                pick -= mix[op];
+            }
+            String name = fileName(pickFile(random));
+            byte data[] = op == CREATE || op == WRITE ? contents(random) : null;
+
+            long start = VirtualClock.nanoTime();
+            int rc;
+            if (op == CREATE) {
+                rc = fileSystem.create(name);
+                if (rc == 0) {
+                    rc = fileSystem.write(name, data);
+                }
+            } else if (op == READ) {
+                rc = fileSystem.read(name, buffer);
+            } else if (op == WRITE) {
+                rc = fileSystem.write(name, data);
+            } else {
+                rc = fileSystem.delete(name);
+            }
+            long elapsed = VirtualClock.nanoTime() - start;
+
+            if (!measure) {
+                continue;
+            }
+            if (rc != 0) {
+                failures[client][op]++;
+            } else {
+                latency[client][op][latencyCount[client][op]++] = elapsed;
+            }
+        }
+    } // client
+
+    private static String fileName(int file) {
+        return "f" + file;
+    } // fileName
+
+    /** Builds the cumulative distribution of the Zipf law with a given
+     * exponent over a number of files, the first the most popular.
+     */
+    private static double[] zipfTable(int n, double exponent) {
+        double table[] = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += 1 / Math.pow(i + 1, exponent);
+            table[i] = sum;
+        }
+        for (int i = 0; i < n; i++) {
+            table[i] /= sum;
+        }
+        return table;
+    } // zipfTable
+
+    /** Picks a file according to its popularity. */
+    private static int pickFile(Random random) {
+        int i = Arrays.binarySearch(popularity, random.nextDouble());
+        return Math.min(i < 0 ? -i - 1 : i, popularity.length - 1);
+    } // pickFile
+
+    /** Makes file contents of a size drawn from the size distribution. */
+    private static byte[] contents(Random random) {
+        byte data[] = new byte[drawSize(random)];
+        // Text-like bytes, so that compression and deduplication see
+        // neither all zeros nor noise.
+        int base = random.nextInt(26);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ('a' + (base + i % 7) % 26);
+        }
+        return data;
+    } // contents
+
+    /** Draws a size from the size distribution. */
+    private static int drawSize(Random random) {
+        String parts[] = sizeSpec.split(":", 2);
+        int size = -1;
+        try {
+            if (parts.length < 2) {
+                size = -1;
+            } else if (parts[0].equals("fixed")) {
+                size = Integer.parseInt(parts[1]);
+            } else if (parts[0].equals("uniform")) {
+                String range[] = parts[1].split("-");
+                int min = Integer.parseInt(range[0]);
+                int max = Integer.parseInt(range[range.length - 1]);
+                size = max < min ? -1 : min + random.nextInt(max - min + 1);
+            } else if (parts[0].equals("exp")) {
+                double mean = Double.parseDouble(parts[1]);
+                size = (int) (-mean * Math.log(1 - random.nextDouble()));
+            }
+        } catch (NumberFormatException e) {
+            size = -1;
+        }
+        if (size < 0) {
+            System.err.println(sizeSpec + ": bad size distribution");
+            usage();
+        }
+        return Math.min(size, MAX_SIZE);
+    } // drawSize
+
+    /** Prints the throughput and the latencies of each kind of operation. */
+    private static void report(long elapsed) {
+        int failed[] = new int[5];
+        for (int t = 0; t < threadCount; t++) {
+            for (int op = 0; op < 4; op++) {
+                failed[op] += failures[t][op];
+                failed[4] += failures[t][op];
+            }
+        }
+        System.out.printf("LoadGenerator: %d threads, %d files, mix %d:%d:%d:%d, zipf %.2f,"
+                + " sizes %s, disk %s, cache %d%s%s%s%n",
+                threadCount, fileCount, mix[0], mix[1], mix[2], mix[3], zipf,
+                sizeSpec, diskName, cacheSize, dedup ? ", dedup" : "", log ? ", log" : "",
+                virtual ? ", virtual time" : "");
+        System.out.printf("Throughput: %.0f ops/s (%d ops in %.3f s after %d warm-up, %d failed)%n",
+                opCount / (elapsed / 1e9), opCount, elapsed / 1e9, warmupCount, failed[4]);
+        System.out.printf("%-8s %8s %8s %10s %10s %10s %10s%n",
+                "op", "count", "failed", "p50 ms", "p99 ms", "p999 ms", "max ms");
+        long all[] = new long[0];
+        for (int op = 0; op <= 4; op++) {
+            long sorted[];
+            if (op < 4) {
+                sorted = new long[0];
+                for (int t = 0; t < threadCount; t++) {
+                    int n = latencyCount[t][op];
+                    sorted = Arrays.copyOf(sorted, sorted.length + n);
+                    System.arraycopy(latency[t][op], 0, sorted, sorted.length - n, n);
+                }
+                all = Arrays.copyOf(all, all.length + sorted.length);
+                System.arraycopy(sorted, 0, all, all.length - sorted.length, sorted.length);
+            } else {
+                sorted = all;
+            }
+            Arrays.sort(sorted);
+            String name = op < 4 ? OP_NAMES[op] : "all";
+            if (sorted.length == 0) {
+                System.out.printf("%-8s %8d %8d%n", name, 0, failed[op]);
+                continue;
+            }
+            System.out.printf("%-8s %8d %8d %10.3f %10.3f %10.3f %10.3f%n",
+                    name, sorted.length, failed[op],
+                    TraceReplay.percentile(sorted, 50) / 1e6,
+                    TraceReplay.percentile(sorted, 99) / 1e6,
+                    TraceReplay.percentile(sorted, 99.9) / 1e6,
+                    sorted[sorted.length - 1] / 1e6);
+        }
+    } // report
+} // LoadGenerator
@@ -0,0 +1,248 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+
+/** A Disk that serves as one member of a disk array.
+ * <p>
+ * A plain Disk accepts one request at a time and reports its completion
+ * to the Kernel.  A MemberDisk instead keeps a queue of requests from any
+ * number of threads, starts each as the previous one finishes, and wakes
+ * the thread that submitted it.  Like a Disk, it needs a thread of its own
+ * running run() to do the work, and it pays the same seek and transfer
+ * delays.
+ * <p>
+ * Each time a member is saved, its file is stamped with a generation one
+ * higher than the one it was restored with, in STAMP_SIZE bytes after the
+ * blocks.  The members of an array are saved together, so a member whose
+ * generation is behind the others missed a save, and a mirror can tell
+ * which of its copies is newest.
+ *
+ * @see StripedDisk
+ */
+public class MemberDisk extends Disk {
+    /** A read, write, or discard waiting for or being served by the disk. */
+    public static final class Request {
+        private final int kind;
+        private final int blockNumber;
+        private final byte buffer[];
+        private boolean done;
+
+        /** When the request was made, by the VirtualClock. */
+        private final long arrivalTime = VirtualClock.nanoTime();
+
+        private Request(int kind, int blockNumber, byte buffer[]) {
+            this.kind = kind;
+            this.blockNumber = blockNumber;
+            this.buffer = buffer;
+        }
+    } // Request
+
+    private static final int READ = 0;
+    private static final int WRITE = 1;
+    private static final int DISCARD = 2;
+
+    /** Requests not yet started, in order of arrival. */
+    private final ArrayDeque<Request> queue = new ArrayDeque<Request>();
+
+    /** The request the disk is working on, or null if it is idle. */
+    private Request current;
+
+    /** The name of the file this disk is saved in. */
+    private final String fileName;
+
+    /** The generation of the file this disk was last restored from or
+     * saved to. */
+    private long generation;
+
+    /** Creates a new member disk.
+     * @param size the total size of this disk, in blocks.
+     * @param fileName the name of the file this disk is saved in.
+     */
+    public MemberDisk(int size, String fileName) {
+        super(size, fileName);
+        this.fileName = fileName;
+        this.generation = Math.max(0, readGeneration(fileName, size));
+    } // MemberDisk
+
+    /** Reads the generation a member's file is stamped with.
+     * @param fileName the name of the file.
+     * @param size the size of the disk, in blocks.
+     * @return the generation, 0 if the file has no stamp, or -1 if there
+     * is no such file.
+     */
+    public static long readGeneration(String fileName, int size) {
+        File file = new File(fileName);
+        if (!file.exists()) {
+            return -1;
+        }
+        if (file.length() != (long) size * BLOCK_SIZE + STAMP_SIZE) {
+            return 0;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            in.seek((long) size * BLOCK_SIZE);
+            return in.readLong();
+        } catch (IOException e) {
+            throw new DiskException("Cannot read the stamp of " + fileName + ": " + e);
+        }
+    } // readGeneration
+
+    /** Stamps a member's file with a generation.
+     * @param fileName the name of the file, which must exist.
+     * @param size the size of the disk, in blocks.
+     * @param generation the generation.
+     */
+    public static void writeGeneration(String fileName, int size, long generation) {
+        try (RandomAccessFile out = new RandomAccessFile(fileName, "rw")) {
+            out.seek((long) size * BLOCK_SIZE);
+            out.writeLong(generation);
+        } catch (IOException e) {
+            throw new DiskException("Cannot stamp " + fileName + ": " + e);
+        }
+    } // writeGeneration
+
+    /** Saves this disk to its file and stamps it with the next generation.
+     */
+    public void flush() {
+        super.flush();
+        writeGeneration(fileName, DISK_SIZE, ++generation);
+    } // flush
+
+    /** Queues a read.  The buffer is filled by the time the request is
+     * done.
+     * @param blockNumber The block number to read from.
+     * @param buffer A data area of at least BLOCK_SIZE bytes.
+     * @return the request, to pass to await.
+     */
+    public Request submitRead(int blockNumber, byte buffer[]) {
+        return submit(new Request(READ, blockNumber, buffer));
+    } // submitRead
+
+    /** Queues a write.  The buffer must not change until the request is
+     * done.
+     * @param blockNumber The block number to write to.
+     * @param buffer A data area of at least BLOCK_SIZE bytes.
+     * @return the request, to pass to await.
+     */
+    public Request submitWrite(int blockNumber, byte buffer[]) {
+        return submit(new Request(WRITE, blockNumber, buffer));
+    } // submitWrite
+
+    /** Queues a discard, which takes effect in order with the reads and
+     * writes queued before it.
+     * @param blockNumber The block number to discard.
+     * @return the request, to pass to await.
+     */
+    public Request submitDiscard(int blockNumber) {
+        return submit(new Request(DISCARD, blockNumber, null));
+    } // submitDiscard
+
+    /** Starts a read without waiting for it.
+     * @see #submitRead(int, byte[])
+     */
+    public void read(int blockNumber, byte buffer[]) {
+        submitRead(blockNumber, buffer);
+    } // read
+
+    /** Starts a write without waiting for it.
+     * @see #submitWrite(int, byte[])
+     */
+    public void write(int blockNumber, byte buffer[]) {
+        submitWrite(blockNumber, buffer);
+    } // write
+
+    /** Discards a block once the requests queued before it are done.
+     * @see #submitDiscard(int)
+     */
+    public void discard(int blockNumber) {
+        submitDiscard(blockNumber);
+    } // discard
+
+    /** Waits for a request to be done.
+     * @param request a request returned by one of the submit methods.
+     */
+    public void await(Request request) {
+        synchronized (request) {
+            while (!request.done) {
+                try {
+                    request.wait();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    } // await
+
+    /** Returns the number of requests queued or in progress. */
+    public synchronized int queueLength() {
+        return queue.size() + (current == null ? 0 : 1);
+    } // queueLength
+
+    /** Returns the block the head is over, or will be over once the
+     * request in progress is done.
+     */
+    public synchronized int headPosition() {
+        return current == null ? currentBlock : current.blockNumber;
+    } // headPosition
+
+    private synchronized Request submit(Request request) {
+        if (request.blockNumber < 0 || request.blockNumber >= DISK_SIZE
+                || (request.kind != DISCARD
+                    && (request.buffer == null || request.buffer.length < BLOCK_SIZE)))
+        {
+            throw new DiskException("Illegal member disk request: "
+                    + " block number " + request.blockNumber
+                    + " buffer " + request.buffer);
+        }
+        queue.add(request);
+        if (current == null) {
+            startNext();
+        }
+        return request;
+    } // submit
+
+    /** Hands queued requests to the disk until one of them needs the
+     * head.  Discards need no head movement and are done on the spot.
+     * Under the VirtualClock a request arrives when it was queued, not
+     * when it is started, by which time other disks may have moved the
+     * clock on.
+     * Must be called with the disk locked and idle.
+     */
+    private void startNext() {
+        while ((current = queue.poll()) != null) {
+            if (current.kind == READ) {
+                super.read(current.blockNumber, current.buffer);
+                arrivalTime = current.arrivalTime;
+                return;
+            }
+            if (current.kind == WRITE) {
+                super.write(current.blockNumber, current.buffer);
+                arrivalTime = current.arrivalTime;
+                return;
+            }
+            super.discard(current.blockNumber);
+            complete(current);
+        }
+    } // startNext
+
+    private static void complete(Request request) {
+        synchronized (request) {
+            request.done = true;
+            request.notifyAll();
+        }
+    } // complete
+
+    /** Completes the request in progress and starts the next one.
+     * Unlike a plain Disk, a member does not interrupt the Kernel.
+     */
+    protected void finishOperation() {
+        Request finished;
+        synchronized (this) {
+            busy = false;
+            currentBlock = targetBlock;
+            finished = current;
+            startNext();
+        }
+        complete(finished);
+    } // finishOperation
+} // MemberDisk
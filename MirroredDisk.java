@@ -0,0 +1,329 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/** A RAID-1 disk array: every block kept on each of several member disks.
+ * <p>
+ * Each member is a {@link MemberDisk} with its own thread, head, and file
+ * (DISK0, DISK1, ...), holding a full copy of the array.  A write goes to
+ * every member; a read goes to just one, chosen to be quick: an idle
+ * member if there is one, else the member with the shortest queue, and
+ * among those the one whose head is nearest the block, since a Disk's
+ * seek time grows with the distance the head moves.  Under a random load
+ * the members' heads drift to different parts of the disk and each read
+ * is served by whichever is closer.
+ * <p>
+ * Like a FastDisk, the array completes each read and write before
+ * returning, and may be called from several threads at once.  Writes are
+ * queued on all the members in the same order, so the copies never
+ * disagree while the array runs.
+ * <p>
+ * They may disagree when it is opened, if a member's file is missing or
+ * missed a save.  Each member's file carries the generation it was last
+ * saved with (see {@link MemberDisk}), and the member with the highest
+ * generation wins; of several, the lowest-numbered.  Before the members
+ * are opened, each file whose generation differs is brought up to date
+ * from the winner's: a missing file is copied whole, and otherwise only
+ * the blocks that differ are rewritten, comparing the files directly
+ * rather than loading them.  When all the generations agree, nothing is
+ * read.
+ *
+ * @see MemberDisk
+ * @see StripedDisk
+ */
+public class MirroredDisk extends FastDisk {
+    /** The members of the array. */
+    private final MemberDisk members[];
+
+    /** The number of reads sent to each member. */
+    private final int memberReads[];
+
+    /** Creates a mirrored disk, restoring each member from its file
+     * if it exists, after bringing out-of-date files up to date from the
+     * newest.
+     * @param size the size of the array, and of each member, in blocks.
+     * @param memberCount the number of member disks.
+     */
+    public MirroredDisk(int size, int memberCount) {
+        super(size, null);
+        if (memberCount < 1) {
+            throw new DiskException("A mirrored disk needs at least one member");
+        }
+        members = new MemberDisk[memberCount];
+        memberReads = new int[memberCount];
+        long generations[] = new long[memberCount];
+        int newest = 0;
+        for (int i = 0; i < memberCount; i++) {
+            generations[i] = MemberDisk.readGeneration("DISK" + i, size);
+            if (generations[i] > generations[newest]) {
+                newest = i;
+            }
+        }
+        for (int i = 0; i < memberCount; i++) {
+            if (generations[i] != generations[newest]) {
+                resync(Paths.get("DISK" + newest), Paths.get("DISK" + i), size);
+            }
+        }
+        for (int i = 0; i < memberCount; i++) {
+            members[i] = new MemberDisk(size, "DISK" + i);
+        }
+        for (int i = 0; i < memberCount; i++) {
+            Thread thread = new Thread(members[i], "DISK" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    } // MirroredDisk
+
+    /** Brings one member's file up to date from another's, blocks and
+     * stamp, before either is opened.
+     * @param from the newest member's file.
+     * @param to the file to bring up to date.
+     * @param size the size of each member, in blocks.
+     */
+    private static void resync(Path from, Path to, int size) {
+        try {
+            if (!Files.exists(to)) {
+                Files.copy(from, to);
+                System.out.println("Copied " + from + " to " + to);
+                return;
+            }
+            int copied = 0;
+            try (FileChannel source = FileChannel.open(from, StandardOpenOption.READ);
+                 FileChannel target = FileChannel.open(to, StandardOpenOption.READ,
+                         StandardOpenOption.WRITE))
+            {
+                ByteBuffer want = ByteBuffer.allocate(BLOCK_SIZE);
+                ByteBuffer have = ByteBuffer.allocate(BLOCK_SIZE);
+                for (int block = 0; block < size; block++) {
+                    long position = (long) block * BLOCK_SIZE;
+                    readFully(source, want, position);
+                    readFully(target, have, position);
+                    if (!want.equals(have)) {
+                        want.rewind();
+                        while (want.hasRemaining()) {
+                            target.write(want, position + want.position());
+                        }
+                        copied++;
+                    }
+                }
+            }
+            MemberDisk.writeGeneration(to.toString(), size,
+                    Math.max(0, MemberDisk.readGeneration(from.toString(), size)));
+            System.out.println("Copied " + copied + " blocks from " + from + " to " + to);
+        } catch (IOException e) {
+            throw new DiskException("Cannot bring " + to + " up to date from "
+                    + from + ": " + e);
+        }
+    } // resync
+
+    /** Reads one block of a file into a buffer, which is left flipped. */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException
+    {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("file is too short");
+            }
+        }
+        buffer.flip();
+    } // readFully
+
+    /** Picks the member to serve a read: the one with the shortest queue,
+     * and of those the one whose head is nearest the block.
+     */
+    private synchronized int choose(int blockNumber) {
+        int best = 0;
+        int bestQueue = Integer.MAX_VALUE;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int i = 0; i < members.length; i++) {
+            int queue = members[i].queueLength();
+            int distance = Math.abs(members[i].headPosition() - blockNumber);
+            if (queue < bestQueue
+                    || (queue == bestQueue && distance < bestDistance))
+            {
+                best = i;
+                bestQueue = queue;
+                bestDistance = distance;
+            }
+        }
+        memberReads[best]++;
+        return best;
+    } // choose
+
+    private void check(int blockNumber, int count, byte buffer[],
+                       int offset, int length) {
+        if (blockNumber < 0 || count < 0 || blockNumber + count > DISK_SIZE
+                || buffer == null || offset < 0
+                || buffer.length - offset < length)
+        {
+            throw new DiskException("Illegal mirrored disk request: "
+                    + " block number " + blockNumber
+                    + " count " + count
+                    + " buffer " + buffer);
+        }
+    } // check
+
+    /** Performs a read operation on one member.
+     * When this method returns, the operation is complete.
+     * @param blockNumber The block number to read from.
+     * @param buffer a data area to hold the data read.
+     */
+    public void read(int blockNumber, byte buffer[]) {
+        check(blockNumber, 1, buffer, 0, BLOCK_SIZE);
+        trace(DiskTrace.READ, blockNumber);
+        MemberDisk member = members[choose(blockNumber)];
+        member.await(member.submitRead(blockNumber, buffer));
+        synchronized (this) {
+            readCount++;
+        }
+    } // read(int, byte[])
+
+    /** Performs a read operation into part of a larger buffer.  The block
+     * comes from one member into a block of its own and is copied across,
+     * since the members fill whole buffers.
+     * @param blockNumber The block number to read from.
+     * @param buffer a data area of at least offset + BLOCK_SIZE bytes.
+     * @param offset where in the buffer the block goes.
+     */
+    public void read(int blockNumber, byte buffer[], int offset) {
+        byte block[] = new byte[BLOCK_SIZE];
+        read(blockNumber, block);
+        System.arraycopy(block, 0, buffer, offset, BLOCK_SIZE);
+    } // read(int, byte[], int)
+
+    /** Performs a write operation on every member.
+     * When this method returns, the operation is complete.
+     * @param blockNumber The block number to write to.
+     * @param buffer a data area holding the data to be written.
+     */
+    public void write(int blockNumber, byte buffer[]) {
+        check(blockNumber, 1, buffer, 0, BLOCK_SIZE);
+        trace(DiskTrace.WRITE, blockNumber);
+        MemberDisk.Request requests[] = new MemberDisk.Request[members.length];
+        synchronized (this) {
+            for (int i = 0; i < members.length; i++) {
+                requests[i] = members[i].submitWrite(blockNumber, buffer);
+            }
+            writeCount++;
+        }
+        for (int i = 0; i < members.length; i++) {
+            members[i].await(requests[i]);
+        }
+    } // write(int, byte[])
+
+    /** Discards a block on every member.
+     * @param blockNumber The block number to discard.
+     */
+    public void discard(int blockNumber) {
+        if (blockNumber < 0 || blockNumber >= DISK_SIZE) {
+            throw new DiskException("Illegal disk discard request: "
+                    + " block number " + blockNumber);
+        }
+        trace(DiskTrace.DISCARD, blockNumber);
+        MemberDisk.Request requests[] = new MemberDisk.Request[members.length];
+        synchronized (this) {
+            for (int i = 0; i < members.length; i++) {
+                requests[i] = members[i].submitDiscard(blockNumber);
+            }
+            discardCount++;
+        }
+        for (int i = 0; i < members.length; i++) {
+            members[i].await(requests[i]);
+        }
+    } // discard
+
+    /** Reads consecutive blocks, spreading them over the members.  Each
+     * block is sent to the member chosen as for read, so the run is split
+     * among the members as their queues fill.
+     * @param blockNumber The first block number to read from.
+     * @param count The number of blocks to read.
+     * @param buffer a data area of at least offset + count * BLOCK_SIZE
+     *               bytes; block i of the run lands at offset + i * BLOCK_SIZE.
+     * @param offset where in the buffer the first block goes.
+     */
+    public void readBlocks(int blockNumber, int count, byte buffer[], int offset) {
+        check(blockNumber, count, buffer, offset, count * BLOCK_SIZE);
+        for (int i = 0; i < count; i++) {
+            trace(DiskTrace.READ, blockNumber + i);
+        }
+        byte parts[][] = new byte[count][BLOCK_SIZE];
+        MemberDisk chosen[] = new MemberDisk[count];
+        MemberDisk.Request requests[] = new MemberDisk.Request[count];
+        for (int i = 0; i < count; i++) {
+            chosen[i] = members[choose(blockNumber + i)];
+            requests[i] = chosen[i].submitRead(blockNumber + i, parts[i]);
+        }
+        for (int i = 0; i < count; i++) {
+            chosen[i].await(requests[i]);
+            System.arraycopy(parts[i], 0, buffer, offset + i * BLOCK_SIZE, BLOCK_SIZE);
+        }
+        synchronized (this) {
+            readCount += count;
+        }
+    } // readBlocks
+
+    /** Writes consecutive blocks to every member.
+     * @param blockNumber The first block number to write to.
+     * @param count The number of blocks to write.
+     * @param buffer a data area of at least offset + count * BLOCK_SIZE
+     *               bytes; block i of the run comes from offset + i * BLOCK_SIZE.
+     * @param offset where in the buffer the first block starts.
+     */
+    public void writeBlocks(int blockNumber, int count, byte buffer[], int offset) {
+        check(blockNumber, count, buffer, offset, count * BLOCK_SIZE);
+        for (int i = 0; i < count; i++) {
+            trace(DiskTrace.WRITE, blockNumber + i);
+        }
+        MemberDisk.Request requests[][]
+                = new MemberDisk.Request[members.length][count];
+        synchronized (this) {
+            for (int i = 0; i < count; i++) {
+                byte part[] = new byte[BLOCK_SIZE];
+                System.arraycopy(buffer, offset + i * BLOCK_SIZE, part, 0, BLOCK_SIZE);
+                for (int m = 0; m < members.length; m++) {
+                    requests[m][i] = members[m].submitWrite(blockNumber + i, part);
+                }
+            }
+            writeCount += count;
+        }
+        for (int m = 0; m < members.length; m++) {
+            for (int i = 0; i < count; i++) {
+                members[m].await(requests[m][i]);
+            }
+        }
+    } // writeBlocks
+
+    /** Saves every member to its file and prints statistics for each and
+     * for the array as a whole.
+     */
+    public void flush() {
+        for (MemberDisk member : members) {
+            member.flush();
+        }
+        StringBuilder split = new StringBuilder();
+        for (int i = 0; i < members.length; i++) {
+            split.append(i == 0 ? "" : "/").append(memberReads[i]);
+        }
+        System.out.println("Mirror of " + members.length + " disks: "
+                + readCount + " read operations (" + split + " per member), "
+                + writeCount + " write operations and "
+                + discardCount + " discard operations performed");
+    } // flush
+
+    /** Snapshots are not supported: the members would have to be frozen
+     * at the same instant.
+     */
+    public Snapshot snapshot() {
+        throw new DiskException("A mirrored disk cannot take snapshots");
+    } // snapshot
+
+    /** Snapshots are not supported. */
+    public void restore(Snapshot snapshot) {
+        throw new DiskException("A mirrored disk cannot restore snapshots");
+    } // restore
+} // MirroredDisk
@@ -43,6 +43,10 @@ import java.util.StringTokenizer;
 
 public class Shell {
     private static FileSystem fileSystem;
+    private static Disk disk;
+
+    /** The trace the disk's requests are being logged to, or null. */
+    private static DiskTrace trace;
     /**
      * The main program.
      *
@@ -51,7 +55,24 @@ public class Shell {
      */
     public static void main(String args[]) {
 
-        FastDisk disk = new FastDisk(1024);
+        // Use the disk the Kernel was booted with.  Run on its own, the
+        // Shell has a FastDisk of its own, saved in the file DISK.
+        disk = Kernel.getDisk();
+        if (disk == null) {
+            disk = new FastDisk(FileSystem.DISK_SIZE);
+        }
+        if (!(disk instanceof FastDisk)) {
+            // A plain Disk returns before a request is done and reports it
+            // with an interrupt, which the file system does not wait for.
+            Library.output("Shell: the file system needs a disk that finishes"
+                    + " each request before returning, such as FastDisk or an array\n");
+            return;
+        }
+        if (disk.DISK_SIZE < FileSystem.DISK_SIZE) {
+            Library.output("Shell: the file system needs a disk of "
+                    + FileSystem.DISK_SIZE + " blocks\n");
+            return;
+        }
         fileSystem = new FileSystem(disk);
         fileSystem.initialize();
         StringBuffer sb = new StringBuffer();
@@ -63,6 +84,7 @@ public class Shell {
                 sb.append(args[i]);
             }
             runCommandLine(sb.toString());
+            stopTrace();
             return;
         }
 
@@ -71,7 +93,7 @@ public class Shell {
             int rc = Library.input(sb);
 
             if (rc == Kernel.ERROR_END_OF_FILE) {
-                return;
+                break;
             }
             if (rc < 0) {
                 Library.output("Fatal error trying to read from console\n");
@@ -82,6 +104,7 @@ public class Shell {
                 break;
             }
         }
+        stopTrace();
     } // main(String[])
 
     /**
@@ -133,7 +156,11 @@ public class Shell {
                 switch (cmd) {
                     case "create":
                         String filename = cst.nextToken();
-                        createFile(filename);
+                        if (cst.hasMoreTokens()) {
+                            createFiles(filename, cst);
+                        } else {
+                            createFile(filename);
+                        }
                         break;
 
                     case "write":
@@ -149,11 +176,59 @@ public class Shell {
 
                     case "delete":
                         filename = cst.nextToken();
-                        deleteFile(filename);
+                        if (cst.hasMoreTokens() || filename.indexOf('*') >= 0
+                                || filename.indexOf('?') >= 0) {
+                            deleteFiles(filename, cst);
+                        } else {
+                            deleteFile(filename);
+                        }
                         break;
 
                     case "dir":
-                        listDirectory();
+                        listDirectory(cst.hasMoreTokens() ? cst.nextToken() : "/");
+                        break;
+
+                    case "mkdir":
+                        filename = cst.nextToken();
+                        makeDirectory(filename);
+                        break;
+
+                    case "truncate":
+                        filename = cst.nextToken();
+                        truncateFile(filename, cst.nextToken());
+                        break;
+
+                    case "compress":
+                        filename = cst.nextToken();
+                        compressFile(filename, cst.nextToken());
+                        break;
+
+                    case "dedup":
+                        setDeduplication(cst.nextToken());
+                        break;
+
+                    case "log":
+                        setLogStructured(cst.nextToken());
+                        break;
+
+                    case "defrag":
+                        defragment(cst.hasMoreTokens() ? cst.nextToken() : "0");
+                        break;
+
+                    case "fsck":
+                        checkFileSystem(cst.hasMoreTokens() ? cst.nextToken() : "");
+                        break;
+
+                    case "trace":
+                        setTrace(cst.nextToken());
+                        break;
+
+                    case "df":
+                        showFreeSpace();
+                        break;
+
+                    case "du":
+                        showUsage(cst.hasMoreTokens() ? cst.nextToken() : "/");
                         break;
 
                     default:
@@ -173,11 +248,21 @@ public class Shell {
                     "The following commands are built in:",
                     "    exit    terminate immediately",
                     "    help    print this message",
-                    "    create <filename>    create a new file",
+                    "    create <filename> ...    create new files",
                     "    write <filename> <data>    write data to a file",
                     "    read <filename>    read content from a file",
-                    "    delete <filename>    delete a file",
-                    "    dir    list all files in the current directory"
+                    "    delete <filename>|<pattern> ...    delete files, or those matching * and ? patterns",
+                    "    dir [<path>|<path>/<pattern>]    list a directory, or its names matching a pattern",
+                    "    mkdir <path>    create a directory",
+                    "    truncate <filename> <size>    set the size of a file",
+                    "    compress <filename> on|off    store a file compressed or not",
+                    "    dedup on|off    share identical blocks between files",
+                    "    log on|off    append writes to a log instead of overwriting",
+                    "    defrag [<blocks per second>]    gather each file's blocks into one run",
+                    "    fsck [repair]    check the file system for consistency, and repair it",
+                    "    trace <file>|off    log the disk's requests to a file, for TraceReplay",
+                    "    df    show the blocks used and free, and the number of files",
+                    "    du [<path>]    show the size of a file, or of everything in a directory"
             };
             for (String line : help) {
                 Library.output(line + "\n");
@@ -196,19 +281,16 @@ public class Shell {
 
         // Write data to a file
         private static void writeFile(String filename, String data) {
-            // Ensure the buffer size matches the disk block size (512 bytes)
-            byte[] buffer = new byte[Disk.BLOCK_SIZE];
-            byte[] dataBytes = data.getBytes();
+            // Write exactly the bytes given, so that short data can be
+            // stored inline rather than padded out to a whole block
+            byte[] buffer = data.getBytes();
 
-            // Check if data fits in the buffer
-            if (dataBytes.length > buffer.length) {
+            // Check if data fits in one block
+            if (buffer.length > Disk.BLOCK_SIZE) {
                 Library.output("Error: Data is too large to fit in one block.\n");
                 return;
             }
 
-            // Copy the data into the buffer (start at index 0)
-            System.arraycopy(dataBytes, 0, buffer, 0, dataBytes.length);
-
             int result = fileSystem.write(filename, buffer);  // This calls the write method from FileSystem
             if (result == 0) {
                 Library.output("Written to file: " + filename + "\n");
@@ -228,6 +310,32 @@ public class Shell {
             }
         }
 
+        // Create several files in one operation
+        private static void createFiles(String first, StringTokenizer rest) {
+            int result = fileSystem.create(names(first, rest));
+            if (result != 0) {
+                Library.output("Error creating files\n");
+            }
+        }
+
+        // Delete several files, or those matching patterns, in one operation
+        private static void deleteFiles(String first, StringTokenizer rest) {
+            int result = fileSystem.delete(names(first, rest));
+            if (result != 0) {
+                Library.output("Error deleting files\n");
+            }
+        }
+
+        // Gather a command's remaining arguments
+        private static String[] names(String first, StringTokenizer rest) {
+            List<String> names = new ArrayList<String>();
+            names.add(first);
+            while (rest.hasMoreTokens()) {
+                names.add(rest.nextToken());
+            }
+            return names.toArray(new String[0]);
+        }
+
         // Delete a file
         private static void deleteFile(String filename) {
             int result = fileSystem.delete(filename);
@@ -238,9 +346,154 @@ public class Shell {
             }
         }
 
-        // List all files in the directory
-        private static void listDirectory() {
+        // Set the size of a file without writing its data
+        private static void truncateFile(String filename, String size) {
+            int result;
+            try {
+                result = fileSystem.truncate(filename, Integer.parseInt(size));
+            } catch (NumberFormatException e) {
+                result = Kernel.ERROR_BAD_ARGUMENT;
+            }
+            if (result == 0) {
+                Library.output("Truncated file: " + filename + "\n");
+            } else {
+                Library.output("Error truncating file: " + filename + "\n");
+            }
+        }
+
+        // Turn compression on or off for a file
+        private static void compressFile(String filename, String setting) {
+            int result;
+            if (setting.equals("on") || setting.equals("off")) {
+                result = fileSystem.setCompressed(filename, setting.equals("on"));
+            } else {
+                result = Kernel.ERROR_BAD_ARGUMENT;
+            }
+            if (result == 0) {
+                Library.output("Compression " + setting + " for file: " + filename + "\n");
+            } else {
+                Library.output("Error changing compression: " + filename + "\n");
+            }
+        }
+
+        // Turn block deduplication on or off
+        private static void setDeduplication(String setting) {
+            int result;
+            if (setting.equals("on") || setting.equals("off")) {
+                result = fileSystem.setDeduplication(setting.equals("on"));
+            } else {
+                result = Kernel.ERROR_BAD_ARGUMENT;
+            }
+            if (result == 0) {
+                Library.output("Deduplication " + setting + "\n");
+            } else {
+                Library.output("Error changing deduplication\n");
+            }
+        }
+
+        // Turn log-structured writes on or off
+        private static void setLogStructured(String setting) {
+            int result;
+            if (setting.equals("on") || setting.equals("off")) {
+                result = fileSystem.setLogStructured(setting.equals("on"));
+            } else {
+                result = Kernel.ERROR_BAD_ARGUMENT;
+            }
+            if (result == 0) {
+                Library.output("Log-structured writes " + setting + "\n");
+            } else {
+                Library.output("Error changing log mode\n");
+            }
+        }
+
+        // Defragment the file system, moving at most rate blocks a second
+        private static void defragment(String rate) {
+            int result;
+            try {
+                result = fileSystem.defragment(Integer.parseInt(rate));
+            } catch (NumberFormatException e) {
+                result = Kernel.ERROR_BAD_ARGUMENT;
+            }
+            if (result != 0) {
+                Library.output("Error defragmenting\n");
+            }
+        }
+
+        // Check the file system, repairing it if asked to
+        private static void checkFileSystem(String setting) {
+            int result;
+            if (setting.isEmpty() || setting.equals("repair")) {
+                result = fileSystem.check(setting.equals("repair"));
+            } else {
+                result = Kernel.ERROR_BAD_ARGUMENT;
+            }
+            if (result != 0) {
+                Library.output("Error checking file system\n");
+            }
+        }
+
+        // Start logging the disk's requests to a file, or stop
+        private static void setTrace(String fileName) {
+            stopTrace();
+            if (fileName.equals("off")) {
+                return;
+            }
+            try {
+                trace = new DiskTrace(fileName, disk.DISK_SIZE);
+            } catch (java.io.IOException e) {
+                Library.output("Error starting trace: " + e.getMessage() + "\n");
+                return;
+            }
+            disk.setTrace(trace);
+            Library.output("Tracing disk requests to " + fileName + "\n");
+        }
+
+        // Stop logging the disk's requests, if it is being logged
+        private static void stopTrace() {
+            if (trace != null) {
+                disk.setTrace(null);
+                trace.close();
+                Library.output("Traced " + trace.recordCount() + " disk requests\n");
+                trace = null;
+            }
+        }
+
+        // Show the file system's totals, as the Kernel reports them
+        private static void showFreeSpace() {
+            int[] counts = new int[FileSystem.STAT_FIELDS];
+            int result = Library.statfs(counts);
+            if (result != 0) {
+                Library.output("Error getting file system totals\n");
+                return;
+            }
+            Library.output(counts[FileSystem.STAT_BLOCKS] + " blocks, "
+                    + counts[FileSystem.STAT_USED] + " used, "
+                    + counts[FileSystem.STAT_FREE] + " free; "
+                    + counts[FileSystem.STAT_FILES] + " files of "
+                    + counts[FileSystem.STAT_BYTES] + " bytes, "
+                    + counts[FileSystem.STAT_DIRS] + " directories\n");
+        }
+
+        // Show the size of a file or directory
+        private static void showUsage(String path) {
+            if (fileSystem.du(path) != 0) {
+                Library.output("Error measuring: " + path + "\n");
+            }
+        }
+
+        // Create a directory
+        private static void makeDirectory(String path) {
+            int result = fileSystem.mkdir(path);
+            if (result == 0) {
+                Library.output("Created directory: " + path + "\n");
+            } else {
+                Library.output("Error creating directory: " + path + "\n");
+            }
+        }
+
+        // List the files in a directory, or those matching a prefix
+        private static void listDirectory(String pattern) {
             Library.output("Listing directory:\n");
-            fileSystem.dir();
+            fileSystem.dir(pattern);
         }
     }
\ No newline at end of file
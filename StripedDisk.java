@@ -0,0 +1,221 @@
+/** A RAID-0 disk array: blocks striped across several member disks.
+ * <p>
+ * The array's blocks are dealt out to the members a stripe at a time: the
+ * first stripe of blocks goes to member 0, the next to member 1, and so
+ * on, wrapping around.  Each member is a {@link MemberDisk} with its own
+ * thread, head, and file (DISK0, DISK1, ...), so requests for blocks on
+ * different members are served at the same time.
+ * <p>
+ * Like a FastDisk, the array completes each read and write before
+ * returning, and may be called from several threads at once; requests to
+ * the same member are queued.  readBlocks and writeBlocks move a run of
+ * consecutive blocks, keeping every member busy at once.
+ *
+ * @see MemberDisk
+ */
+public class StripedDisk extends FastDisk {
+    /** The default number of consecutive blocks placed on one member. */
+    public static final int DEFAULT_STRIPE = 8;
+
+    /** The members of the array. */
+    private final MemberDisk members[];
+
+    /** The number of consecutive blocks placed on one member. */
+    private final int stripe;
+
+    /** Creates a striped disk, restoring each member from its file
+     * if it exists.
+     * @param size the total size of the array, in blocks.
+     * @param memberCount the number of member disks.
+     * @param stripe the number of consecutive blocks placed on one member.
+     */
+    public StripedDisk(int size, int memberCount, int stripe) {
+        super(size, null);
+        if (memberCount < 1 || stripe < 1) {
+            throw new DiskException("A striped disk needs at least one member"
+                    + " and a stripe of at least one block");
+        }
+        this.stripe = stripe;
+        int rows = (size + stripe * memberCount - 1) / (stripe * memberCount);
+        members = new MemberDisk[memberCount];
+        for (int i = 0; i < memberCount; i++) {
+            members[i] = new MemberDisk(rows * stripe, "DISK" + i);
+            Thread thread = new Thread(members[i], "DISK" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    } // StripedDisk
+
+    /** Creates a striped disk with the default stripe size.
+     * @param size the total size of the array, in blocks.
+     * @param memberCount the number of member disks.
+     */
+    public StripedDisk(int size, int memberCount) {
+        this(size, memberCount, DEFAULT_STRIPE);
+    } // StripedDisk
+
+    /** Returns the member holding a block of the array. */
+    private MemberDisk memberOf(int blockNumber) {
+        return members[(blockNumber / stripe) % members.length];
+    } // memberOf
+
+    /** Returns the block number within its member of a block of the array. */
+    private int offsetOf(int blockNumber) {
+        return (blockNumber / stripe / members.length) * stripe
+                + blockNumber % stripe;
+    } // offsetOf
+
+    private void check(int blockNumber, int count, byte buffer[],
+                       int offset, int length) {
+        if (blockNumber < 0 || count < 0 || blockNumber + count > DISK_SIZE
+                || buffer == null || offset < 0
+                || buffer.length - offset < length)
+        {
+            throw new DiskException("Illegal striped disk request: "
+                    + " block number " + blockNumber
+                    + " count " + count
+                    + " buffer " + buffer);
+        }
+    } // check
+
+    /** Performs a read operation.
+     * When this method returns, the operation is complete.
+     * @param blockNumber The block number to read from.
+     * @param buffer a data area to hold the data read.
+     */
+    public void read(int blockNumber, byte buffer[]) {
+        check(blockNumber, 1, buffer, 0, BLOCK_SIZE);
+        trace(DiskTrace.READ, blockNumber);
+        MemberDisk member = memberOf(blockNumber);
+        member.await(member.submitRead(offsetOf(blockNumber), buffer));
+        synchronized (this) {
+            readCount++;
+        }
+    } // read(int, byte[])
+
+    /** Performs a read operation into part of a larger buffer.  The block
+     * comes from its member into a block of its own and is copied across,
+     * since the members fill whole buffers.
+     * @param blockNumber The block number to read from.
+     * @param buffer a data area of at least offset + BLOCK_SIZE bytes.
+     * @param offset where in the buffer the block goes.
+     */
+    public void read(int blockNumber, byte buffer[], int offset) {
+        byte block[] = new byte[BLOCK_SIZE];
+        read(blockNumber, block);
+        System.arraycopy(block, 0, buffer, offset, BLOCK_SIZE);
+    } // read(int, byte[], int)
+
+    /** Performs a write operation.
+     * When this method returns, the operation is complete.
+     * @param blockNumber The block number to write to.
+     * @param buffer a data area holding the data to be written.
+     */
+    public void write(int blockNumber, byte buffer[]) {
+        check(blockNumber, 1, buffer, 0, BLOCK_SIZE);
+        trace(DiskTrace.WRITE, blockNumber);
+        MemberDisk member = memberOf(blockNumber);
+        member.await(member.submitWrite(offsetOf(blockNumber), buffer));
+        synchronized (this) {
+            writeCount++;
+        }
+    } // write(int, byte[])
+
+    /** Discards a block.
+     * @param blockNumber The block number to discard.
+     */
+    public void discard(int blockNumber) {
+        if (blockNumber < 0 || blockNumber >= DISK_SIZE) {
+            throw new DiskException("Illegal disk discard request: "
+                    + " block number " + blockNumber);
+        }
+        trace(DiskTrace.DISCARD, blockNumber);
+        MemberDisk member = memberOf(blockNumber);
+        member.await(member.submitDiscard(offsetOf(blockNumber)));
+        synchronized (this) {
+            discardCount++;
+        }
+    } // discard
+
+    /** Reads consecutive blocks.  The requests are queued on every member
+     * they touch before any is waited for, so the members work on them
+     * at the same time.
+     * @param blockNumber The first block number to read from.
+     * @param count The number of blocks to read.
+     * @param buffer a data area of at least offset + count * BLOCK_SIZE
+     *               bytes; block i of the run lands at offset + i * BLOCK_SIZE.
+     * @param offset where in the buffer the first block goes.
+     */
+    public void readBlocks(int blockNumber, int count, byte buffer[], int offset) {
+        check(blockNumber, count, buffer, offset, count * BLOCK_SIZE);
+        for (int i = 0; i < count; i++) {
+            trace(DiskTrace.READ, blockNumber + i);
+        }
+        byte parts[][] = new byte[count][BLOCK_SIZE];
+        MemberDisk.Request requests[] = new MemberDisk.Request[count];
+        for (int i = 0; i < count; i++) {
+            requests[i] = memberOf(blockNumber + i)
+                    .submitRead(offsetOf(blockNumber + i), parts[i]);
+        }
+        for (int i = 0; i < count; i++) {
+            memberOf(blockNumber + i).await(requests[i]);
+            System.arraycopy(parts[i], 0, buffer, offset + i * BLOCK_SIZE, BLOCK_SIZE);
+        }
+        synchronized (this) {
+            readCount += count;
+        }
+    } // readBlocks
+
+    /** Writes consecutive blocks, keeping every member they touch busy
+     * at once.
+     * @param blockNumber The first block number to write to.
+     * @param count The number of blocks to write.
+     * @param buffer a data area of at least offset + count * BLOCK_SIZE
+     *               bytes; block i of the run comes from offset + i * BLOCK_SIZE.
+     * @param offset where in the buffer the first block starts.
+     */
+    public void writeBlocks(int blockNumber, int count, byte buffer[], int offset) {
+        check(blockNumber, count, buffer, offset, count * BLOCK_SIZE);
+        for (int i = 0; i < count; i++) {
+            trace(DiskTrace.WRITE, blockNumber + i);
+        }
+        MemberDisk.Request requests[] = new MemberDisk.Request[count];
+        for (int i = 0; i < count; i++) {
+            byte part[] = new byte[BLOCK_SIZE];
+            System.arraycopy(buffer, offset + i * BLOCK_SIZE, part, 0, BLOCK_SIZE);
+            requests[i] = memberOf(blockNumber + i)
+                    .submitWrite(offsetOf(blockNumber + i), part);
+        }
+        for (int i = 0; i < count; i++) {
+            memberOf(blockNumber + i).await(requests[i]);
+        }
+        synchronized (this) {
+            writeCount += count;
+        }
+    } // writeBlocks
+
+    /** Saves every member to its file and prints statistics for each and
+     * for the array as a whole.
+     */
+    public void flush() {
+        for (MemberDisk member : members) {
+            member.flush();
+        }
+        System.out.println("Array of " + members.length + " disks: "
+                + readCount + " read operations, "
+                + writeCount + " write operations and "
+                + discardCount + " discard operations performed");
+    } // flush
+
+    /** Snapshots are not supported: the members would have to be frozen
+     * at the same instant.
+     */
+    public Snapshot snapshot() {
+        throw new DiskException("A striped disk cannot take snapshots");
+    } // snapshot
+
+    /** Snapshots are not supported. */
+    public void restore(Snapshot snapshot) {
+        throw new DiskException("A striped disk cannot restore snapshots");
+    } // restore
+} // StripedDisk
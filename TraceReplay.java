@@ -0,0 +1,258 @@
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/** Plays a {@link DiskTrace} back against a disk and reports how fast the
+ * disk served it.
+ * <p>
+ * Usage:
+ * <pre>
+ *    java TraceReplay &lt;trace&gt; &lt;disk&gt; [&lt;cache blocks&gt;] [-threads] [-timed] [-virtual]
+ * </pre>
+ * The disk is named as for {@link Boot}: FastDisk, or an array such as
+ * Disk,Disk@16 or Disk+Disk, whose members pay the seek delays of a Disk.
+ * A plain Disk is refused: it finishes a request after returning and
+ * reports it with a Kernel interrupt, which a replay has no way to wait
+ * for.  The disk is the size of the traced disk, starts out new (or, for
+ * an array, from the member files DISK0, DISK1, ...), and is never saved.
+ * Written blocks are filled with a fixed pattern.
+ * <p>
+ * With a cache size, reads go through a {@link BlockCache} of that many
+ * blocks, and writes and discards go around it to the disk, dropping the
+ * block from the cache.
+ * <p>
+ * By default the requests are issued one at a time in the order they were
+ * traced, as fast as the disk allows, so a replay makes exactly the same
+ * requests every time.  With -threads, each traced thread gets a thread
+ * of its own that issues its requests in order, so an array can serve
+ * several at once.  With -timed, each request is issued no earlier than
+ * it was in the trace, and its latency is counted from then.
+ * <p>
+ * With -virtual, the disk runs on the {@link VirtualClock}: it pays its
+ * seek and transfer delays in simulated time rather than by sleeping, so
+ * a long trace replays at the speed of the CPU, and every time reported
+ * is simulated.  A timed replay then skips the clock ahead to each
+ * request's time instead of waiting for it.
+ * <p>
+ * The report gives the throughput and the mean, median, 99th percentile,
+ * and worst latency of the requests.
+ *
+ * @see DiskTrace
+ */
+public class TraceReplay {
+    private static Disk disk;
+    private static BlockCache cache;
+    private static DiskTrace.Records records;
+    private static boolean timed;
+
+    /** The latency of each request, in nanoseconds. */
+    private static long latency[];
+
+    /** The time the replay started, from System.nanoTime. */
+    private static long start;
+
+    /** Prints a help message and exits. */
+    private static void usage() {
+        System.err.println("usage: java TraceReplay"
+                + " <trace> <disk> [<cache blocks>] [-threads] [-timed] [-virtual]");
+        System.exit(-1);
+    } // usage
+
+    /** The main program.
+     * @param args the command-line arguments
+     */
+    public static void main(String args[]) {
+        if (args.length < 2) {
+            usage();
+        }
+        boolean threaded = false;
+        int cacheSize = 0;
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("-threads")) {
+                threaded = true;
+            } else if (args[i].equals("-timed")) {
+                timed = true;
+            } else if (args[i].equals("-virtual")) {
+                if (args[1].equals("FastDisk")) {
+                    System.err.println("-virtual: a FastDisk takes no time to simulate");
+                    usage();
+                }
+                VirtualClock.enable();
+            } else {
+                try {
+                    cacheSize = Integer.parseInt(args[i]);
+                } catch (NumberFormatException e) {
+                    usage();
+                }
+            }
+        }
+        try {
+            records = DiskTrace.load(args[0]);
+        } catch (NoSuchFileException e) {
+            System.err.println(args[0] + ": no such file");
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.println(args[0] + ": " + e.getMessage());
+            System.exit(1);
+        }
+        try {
+            disk = makeDisk(args[1], records.diskSize);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage();
+        }
+        if (cacheSize > 0) {
+            cache = new BlockCache(disk, cacheSize, 0);
+        }
+        latency = new long[records.count];
+
+        start = VirtualClock.nanoTime();
+        if (threaded) {
+            int threadCount = records.threadCount();
+            Thread threads[] = new Thread[threadCount];
+            for (int t = 0; t < threadCount; t++) {
+                final int thread = t;
+                threads[t] = new Thread(() -> replay(thread), "REPLAY" + t);
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        } else {
+            replay(-1);
+        }
+        long elapsed = VirtualClock.nanoTime() - start;
+        report(elapsed);
+    } // main
+
+    /** Makes a disk that is never saved, for replaying against; also
+     * used by LoadGenerator.
+     * @param name FastDisk, or an array of Disks.
+     * @param size the size of the disk, in blocks.
+     * @throws IllegalArgumentException if the name is not of such a disk;
+     * the message says why, for the caller to report with its usage.
+     */
+    static Disk makeDisk(String name, int size) {
+        if (name.equals("FastDisk")) {
+            return new FastDisk(size, null);
+        }
+        if (name.equals("Disk")) {
+            throw new IllegalArgumentException("Disk: a plain Disk completes its"
+                    + " requests through Kernel interrupts, which nothing here"
+                    + " waits for; use FastDisk or an array of Disks, such as Disk+Disk");
+        }
+        if (name.indexOf(',') >= 0 || name.indexOf('@') >= 0
+                || name.indexOf('+') >= 0)
+        {
+            return Boot.makeArray(name, size);
+        }
+        throw new IllegalArgumentException(name + ": not a FastDisk or an array of Disks");
+    } // makeDisk
+
+    /** Issues the requests of one traced thread, or of all of them.
+     * @param thread the thread number, or -1 for every request.
+     */
+    private static void replay(int thread) {
+        byte buffer[] = new byte[Disk.BLOCK_SIZE];
+        byte pattern[] = new byte[Disk.BLOCK_SIZE];
+        Arrays.fill(pattern, (byte) 0x5a);
+        for (int i = 0; i < records.count; i++) {
+            if (thread != -1 && records.thread[i] != thread) {
+                continue;
+            }
+            long issue = VirtualClock.nanoTime();
+            if (timed) {
+                long due = start + records.time[i];
+                if (VirtualClock.isEnabled()) {
+                    VirtualClock.advanceTo(due);
+                    issue = VirtualClock.nanoTime();
+                }
+                while (issue < due) {
+                    LockSupport.parkNanos(due - issue);
+                    issue = VirtualClock.nanoTime();
+                }
+                issue = due;
+            }
+            perform(records.op[i], records.block[i], buffer, pattern);
+            latency[i] = VirtualClock.nanoTime() - issue;
+        }
+    } // replay
+
+    /** Performs one request and waits for it to finish. */
+    private static void perform(int op, int block, byte buffer[], byte pattern[]) {
+        if (op == DiskTrace.READ && cache != null) {
+            synchronized (cache) {
+                cache.get(block);
+            }
+            return;
+        }
+        if (op != DiskTrace.READ && cache != null) {
+            synchronized (cache) {
+                cache.invalidate(block);
+            }
+        }
+        if (disk.getClass() == FastDisk.class) {
+            // A plain FastDisk is not safe for several threads at once.
+            synchronized (disk) {
+                transfer(op, block, buffer, pattern);
+            }
+        } else {
+            transfer(op, block, buffer, pattern);
+        }
+    } // perform
+
+    private static void transfer(int op, int block, byte buffer[], byte pattern[]) {
+        if (op == DiskTrace.READ) {
+            disk.read(block, buffer);
+        } else if (op == DiskTrace.WRITE) {
+            disk.write(block, pattern);
+        } else {
+            disk.discard(block);
+        }
+    } // transfer
+
+    /** Prints the throughput and latencies of the replay. */
+    private static void report(long elapsed) {
+        int counts[] = new int[3];
+        for (int i = 0; i < records.count; i++) {
+            counts[records.op[i]]++;
+        }
+        long traced = records.count == 0 ? 0 : records.time[records.count - 1];
+        System.out.printf("Replayed %d requests (%d reads, %d writes, %d discards)"
+                + " from %d threads in %.3f s (traced run: %.3f s)%n",
+                records.count, counts[DiskTrace.READ], counts[DiskTrace.WRITE],
+                counts[DiskTrace.DISCARD], records.threadCount(),
+                elapsed / 1e9, traced / 1e9);
+        if (records.count == 0) {
+            return;
+        }
+        System.out.printf("Throughput: %.0f requests/s%n",
+                records.count / (elapsed / 1e9));
+        long sorted[] = latency.clone();
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long l : sorted) {
+            total += l;
+        }
+        System.out.printf("Latency: mean %.3f ms, p50 %.3f ms, p99 %.3f ms, max %.3f ms%n",
+                total / 1e6 / sorted.length, percentile(sorted, 50) / 1e6,
+                percentile(sorted, 99) / 1e6, sorted[sorted.length - 1] / 1e6);
+        if (cache != null) {
+            int lookups = cache.hitCount() + cache.missCount();
+            System.out.printf("Cache: %d hits, %d misses (%.1f%% hit rate)%n",
+                    cache.hitCount(), cache.missCount(),
+                    lookups == 0 ? 0.0 : 100.0 * cache.hitCount() / lookups);
+        }
+    } // report
+
+    /** Returns a percentile of sorted values, by the nearest-rank method. */
+    static long percentile(long sorted[], double p) {
+        int rank = (int) Math.ceil(p / 100 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    } // percentile
+} // TraceReplay
@@ -1,3 +1,7 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.BitSet;
 
 /**
  * Utilities.java
@@ -7,6 +11,27 @@
  */
 public class Utilities
 {
+    /** Little-endian view of a byte array as 16-bit integers. */
+    private static final VarHandle SHORT_LE =
+            MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /** Little-endian view of a byte array as 32-bit integers. */
+    private static final VarHandle INT_LE =
+            MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /** Little-endian view of a byte array as 64-bit integers. */
+    private static final VarHandle LONG_LE =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Big-endian view of a byte array as 64-bit words.  Bitmaps store the
+     * first bit in the high-order bit of the first byte, which is exactly
+     * the high-order bit of a big-endian word, so whole words can be moved
+     * at once.
+     */
+    private static final VarHandle WORD_BE =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
     /**
      * Store a 16-bit integer into a byte array.
      * @param n         the integer to be stored
@@ -15,8 +40,7 @@ public class Utilities
      */
     public static void pack(short n, byte[] buf, int offset)
     {
-        buf[offset] = (byte) n;
-        buf[offset + 1] = (byte) (n >> 8);
+        SHORT_LE.set(buf, offset, n);
     }
 
     /**
@@ -27,7 +51,7 @@ public class Utilities
      */
     public static short unpackShort(byte[] buf, int offset)
     {
-        return (short) ((buf[offset] & 0xff) + ((buf[offset + 1] & 0xff) << 8));
+        return (short) SHORT_LE.get(buf, offset);
     }
 
     /**
@@ -38,10 +62,7 @@ public class Utilities
      */
     public static void pack(int n, byte[] buf, int offset)
     {
-        buf[offset] = (byte) (n >> 0);
-        buf[offset + 1] = (byte) (n >> 8);
-        buf[offset + 2] = (byte) (n >> 16);
-        buf[offset + 3] = (byte) (n >> 24);
+        INT_LE.set(buf, offset, n);
     }
 
     /**
@@ -52,29 +73,60 @@ public class Utilities
      */
     public static int unpackInt(byte[] buf, int offset)
     {
-        return ((buf[offset] & 0xff) + ((buf[offset + 1] & 0xff) << 8) +
-                ((buf[offset + 2] & 0xff) << 16) + ((buf[offset + 3] & 0xff) <<
-                24));
+        return (int) INT_LE.get(buf, offset);
+    }
+
+    /**
+     * Store a 64-bit integer into a byte array.
+     * @param n         the integer to be stored
+     * @param buf       the byte array into which it should be stored
+     * @param offset    the index of the first byte to be modified
+     */
+    public static void pack(long n, byte[] buf, int offset)
+    {
+        LONG_LE.set(buf, offset, n);
+    }
+
+    /**
+     * Convert a field in a byte array to a 64-bit integer.
+     * @param buf       the byte array containing the data.
+     * @param offset    the location in the array where the data starts.
+     * @return          the long integer value.
+     */
+    public static long unpackLong(byte[] buf, int offset)
+    {
+        return (long) LONG_LE.get(buf, offset);
     }
 
     /**
      * Store an array of boolean values into a byte array.
+     * The bits are packed 64 at a time; a trailing partial byte has its
+     * unused low-order bits cleared.
      * @param bits      the array of boolean values to be stored
      * @param buf       the byte array into which it should be stored
      * @param offset    the index of the first byte to be modified
      */
     public static void pack(boolean[] bits, byte[] buf, int offset)
     {
-        for ( int i = offset; i < offset + bits.length / 8 + 1; i ++ )
+        int i = 0;
+        for ( ; i + Long.SIZE <= bits.length; i += Long.SIZE )
         {
-            buf[i] = (byte) 0;
+            long word = 0;
+            for ( int j = 0; j < Long.SIZE; j ++ )
+            {
+                word = (word << 1) | (bits[i + j] ? 1L : 0L);
+            }
+            WORD_BE.set(buf, offset + i / 8, word);
         }
-        for ( int i = 0; i < bits.length; i ++ )
+        for ( ; i < bits.length; i += 8 )
         {
-            if ( bits[i] )
+            int b = 0;
+            int end = Math.min(i + 8, bits.length);
+            for ( int j = i; j < end; j ++ )
             {
-                buf[offset + i / 8] |= 1 << (8 - (i % 8) - 1);
+                b |= (bits[j] ? 1 : 0) << (7 - (j - i));
             }
+            buf[offset + i / 8] = (byte) b;
         }
     }
 
@@ -88,17 +140,82 @@ public class Utilities
     public static boolean[] unpackArrayBool(byte[] buf, int offset, int size)
     {
         boolean[] bits = new boolean[size];
-        for ( int i = 0; i < size; i ++ )
+        int i = 0;
+        for ( ; i + Long.SIZE <= size; i += Long.SIZE )
         {
-            if ( (buf[(offset + i / 8)] & (1 << (8 - (i % 8) - 1))) > 0 )
+            long word = (long) WORD_BE.get(buf, offset + i / 8);
+            if ( word == 0 )
             {
-                bits[i] = true;
+                continue;
+            }
+            for ( int j = 0; j < Long.SIZE; j ++ )
+            {
+                bits[i + j] = word < 0;
+                word <<= 1;
             }
-
+        }
+        for ( ; i < size; i ++ )
+        {
+            bits[i] = (buf[offset + i / 8] & (0x80 >>> (i % 8))) != 0;
         }
         return bits;
     }
 
+    /**
+     * Store a set of bits into a byte array, in the same layout as an
+     * array of boolean values.  A BitSet keeps bit 0 in the low-order bit
+     * of its first word, so each word is reversed and stored whole.
+     * @param bits      the set of bits to be stored
+     * @param size      the number of bits to store
+     * @param buf       the byte array into which it should be stored
+     * @param offset    the index of the first byte to be modified
+     */
+    public static void pack(BitSet bits, int size, byte[] buf, int offset)
+    {
+        long[] words = bits.toLongArray();
+        int i = 0;
+        for ( ; i + Long.SIZE <= size; i += Long.SIZE )
+        {
+            int w = i / Long.SIZE;
+            WORD_BE.set(buf, offset + i / 8, w < words.length ? Long.reverse(words[w]) : 0L);
+        }
+        for ( ; i < size; i += 8 )
+        {
+            int b = 0;
+            int end = Math.min(i + 8, size);
+            for ( int j = i; j < end; j ++ )
+            {
+                b |= (bits.get(j) ? 1 : 0) << (7 - (j - i));
+            }
+            buf[offset + i / 8] = (byte) b;
+        }
+    }
+
+    /**
+     * Convert a field in a byte array to a set of bits.
+     * @param buf       the byte array containing the data.
+     * @param offset    the location in the array where the data starts.
+     * @param size      the number of bits to be extracted from the buffer
+     * @return          the set of bits.
+     */
+    public static BitSet unpackBitSet(byte[] buf, int offset, int size)
+    {
+        long[] words = new long[(size + Long.SIZE - 1) / Long.SIZE];
+        int i = 0;
+        for ( ; i + Long.SIZE <= size; i += Long.SIZE )
+        {
+            words[i / Long.SIZE] = Long.reverse((long) WORD_BE.get(buf, offset + i / 8));
+        }
+        for ( ; i < size; i ++ )
+        {
+            if ( (buf[offset + i / 8] & (0x80 >>> (i % 8))) != 0 )
+            {
+                words[i / Long.SIZE] |= 1L << (i % Long.SIZE);
+            }
+        }
+        return BitSet.valueOf(words);
+    }
+
     /**
      * Store a String into a byte array.
      * @param text      the String to be stored
@@ -108,10 +225,7 @@ public class Utilities
     public static void pack(String text, byte[] buf, int offset)
     {
         byte[] bytes = text.getBytes();
-        for ( int i = 0; i < bytes.length; i ++ )
-        {
-            buf[offset + i] = bytes[i];
-        }
+        System.arraycopy(bytes, 0, buf, offset, bytes.length);
     }
 
     /**
@@ -134,12 +248,12 @@ public class Utilities
      */
     public static String strRepeat(String string, int count)
     {
-        String result = "";
+        StringBuilder result = new StringBuilder(string.length() * Math.max(count, 0));
         for ( int i = 0; i < count; i ++ )
         {
-            result = result + string;
+            result.append(string);
         }
-        return result;
+        return result.toString();
     }
 
     /**
@@ -150,18 +264,11 @@ public class Utilities
      */
     public static String boolToStr(boolean[] bits)
     {
-        String text = "";
+        StringBuilder text = new StringBuilder(bits.length);
         for ( int i = 0; i < bits.length; i ++ )
         {
-            if ( bits[i] )
-            {
-                text += "1";
-            }
-            else
-            {
-                text += "0";
-            }
+            text.append(bits[i] ? '1' : '0');
         }
-        return text;
+        return text.toString();
     }
 }
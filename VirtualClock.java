@@ -0,0 +1,62 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A simulated clock for running disks without waiting for them.
+ * <p>
+ * Normally a {@link Disk} sleeps for its seek and transfer time on every
+ * request.  Once the clock is enabled, every Disk instead works out when
+ * the request would have finished, advances this clock to that moment,
+ * and carries on at once, so a run of a million requests takes seconds
+ * rather than hours while reporting the same latencies.
+ * <p>
+ * There is one clock, shared by every disk and thread, and it only moves
+ * forward.  A request arrives at the time on the clock when it is made,
+ * starts when its disk is free, and finishes a seek and transfer time
+ * later.  Since nothing else advances the clock, computing costs no
+ * simulated time.  When one thread makes all the requests, or the threads
+ * take turns under a lock as the FileSystem's do, the simulation is exact;
+ * when several threads make requests at once, which of them arrive
+ * together depends on how the threads happen to run.
+ * <p>
+ * Programs that time disk requests should read the time from
+ * {@link #nanoTime}, which is the simulated time when the clock is enabled
+ * and System.nanoTime otherwise.
+ *
+ * @see Disk
+ */
+public class VirtualClock {
+    /** An indication of whether disks should use this clock. */
+    private static volatile boolean enabled;
+
+    /** The simulated time, in nanoseconds. */
+    private static final AtomicLong now = new AtomicLong();
+
+    private VirtualClock() {
+    } // VirtualClock
+
+    /** Makes every disk advance the clock instead of sleeping.  Should be
+     * called before any disk request is made.
+     */
+    public static void enable() {
+        enabled = true;
+    } // enable
+
+    /** Returns whether disks are using the clock. */
+    public static boolean isEnabled() {
+        return enabled;
+    } // isEnabled
+
+    /** Returns the current time, in nanoseconds: the simulated time if the
+     * clock is enabled, otherwise System.nanoTime.
+     */
+    public static long nanoTime() {
+        return enabled ? now.get() : System.nanoTime();
+    } // nanoTime
+
+    /** Moves the simulated time forward to a given moment, if it is not
+     * already past it.
+     * @param time the moment, in nanoseconds.
+     */
+    public static void advanceTo(long time) {
+        now.accumulateAndGet(time, Math::max);
+    } // advanceTo
+} // VirtualClock